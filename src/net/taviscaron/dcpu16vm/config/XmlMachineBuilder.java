@@ -13,9 +13,13 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Instantiate machine from xml configuration
@@ -23,7 +27,7 @@ import java.util.List;
  * Example:
 
  * <machine type="net.taviscaron.dcpu16vm.machine.impl.MachineImpl">
- *     <processor type="net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl"/>
+ *     <processor type="net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl" frequency="100000"/>
  *     <memory type="net.taviscaron.dcpu16vm.machine.impl.MemoryImpl"/>
  *     <hardware>
  *         <device type="net.taviscaron.dcpu16vm.device.GenericClock"/>
@@ -32,6 +36,12 @@ import java.util.List;
  *     </hardware>
  * </machine>
  *
+ * Attributes other than type are set with the instance setters, e.g. frequency
+ * attribute calls setFrequency. String, boolean and integer setters are supported,
+ * integers might be written in hex (0x...).
+ *
+ * virtualThread="true" attribute of the machine runs its processor on a virtual thread (Java 21+).
+ *
  * @author Andrei Senchuk
  */
 public class XmlMachineBuilder implements MachineBuilder {
@@ -48,6 +58,7 @@ public class XmlMachineBuilder implements MachineBuilder {
                 case MACHINE:
                     if(!hwConfig) {
                         machineClassName = getType(qName, attributes);
+                        machineProperties = getProperties(attributes);
                     } else {
                         throw new SAXException("machine configuration can't be placed in hardware section");
                     }
@@ -55,6 +66,7 @@ public class XmlMachineBuilder implements MachineBuilder {
                 case PROCESSOR:
                     if(!hwConfig) {
                         processorClassName = getType(qName, attributes);
+                        processorProperties = getProperties(attributes);
                     } else {
                         throw new SAXException("processor configuration can't be placed in hardware section");
                     }
@@ -62,6 +74,7 @@ public class XmlMachineBuilder implements MachineBuilder {
                 case MEMORY:
                     if(!hwConfig) {
                         memoryClassName = getType(qName, attributes);
+                        memoryProperties = getProperties(attributes);
                     } else {
                         throw new SAXException("memory configuration can't be placed in hardware section");
                     }
@@ -72,6 +85,7 @@ public class XmlMachineBuilder implements MachineBuilder {
                 case DEVICE:
                     if(hwConfig) {
                         deviceClassesNames.add(getType(qName, attributes));
+                        devicesProperties.add(getProperties(attributes));
                     } else {
                         throw new SAXException("device configuration should be placed in hardware section");
                     }
@@ -97,12 +111,27 @@ public class XmlMachineBuilder implements MachineBuilder {
             }
             return type;
         }
+
+        private Map<String, String> getProperties(Attributes attributes) {
+            Map<String, String> properties = new LinkedHashMap<String, String>();
+            for(int i = 0; i < attributes.getLength(); i++) {
+                String name = attributes.getQName(i);
+                if(!"type".equals(name)) {
+                    properties.put(name, attributes.getValue(i));
+                }
+            }
+            return properties;
+        }
     }
 
     private String machineClassName;
     private String memoryClassName;
     private String processorClassName;
     private List<String> deviceClassesNames = new LinkedList<String>();
+    private Map<String, String> machineProperties;
+    private Map<String, String> memoryProperties;
+    private Map<String, String> processorProperties;
+    private List<Map<String, String>> devicesProperties = new LinkedList<Map<String, String>>();
 
     public XmlMachineBuilder(String file) throws InvalidConfigurationException {
         try {
@@ -128,9 +157,12 @@ public class XmlMachineBuilder implements MachineBuilder {
         } catch(IllegalArgumentException e) {
             throw new InvalidConfigurationException("Machine  is not configured");
         }
+        setProperties(machine, machineProperties);
 
         try {
-            machine.setProcessor((Processor)instantiateClass(processorClassName));
+            Processor processor = (Processor)instantiateClass(processorClassName);
+            setProperties(processor, processorProperties);
+            machine.setProcessor(processor);
         } catch(ClassCastException e) {
             throw new InvalidConfigurationException("Specified processor type " + processorClassName + " is not actually a processor");
         } catch(IllegalArgumentException e) {
@@ -138,7 +170,9 @@ public class XmlMachineBuilder implements MachineBuilder {
         }
 
         try {
-            machine.setMemory((Memory)instantiateClass(memoryClassName));
+            Memory memory = (Memory)instantiateClass(memoryClassName);
+            setProperties(memory, memoryProperties);
+            machine.setMemory(memory);
         } catch(ClassCastException e) {
             throw new InvalidConfigurationException("Specified memory type " + memoryClassName + " is not actually a memory");
         } catch(IllegalArgumentException e) {
@@ -146,9 +180,12 @@ public class XmlMachineBuilder implements MachineBuilder {
         }
 
         List<Device> devicesList = new ArrayList<Device>(deviceClassesNames.size());
-        for(String name : deviceClassesNames) {
+        for(int i = 0; i < deviceClassesNames.size(); i++) {
+            String name = deviceClassesNames.get(i);
             try {
-                devicesList.add((Device)instantiateClass(name));
+                Device device = (Device)instantiateClass(name);
+                setProperties(device, devicesProperties.get(i));
+                devicesList.add(device);
             } catch(ClassCastException e) {
                 throw new InvalidConfigurationException("Specified device type " + name + " is not actually a device");
             } catch(IllegalArgumentException e) {
@@ -179,4 +216,57 @@ public class XmlMachineBuilder implements MachineBuilder {
             throw new InvalidConfigurationException("Can't create an instance of the class " + name, e);
         }
     }
+
+    /** Set instance properties with its setters */
+    private void setProperties(Object object, Map<String, String> properties) throws InvalidConfigurationException {
+        for(Map.Entry<String, String> property : properties.entrySet()) {
+            String name = property.getKey();
+            String setterName = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+
+            // overloaded setters would be picked in the reflection order
+            Method setter = null;
+            for(Method method : object.getClass().getMethods()) {
+                if(method.getName().equals(setterName) && method.getParameterTypes().length == 1) {
+                    if(setter != null) {
+                        throw new InvalidConfigurationException("Property " + name + " of the class " + object.getClass().getCanonicalName() + " has overloaded setters");
+                    }
+                    setter = method;
+                }
+            }
+
+            if(setter == null) {
+                throw new InvalidConfigurationException("Unknown property " + name + " of the class " + object.getClass().getCanonicalName());
+            }
+
+            try {
+                setter.invoke(object, parseValue(name, setter.getParameterTypes()[0], property.getValue()));
+            } catch(NumberFormatException e) {
+                throw new InvalidConfigurationException("Property " + name + " value is not a number: " + property.getValue(), e);
+            } catch(IllegalAccessException e) {
+                throw new InvalidConfigurationException("Can't set property " + name + " of the class " + object.getClass().getCanonicalName(), e);
+            } catch(InvocationTargetException e) {
+                throw new InvalidConfigurationException("Property " + name + " value is invalid: " + e.getCause().getMessage(), e);
+            }
+        }
+    }
+
+    private Object parseValue(String name, Class<?> type, String value) throws InvalidConfigurationException {
+        if(type == String.class) {
+            return value;
+        } else if(type == boolean.class || type == Boolean.class) {
+            // a typo shouldn't turn a flag off, e.g. write protection
+            if(!value.equals("true") && !value.equals("false")) {
+                throw new InvalidConfigurationException("Property " + name + " value is not a boolean: " + value);
+            }
+            return Boolean.valueOf(value);
+        } else if(type == int.class || type == Integer.class) {
+            return Integer.decode(value);
+        } else if(type == long.class || type == Long.class) {
+            return Long.decode(value);
+        } else if(type == short.class || type == Short.class) {
+            return (short)(int)Integer.decode(value);
+        } else {
+            throw new InvalidConfigurationException("Property type " + type.getCanonicalName() + " is not supported");
+        }
+    }
 }
@@ -26,6 +26,7 @@ public class GenericClock extends Device {
         @Override
         public void run() {
             ticks.incrementAndGet();
+            interruptionBus.wakeup();
 
             short message = intMessage.shortValue();
             if(message != 0) {
@@ -83,6 +83,8 @@ public class GenericKeyboard extends Device {
     }
 
     private void onKeyEvent() {
+        interruptionBus.wakeup();
+
         if(interruptMessage != 0) {
             interruptionBus.interrupt(interruptMessage);
         }
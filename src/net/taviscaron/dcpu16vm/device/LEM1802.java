@@ -1,5 +1,6 @@
 package net.taviscaron.dcpu16vm.device;
 
+import net.taviscaron.dcpu16vm.machine.Memory;
 import net.taviscaron.dcpu16vm.machine.Processor;
 import net.taviscaron.dcpu16vm.machine.device.Device;
 import net.taviscaron.dcpu16vm.machine.device.HardwareInfo;
@@ -10,12 +11,44 @@ import java.awt.EventQueue;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * LEM1802 implementation
+ *
+ * Headless display (headless="true" or a headless JVM) has no window. Frames are rendered by
+ * LEM1802Renderer, pulled with renderFrame or pushed to the frame listeners by the display timer
+ * in both modes.
+ *
+ * With the terminal attribute the display is drawn on an ANSI terminal too, "-" is the standard
+ * output, any other value is a file or a pty path. terminalGlyphs is braille or blocks, frames are
+ * checked terminalRate times a second and the changed characters are written only, see LEM1802Terminal.
+ *
+ * With the framebuffer attribute the frames are published in the memory-mapped file,
+ * so other processes can watch the display, see LEM1802Framebuffer. Remote viewers get
+ * the display words changes by encodeFrame, see LEM1802StreamEncoder.
+ *
+ * Terminal example:
+ * <device type="net.taviscaron.dcpu16vm.device.LEM1802" headless="true" terminal="-" terminalGlyphs="braille" terminalRate="10"/>
+ *
  * @author Andrei Senchuk
  */
 @HardwareInfo(id = 0x7349f615, version = 0x1802, manufacturer = 0x1c6c8b36)
@@ -37,7 +70,7 @@ public class LEM1802 extends Device {
     private static final int REPAINT_FREQ = 20; // Hz
     private static final int BLINK_DELAY = 1000; // msec
 
-    private static final short[] DEFAULT_FONT = new short[]{
+    static final short[] DEFAULT_FONT = new short[]{
         (short) 0x000f, (short) 0x0808,
         (short) 0x080f, (short) 0x0808,
         (short) 0x08f8, (short) 0x0808,
@@ -168,7 +201,7 @@ public class LEM1802 extends Device {
         (short) 0x704c, (short) 0x7000,
     };
     
-    private static final short[] DEFAULT_PALETTE = new short[]{
+    static final short[] DEFAULT_PALETTE = new short[]{
         (short) 0x0000, (short) 0x000a, (short) 0x00a0, (short) 0x00aa,
         (short) 0x0a00, (short) 0x0a0a, (short) 0x0a50, (short) 0x0aaa,
         (short) 0x0555, (short) 0x055f, (short) 0x05f5, (short) 0x05ff,
@@ -182,8 +215,284 @@ public class LEM1802 extends Device {
     private JFrame frame;
     private final Object repaintLockObj = new Object();
 
+    /** Mapped memory regions, written marks tell the repaint timer the screen might look different */
+    private Memory.Region screenRegion;
+    private Memory.Region fontRegion;
+    private Memory.Region paletteRegion;
+
+    /** Memory map or border color has changed since the last repaint check */
+    private volatile boolean mappingChanged = true;
+
+    /** Headless display frame listener */
+    public interface FrameListener {
+        /**
+         * Frame has changed. Called by the display timer thread.
+         * @param pixels ARGB pixels, see LEM1802Renderer. They're reused by the next frame.
+         */
+        public void frameRendered(int[] pixels, int width, int height);
+    }
+
+    private final List<FrameListener> frameListeners = new CopyOnWriteArrayList<FrameListener>();
+    private boolean headless;
+
+    /** Frame listeners timer, it runs while there are listeners only. Guarded by the repaint lock. */
+    private Timer frameTimer;
+    private boolean initialized;
+
+    /** Framebuffer export, guarded by the repaint lock */
+    private String framebuffer;
+    private FrameListener framebufferListener;
+
+    /** Terminal output, guarded by the repaint lock */
+    private String terminal;
+    private LEM1802Terminal.Glyphs terminalGlyphs = LEM1802Terminal.Glyphs.BRAILLE;
+    private int terminalRate = REPAINT_FREQ;
+    private Timer terminalTimer;
+    private TimerTask terminalTask;
+
+    /** Run w/o the window. A headless JVM runs the display headless anyway. */
+    public void setHeadless(boolean headless) {
+        synchronized(repaintLockObj) {
+            this.headless = headless;
+        }
+    }
+
+    public boolean isHeadless() {
+        synchronized(repaintLockObj) {
+            return headless || GraphicsEnvironment.isHeadless();
+        }
+    }
+
+    /** Framebuffer file path, see LEM1802Framebuffer. Applied on init. */
+    public void setFramebuffer(String framebuffer) {
+        synchronized(repaintLockObj) {
+            this.framebuffer = framebuffer;
+        }
+    }
+
+    public String getFramebuffer() {
+        synchronized(repaintLockObj) {
+            return framebuffer;
+        }
+    }
+
+    /** Terminal path, "-" for the standard output. Applied on init. */
+    public void setTerminal(String terminal) {
+        synchronized(repaintLockObj) {
+            this.terminal = terminal;
+        }
+    }
+
+    public String getTerminal() {
+        synchronized(repaintLockObj) {
+            return terminal;
+        }
+    }
+
+    /** Terminal glyphs name, braille or blocks. Applied on init. */
+    public void setTerminalGlyphs(String terminalGlyphs) {
+        synchronized(repaintLockObj) {
+            this.terminalGlyphs = LEM1802Terminal.Glyphs.valueOf(terminalGlyphs.toUpperCase());
+        }
+    }
+
+    public String getTerminalGlyphs() {
+        synchronized(repaintLockObj) {
+            return terminalGlyphs.name().toLowerCase();
+        }
+    }
+
+    /** Terminal frames a second. Applied on init. */
+    public void setTerminalRate(int terminalRate) {
+        if(terminalRate <= 0) {
+            throw new IllegalArgumentException("Terminal rate should be positive: " + terminalRate);
+        }
+        synchronized(repaintLockObj) {
+            this.terminalRate = terminalRate;
+        }
+    }
+
+    public int getTerminalRate() {
+        synchronized(repaintLockObj) {
+            return terminalRate;
+        }
+    }
+
+    public void addFrameListener(FrameListener listener) {
+        frameListeners.add(listener);
+        synchronized(repaintLockObj) {
+            if(initialized) {
+                startFrameTimer();
+            }
+        }
+    }
+
+    public void removeFrameListener(FrameListener listener) {
+        frameListeners.remove(listener);
+    }
+
+    /**
+     * Render the current frame. Any thread might pull frames, every one with its own renderer.
+     * @return true if the frame has changed since the previous one of the renderer
+     */
+    public boolean renderFrame(LEM1802Renderer renderer) {
+        short screen;
+        short font;
+        short palette;
+        short border;
+        synchronized(repaintLockObj) {
+            screen = memMapScreen;
+            font = memMapFont;
+            palette = memMapPalette;
+            border = borderColor;
+        }
+
+        if(memoryBus == null) {
+            return false;
+        }
+
+        return renderer.render(memoryBus.memory(), screen, font, palette, border, isBlinkPhase());
+    }
+
+    /**
+     * Encode the current display state into the stream. Any thread might encode, every one with its own encoder.
+     * @return true if a frame has been sent
+     */
+    public boolean encodeFrame(LEM1802StreamEncoder encoder) throws IOException {
+        short screen;
+        short font;
+        short palette;
+        short border;
+        synchronized(repaintLockObj) {
+            screen = memMapScreen;
+            font = memMapFont;
+            palette = memMapPalette;
+            border = borderColor;
+        }
+
+        if(memoryBus == null) {
+            return false;
+        }
+
+        return encoder.encode(memoryBus.memory(), screen, font, palette, border);
+    }
+
+    /** Blinking cells swap their colors every BLINK_DELAY */
+    private static boolean isBlinkPhase() {
+        return (System.currentTimeMillis() / BLINK_DELAY) % 2 == 1;
+    }
+
+    /** Called under the repaint lock */
+    private void startFrameTimer() {
+        if(frameTimer != null || frameListeners.isEmpty()) {
+            return;
+        }
+
+        final LEM1802Renderer renderer = new LEM1802Renderer();
+        frameTimer = new Timer("LEM1802", true);
+        frameTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                if(!frameListeners.isEmpty() && renderFrame(renderer)) {
+                    for(FrameListener listener : frameListeners) {
+                        listener.frameRendered(renderer.getPixels(), LEM1802Renderer.WIDTH, LEM1802Renderer.HEIGHT);
+                    }
+                }
+            }
+        }, 0, 1000 / REPAINT_FREQ);
+    }
+
+    /** Called under the repaint lock */
+    private void startTerminalTimer() {
+        if(terminal == null || terminalTimer != null) {
+            return;
+        }
+
+        final String path = terminal;
+        final boolean stdout = path.equals("-");
+        final Writer writer;
+        try {
+            OutputStream stream = stdout ? System.out : new FileOutputStream(path);
+            writer = new BufferedWriter(new OutputStreamWriter(stream, Charset.forName("UTF-8")));
+        } catch(IOException e) {
+            System.err.println("Can't open terminal " + path + ": " + e);
+            return;
+        }
+
+        final LEM1802Renderer renderer = new LEM1802Renderer();
+        final LEM1802Terminal output = new LEM1802Terminal(writer, terminalGlyphs);
+        // the task is synchronized, so it isn't closed in the middle of a frame
+        terminalTask = new TimerTask() {
+            private boolean closed;
+
+            @Override
+            public synchronized void run() {
+                try {
+                    if(renderFrame(renderer)) {
+                        output.draw(renderer.getPixels());
+                    }
+                } catch(IOException e) {
+                    System.err.println("Can't write terminal " + path + ": " + e);
+                    cancel();
+                }
+            }
+
+            @Override
+            public synchronized boolean cancel() {
+                if(!closed) {
+                    closed = true;
+                    try {
+                        output.close();
+                        if(!stdout) {
+                            writer.close();
+                        }
+                    } catch(IOException e) {
+                        System.err.println("Can't close terminal " + path + ": " + e);
+                    }
+                }
+                return super.cancel();
+            }
+        };
+        terminalTimer = new Timer("LEM1802 terminal", true);
+        terminalTimer.scheduleAtFixedRate(terminalTask, 0, Math.max(1, 1000 / terminalRate));
+    }
+
+    /** Called under the repaint lock */
+    private void startFramebuffer() {
+        if(framebuffer == null || framebufferListener != null) {
+            return;
+        }
+
+        final LEM1802Framebuffer output;
+        try {
+            output = new LEM1802Framebuffer(new File(framebuffer));
+        } catch(IOException e) {
+            System.err.println("Can't map framebuffer " + framebuffer + ": " + e);
+            return;
+        }
+
+        framebufferListener = new FrameListener() {
+            @Override
+            public void frameRendered(int[] pixels, int width, int height) {
+                output.publish(pixels);
+            }
+        };
+        frameListeners.add(framebufferListener);
+    }
+
     @Override
     public void init() {
+        synchronized(repaintLockObj) {
+            startTerminalTimer();
+            startFramebuffer();
+            initialized = true;
+            startFrameTimer();
+        }
+
+        if(isHeadless()) {
+            return;
+        }
+
         EventQueue.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -202,12 +511,15 @@ public class LEM1802 extends Device {
                 new Timer(true).scheduleAtFixedRate(new TimerTask() {
                     @Override
                     public void run() {
+                        final boolean changed = isDisplayChanged();
                         EventQueue.invokeLater(new Runnable() {
                             @Override
                             public void run() {
-                                paintPane.toggleBlink();
-                                frame.getContentPane().validate();
-                                frame.getContentPane().repaint();
+                                // repaint only if the screen might look different
+                                if(paintPane.toggleBlink() | changed) {
+                                    frame.getContentPane().validate();
+                                    frame.getContentPane().repaint();
+                                }
                             }
                         });
                     }
@@ -216,8 +528,79 @@ public class LEM1802 extends Device {
         });
     }
 
+    /** Check the mapping or the mapped memory has changed since the previous check. Called by the timer thread only. */
+    private boolean isDisplayChanged() {
+        boolean changed = mappingChanged;
+        mappingChanged = false;
+
+        Memory.Region screen;
+        Memory.Region font;
+        Memory.Region palette;
+        synchronized(repaintLockObj) {
+            screen = screenRegion;
+            font = fontRegion;
+            palette = paletteRegion;
+        }
+
+        // take all the marks
+        return changed | isWritten(screen) | isWritten(font) | isWritten(palette);
+    }
+
+    private static boolean isWritten(Memory.Region region) {
+        return region != null && region.takeWritten();
+    }
+
+    /** Map the region or move it, zero offset disconnects it. Called under the repaint lock. */
+    private Memory.Region remap(Memory.Region region, short offset, int length) {
+        int size = (offset != 0) ? length : 0;
+        if(region == null) {
+            return memoryBus.mapRegion(offset, size, null);
+        }
+        region.remap(offset, size);
+        return region;
+    }
+
     @Override
     public void shutdown() {
+        Timer terminalTimer;
+        TimerTask terminalTask;
+        synchronized(repaintLockObj) {
+            for(Memory.Region region : new Memory.Region[] { screenRegion, fontRegion, paletteRegion }) {
+                if(region != null) {
+                    region.unmap();
+                }
+            }
+            screenRegion = null;
+            fontRegion = null;
+            paletteRegion = null;
+
+            if(frameTimer != null) {
+                frameTimer.cancel();
+                frameTimer = null;
+            }
+            initialized = false;
+
+            if(framebufferListener != null) {
+                frameListeners.remove(framebufferListener);
+                framebufferListener = null;
+            }
+
+            terminalTimer = this.terminalTimer;
+            terminalTask = this.terminalTask;
+            this.terminalTimer = null;
+            this.terminalTask = null;
+        }
+
+        // the task renders under the repaint lock, so it's cancelled w/o it
+        if(terminalTimer != null) {
+            terminalTask.cancel();
+            terminalTimer.cancel();
+        }
+
+        if(isHeadless()) {
+            return;
+        }
+
         EventQueue.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -242,12 +625,15 @@ public class LEM1802 extends Device {
                 switch(state.readRegister(Processor.Register.A)) {
                     case MEM_MAP_SCREEN:
                         memMapScreen = regB;
+                        screenRegion = remap(screenRegion, regB, SCREEN_WIDTH * SCREEN_HEIGHT);
                         break;
                     case MEM_MAP_FONT:
                         memMapFont = regB;
+                        fontRegion = remap(fontRegion, regB, DEFAULT_FONT.length);
                         break;
                     case MEM_MAP_PALETTE:
                         memMapPalette = regB;
+                        paletteRegion = remap(paletteRegion, regB, DEFAULT_PALETTE.length);
                         break;
                     case SET_BORDER_COLOR:
                         borderColor = (short)(regB & 0xf);
@@ -255,20 +641,39 @@ public class LEM1802 extends Device {
                     default:
                         break;
                 }
+                mappingChanged = true;
             }
         }
     }
 
+    /**
+     * Window pane. Frames are rendered by LEM1802Renderer into the pixels the image wraps,
+     * so the changed cells are rasterized from the glyph and palette caches and the screen
+     * is blitted by a single scaled drawImage.
+     */
     private class PaintPane extends JPanel {
-        private boolean blink = false;
-        private long lastBlinkChangingTime;
-
-        public void toggleBlink() {
-            long currentTime = System.currentTimeMillis();
-            if(currentTime - lastBlinkChangingTime > BLINK_DELAY) {
-                lastBlinkChangingTime = currentTime;
-                blink = !blink;
+        private final LEM1802Renderer renderer = new LEM1802Renderer();
+        private final BufferedImage image;
+        private boolean blink;
+
+        /** border color, it's created if the border pixel changes only */
+        private Color border;
+
+        public PaintPane() {
+            int[] masks = new int[] { 0xff0000, 0xff00, 0xff };
+            DataBufferInt buffer = new DataBufferInt(renderer.getPixels(), renderer.getPixels().length);
+            WritableRaster raster = Raster.createPackedRaster(buffer, LEM1802Renderer.WIDTH, LEM1802Renderer.HEIGHT, LEM1802Renderer.WIDTH, masks, null);
+            image = new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null);
+        }
+
+        /** @return true if the blink state has been toggled */
+        public boolean toggleBlink() {
+            boolean phase = isBlinkPhase();
+            if(phase != blink) {
+                blink = phase;
+                return true;
             }
+            return false;
         }
 
         @Override
@@ -279,82 +684,23 @@ public class LEM1802 extends Device {
         }
 
         private void safePaint(Graphics g) {
-            // draw border
-            g.setColor(colorForIndex(borderColor));
-            g.fillRect(0, 0, getWidth(), getHeight());
-            
-            // draw background
-            g.setColor(colorForIndex((short)0));
-            g.fillRect(BORDER_SIZE, BORDER_SIZE, getWidth() - 2 * BORDER_SIZE, getHeight() - 2 * BORDER_SIZE);
-            
-            // check screen is connected
-            if(memMapScreen == 0) {
-                return;
-            }
-
-            for(short j = 0; j < SCREEN_HEIGHT; j++) {
-                for(short i = 0; i < SCREEN_WIDTH; i++) {
-                    short memIndex = (short)(memMapScreen + SCREEN_WIDTH * j + i);
-                    short value = memoryBus.memory().readWord(memIndex);
-
-                    short symbolIndex = (short)(value & 0x7f);
-                    short blinking = (short)((value & 0x80) >> 7);
-                    short bgIndex = (short)((value & 0xf00) >> 8);
-                    short fgIndex = (short)((value & 0xf000) >> 12);
-
-                    // swap colors
-                    if(blinking != 0 && blink) {
-                        bgIndex ^= fgIndex;
-                        fgIndex ^= bgIndex;
-                        bgIndex ^= fgIndex;
-                    }
-
-                    // choose color
-                    Color bg = colorForIndex(bgIndex);
-                    Color fg = colorForIndex(fgIndex);
-
-                    // choose symbol
-                    int symbol = symbolForIndex(symbolIndex);
+            // unchanged frame is blitted again, e.g. for an exposed window
+            renderFrame(renderer);
 
-                    drawSymbol(g, i, j, symbol, fg, bg);
-                }
+            int borderRGB = renderer.getPixels()[0] & 0xffffff;
+            if(border == null || border.getRGB() != (0xff000000 | borderRGB)) {
+                border = new Color(borderRGB);
             }
-        }
 
-        private void drawSymbol(Graphics g, short xPos, short yPos, int symbol, Color fg, Color bg) {
-            // draw bg
-            g.setColor(bg);
-            g.fillRect(xPos * CELL_WIDTH * POINT_SIZE + BORDER_SIZE, yPos * CELL_HEIGHT * POINT_SIZE + BORDER_SIZE, CELL_WIDTH * POINT_SIZE, CELL_HEIGHT * POINT_SIZE);
-
-            // draw symbol
-            g.setColor(fg);
+            // border is not scaled
+            g.setColor(border);
+            g.fillRect(0, 0, getWidth(), getHeight());
 
-            for(short i = 0; i < CELL_WIDTH; i++) {
-                for(short j = 0; j < CELL_HEIGHT; j++) {
-                    int pos = (CELL_WIDTH - i - 1) * CELL_HEIGHT + j;
-                    if((symbol & (1 << pos)) != 0) {
-                        g.fillRect((xPos * CELL_WIDTH + i) * POINT_SIZE + BORDER_SIZE, (yPos * CELL_HEIGHT + j) * POINT_SIZE + BORDER_SIZE, POINT_SIZE, POINT_SIZE);
-                    }
-                }
-            }
-        }
-        
-        private Color colorForIndex(short index) {
-            short color = ((memMapPalette != 0) ? memoryBus.memory().readWord((short) (memMapPalette + index)) : DEFAULT_PALETTE[index]);
-            int blue = (color & 0xf) * 0x10;
-            int green = ((color & 0xf0) >> 4) * 0x10;
-            int red = ((color & 0xf00) >> 8) * 0x10;
-            return new Color(red, green, blue);
-        }
-        
-        private int symbolForIndex(short index) {
-            short first = DEFAULT_FONT[index * 2];
-            short second = DEFAULT_FONT[index * 2 + 1];
-            if (memMapFont != 0) {
-                first = memoryBus.memory().readWord((short)(memMapFont + index * 2));
-                second = memoryBus.memory().readWord((short)(memMapFont + index * 2 + 1));
-            }
-            return (first << 16) + (second & 0xffff);
+            int borderSize = LEM1802Renderer.BORDER_SIZE;
+            g.drawImage(image,
+                    BORDER_SIZE, BORDER_SIZE, BORDER_SIZE + LEM1802Renderer.SCREEN_WIDTH * POINT_SIZE, BORDER_SIZE + LEM1802Renderer.SCREEN_HEIGHT * POINT_SIZE,
+                    borderSize, borderSize, borderSize + LEM1802Renderer.SCREEN_WIDTH, borderSize + LEM1802Renderer.SCREEN_HEIGHT,
+                    null);
         }
     }
 }
@@ -0,0 +1,105 @@
+package net.taviscaron.dcpu16vm.device;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LEM1802 frames published in a memory-mapped file, so other processes can watch the display
+ * by mapping the file, see LEM1802FramebufferReader.
+ *
+ * File layout, little-endian:
+ * 0   8 bytes magic LEM1802F
+ * 8   int version
+ * 12  int width
+ * 16  int height
+ * 20  int reserved
+ * 24  long sequence
+ * 32  width * height ARGB pixels, row by row
+ *
+ * The sequence is a seqlock: it's odd while a frame is being written and even when the frame
+ * is complete. A reader copies the pixels and keeps them if the sequence was the same even
+ * number before and after the copy.
+ *
+ * @author Andrei Senchuk
+ */
+public class LEM1802Framebuffer {
+    public static final byte[] MAGIC = new byte[] { 'L', 'E', 'M', '1', '8', '0', '2', 'F' };
+    public static final int VERSION = 1;
+    public static final int VERSION_OFFSET = 8;
+    public static final int WIDTH_OFFSET = 12;
+    public static final int HEIGHT_OFFSET = 16;
+    public static final int SEQUENCE_OFFSET = 24;
+    public static final int PIXELS_OFFSET = 32;
+    public static final int SIZE_IN_BYTES = PIXELS_OFFSET + LEM1802Renderer.WIDTH * LEM1802Renderer.HEIGHT * 4;
+
+    /** sequence accesses, the mapping is page aligned so the field is aligned too */
+    static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final MappedByteBuffer buffer;
+    private final IntBuffer pixels;
+    private long sequence;
+
+    /** Create the file or take it over, the previous frame stays until the first publish */
+    public LEM1802Framebuffer(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(SIZE_IN_BYTES);
+
+            // the mapping stays valid after the channel is closed
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE_IN_BYTES);
+        } finally {
+            randomAccessFile.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        // go on with the sequence of the previous writer, so readers don't take its frame for a new one
+        sequence = ((long)LONGS.getAcquire(buffer, SEQUENCE_OFFSET) + 1) & ~1L;
+        LONGS.setRelease(buffer, SEQUENCE_OFFSET, sequence);
+
+        buffer.put(0, MAGIC[0]);
+        for(int i = 1; i < MAGIC.length; i++) {
+            buffer.put(i, MAGIC[i]);
+        }
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(WIDTH_OFFSET, LEM1802Renderer.WIDTH);
+        buffer.putInt(HEIGHT_OFFSET, LEM1802Renderer.HEIGHT);
+
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.position(PIXELS_OFFSET);
+        pixels = view.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /** @return sequence of the last published frame */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Publish the frame. Frames are published by a single thread.
+     * @param frame pixels of LEM1802Renderer
+     */
+    public void publish(int[] frame) {
+        // odd sequence tells the readers the pixels are being written
+        LONGS.setOpaque(buffer, SEQUENCE_OFFSET, sequence + 1);
+        VarHandle.storeStoreFence();
+
+        pixels.clear();
+        pixels.put(frame, 0, LEM1802Renderer.WIDTH * LEM1802Renderer.HEIGHT);
+
+        sequence += 2;
+        LONGS.setRelease(buffer, SEQUENCE_OFFSET, sequence);
+    }
+
+    /** Write the frame to the file. The OS writes it anyway, it's only needed to survive the OS crash. */
+    public void flush() {
+        buffer.force();
+    }
+}
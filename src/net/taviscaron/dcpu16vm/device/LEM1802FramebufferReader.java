@@ -0,0 +1,128 @@
+package net.taviscaron.dcpu16vm.device;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reference reader of the LEM1802Framebuffer file. It maps the file read-only and copies
+ * the frames consistently with the seqlock.
+ *
+ * Usage: LEM1802FramebufferReader file [seconds]
+ * Prints the frames read and the copies retried because of the concurrent writes every second.
+ *
+ * @author Andrei Senchuk
+ */
+public class LEM1802FramebufferReader {
+    private final MappedByteBuffer buffer;
+    private final IntBuffer pixels;
+    private final int width;
+    private final int height;
+    private long retries;
+
+    public LEM1802FramebufferReader(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if(randomAccessFile.length() < LEM1802Framebuffer.PIXELS_OFFSET) {
+                throw new IOException("Not a framebuffer file " + file);
+            }
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        for(int i = 0; i < LEM1802Framebuffer.MAGIC.length; i++) {
+            if(buffer.get(i) != LEM1802Framebuffer.MAGIC[i]) {
+                throw new IOException("Not a framebuffer file " + file);
+            }
+        }
+        if(buffer.getInt(LEM1802Framebuffer.VERSION_OFFSET) != LEM1802Framebuffer.VERSION) {
+            throw new IOException("Unsupported framebuffer version " + buffer.getInt(LEM1802Framebuffer.VERSION_OFFSET));
+        }
+
+        width = buffer.getInt(LEM1802Framebuffer.WIDTH_OFFSET);
+        height = buffer.getInt(LEM1802Framebuffer.HEIGHT_OFFSET);
+        if(width <= 0 || height <= 0 || buffer.capacity() < LEM1802Framebuffer.PIXELS_OFFSET + (long)width * height * 4) {
+            throw new IOException("Truncated framebuffer file " + file);
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(LEM1802Framebuffer.PIXELS_OFFSET);
+        pixels = view.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** @return copies retried because a frame was being written */
+    public long getRetries() {
+        return retries;
+    }
+
+    /** @return sequence of the last complete frame, odd while the next one is being written */
+    public long getSequence() {
+        return (long)LEM1802Framebuffer.LONGS.getAcquire(buffer, LEM1802Framebuffer.SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Copy the current frame, spins while it's being written
+     * @param frame width * height pixels
+     * @return sequence of the copied frame
+     */
+    public long read(int[] frame) {
+        while(true) {
+            long before = getSequence();
+            if((before & 1) == 0) {
+                pixels.clear();
+                pixels.get(frame, 0, width * height);
+
+                // the pixels are read before the sequence is checked again
+                VarHandle.loadLoadFence();
+                long after = (long)LEM1802Framebuffer.LONGS.getOpaque(buffer, LEM1802Framebuffer.SEQUENCE_OFFSET);
+                if(before == after) {
+                    return before;
+                }
+            }
+            retries++;
+            Thread.yield();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length < 1) {
+            System.err.println("Usage: LEM1802FramebufferReader file [seconds]");
+            System.exit(1);
+        }
+
+        LEM1802FramebufferReader reader = new LEM1802FramebufferReader(new File(args[0]));
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+        int[] frame = new int[reader.getWidth() * reader.getHeight()];
+
+        long last = -1;
+        for(int second = 0; second < seconds; second++) {
+            long frames = 0;
+            long end = System.currentTimeMillis() + 1000;
+            while(System.currentTimeMillis() < end) {
+                if(reader.getSequence() != last) {
+                    last = reader.read(frame);
+                    frames++;
+                } else {
+                    Thread.sleep(1);
+                }
+            }
+            System.out.printf("sequence %d: %d frames, %d retries%n", last, frames, reader.getRetries());
+        }
+    }
+}
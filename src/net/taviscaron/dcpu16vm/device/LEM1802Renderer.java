@@ -0,0 +1,216 @@
+package net.taviscaron.dcpu16vm.device;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+
+import java.util.Arrays;
+
+/**
+ * LEM1802 rasterizer w/o AWT. Renders the screen with the border into an ARGB pixels
+ * array, row by row, which is reused by the frames.
+ *
+ * A frame redraws the cells whose word, glyph or colors changed since the previous one,
+ * the blinking cells on the blink phase change and the border if its color changed.
+ * The renderer isn't thread safe, a thread renders its own renderer.
+ *
+ * @author Andrei Senchuk
+ */
+public class LEM1802Renderer {
+    public static final int SCREEN_WIDTH = 128;
+    public static final int SCREEN_HEIGHT = 96;
+    public static final int BORDER_SIZE = 4;
+    public static final int WIDTH = SCREEN_WIDTH + 2 * BORDER_SIZE;
+    public static final int HEIGHT = SCREEN_HEIGHT + 2 * BORDER_SIZE;
+
+    private static final int COLUMNS = 32;
+    private static final int ROWS = 12;
+    private static final int CELL_WIDTH = 4;
+    private static final int CELL_HEIGHT = 8;
+    private static final int CELLS = COLUMNS * ROWS;
+    private static final int GLYPHS = 128;
+    private static final int COLORS = 16;
+
+    private final int[] pixels = new int[WIDTH * HEIGHT];
+
+    /** words of the frame being rendered and of the previous one */
+    private short[] screen = new short[CELLS];
+    private short[] font = new short[GLYPHS * 2];
+    private short[] palette = new short[COLORS];
+    private short[] lastScreen = new short[CELLS];
+    private short[] lastFont = new short[GLYPHS * 2];
+    private short[] lastPalette = new short[COLORS];
+    private int lastBorder;
+    private boolean lastBlink;
+
+    /** nothing has been rendered yet */
+    private boolean initial = true;
+
+    /** packed palette and pre-rasterized glyphs, rebuilt for the changed entries only */
+    private final int[] colors = new int[COLORS];
+    private final int[] glyphs = new int[GLYPHS];
+    private final boolean[] changedGlyphs = new boolean[GLYPHS];
+    private int redrawnCells;
+
+    /** Frame pixels, 0xAARRGGBB of (x, y) at [y * WIDTH + x] */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /** Cells redrawn by the last frame */
+    public int getRedrawnCells() {
+        return redrawnCells;
+    }
+
+    /** Redraw everything on the next frame */
+    public void invalidate() {
+        initial = true;
+    }
+
+    /**
+     * Render the frame
+     * @param memory memory the words are read from with readBlock, so any thread can render
+     * @param screenOffset video ram, 0 if the screen is disconnected
+     * @param fontOffset font ram, 0 for the default font
+     * @param paletteOffset palette ram, 0 for the default palette
+     * @param border border palette index
+     * @param blink blinking cells have their colors swapped
+     * @return true if any pixel might have changed
+     */
+    public boolean render(Memory memory, short screenOffset, short fontOffset, short paletteOffset, int border, boolean blink) {
+        readMapped(memory, paletteOffset, LEM1802.DEFAULT_PALETTE, palette, 0);
+        readMapped(memory, fontOffset, LEM1802.DEFAULT_FONT, font, 0);
+        if(screenOffset != 0) {
+            memory.readBlock(screenOffset, screen, 0, CELLS);
+        } else {
+            // disconnected screen shows the background
+            Arrays.fill(screen, (short)0);
+        }
+        return renderWords(border, blink);
+    }
+
+    /**
+     * Render the frame of the words, e.g. decoded from a LEM1802 stream
+     * @param screenWords 384 cell words, zeros for the disconnected screen
+     * @param fontWords 256 font words
+     * @param paletteWords 16 palette words
+     * @return true if any pixel might have changed
+     */
+    public boolean render(short[] screenWords, short[] fontWords, short[] paletteWords, int border, boolean blink) {
+        System.arraycopy(screenWords, 0, screen, 0, CELLS);
+        System.arraycopy(fontWords, 0, font, 0, GLYPHS * 2);
+        System.arraycopy(paletteWords, 0, palette, 0, COLORS);
+        return renderWords(border, blink);
+    }
+
+    private boolean renderWords(int border, boolean blink) {
+        int changedColors = 0;
+        for(int i = 0; i < COLORS; i++) {
+            if(initial || palette[i] != lastPalette[i]) {
+                changedColors |= 1 << i;
+                colors[i] = colorForWord(palette[i]);
+            }
+        }
+
+        for(int i = 0; i < GLYPHS; i++) {
+            changedGlyphs[i] = initial || font[i * 2] != lastFont[i * 2] || font[i * 2 + 1] != lastFont[i * 2 + 1];
+            if(changedGlyphs[i]) {
+                glyphs[i] = rasterize(font[i * 2], font[i * 2 + 1]);
+            }
+        }
+
+        boolean blinkChanged = (blink != lastBlink);
+        redrawnCells = 0;
+        for(int cell = 0; cell < CELLS; cell++) {
+            int word = screen[cell] & 0xffff;
+            int fg = word >> 12;
+            int bg = (word >> 8) & 0xf;
+            boolean blinking = (word & 0x80) != 0;
+
+            if(initial || word != (lastScreen[cell] & 0xffff) || changedGlyphs[word & 0x7f]
+                    || ((changedColors >> fg) & 1) != 0 || ((changedColors >> bg) & 1) != 0 || (blinking && blinkChanged)) {
+                if(blinking && blink) {
+                    drawCell(cell, word & 0x7f, colors[bg], colors[fg]);
+                } else {
+                    drawCell(cell, word & 0x7f, colors[fg], colors[bg]);
+                }
+                redrawnCells++;
+            }
+        }
+
+        border &= 0xf;
+        boolean borderChanged = initial || border != lastBorder || ((changedColors >> border) & 1) != 0;
+        if(borderChanged) {
+            drawBorder(colors[border]);
+        }
+
+        // the current words become the previous ones
+        short[] swap = lastScreen;
+        lastScreen = screen;
+        screen = swap;
+        swap = lastFont;
+        lastFont = font;
+        font = swap;
+        swap = lastPalette;
+        lastPalette = palette;
+        palette = swap;
+        lastBorder = border;
+        lastBlink = blink;
+        initial = false;
+
+        return redrawnCells != 0 || borderChanged;
+    }
+
+    /** Read the mapped words or take the defaults if it isn't mapped */
+    static void readMapped(Memory memory, short offset, short[] defaults, short[] words, int from) {
+        if(offset != 0) {
+            memory.readBlock(offset, words, from, defaults.length);
+        } else {
+            System.arraycopy(defaults, 0, words, from, defaults.length);
+        }
+    }
+
+    /**
+     * Glyph columns are the bytes of its two words, the first one in the high byte, the top row in the low bit.
+     * @return glyph pixels row by row, (x, y) in the bit y * CELL_WIDTH + x
+     */
+    private static int rasterize(short first, short second) {
+        int bits = (first << 16) | (second & 0xffff);
+        int glyph = 0;
+        for(int x = 0; x < CELL_WIDTH; x++) {
+            int column = bits >>> ((CELL_WIDTH - x - 1) * CELL_HEIGHT);
+            for(int y = 0; y < CELL_HEIGHT; y++) {
+                glyph |= ((column >> y) & 1) << (y * CELL_WIDTH + x);
+            }
+        }
+        return glyph;
+    }
+
+    private void drawCell(int cell, int glyph, int fg, int bg) {
+        int bits = glyphs[glyph];
+        int index = (BORDER_SIZE + (cell / COLUMNS) * CELL_HEIGHT) * WIDTH + BORDER_SIZE + (cell % COLUMNS) * CELL_WIDTH;
+        for(int y = 0; y < CELL_HEIGHT; y++) {
+            pixels[index] = ((bits & 1) != 0) ? fg : bg;
+            pixels[index + 1] = ((bits & 2) != 0) ? fg : bg;
+            pixels[index + 2] = ((bits & 4) != 0) ? fg : bg;
+            pixels[index + 3] = ((bits & 8) != 0) ? fg : bg;
+            bits >>>= CELL_WIDTH;
+            index += WIDTH;
+        }
+    }
+
+    private void drawBorder(int color) {
+        Arrays.fill(pixels, 0, BORDER_SIZE * WIDTH, color);
+        Arrays.fill(pixels, (HEIGHT - BORDER_SIZE) * WIDTH, HEIGHT * WIDTH, color);
+        for(int y = BORDER_SIZE; y < HEIGHT - BORDER_SIZE; y++) {
+            Arrays.fill(pixels, y * WIDTH, y * WIDTH + BORDER_SIZE, color);
+            Arrays.fill(pixels, (y + 1) * WIDTH - BORDER_SIZE, (y + 1) * WIDTH, color);
+        }
+    }
+
+    /** Palette word is 0x0rgb, 4 bits a channel, as the window paints it */
+    private static int colorForWord(short color) {
+        int blue = (color & 0xf) * 0x10;
+        int green = ((color & 0xf0) >> 4) * 0x10;
+        int red = ((color & 0xf00) >> 8) * 0x10;
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+}
@@ -0,0 +1,160 @@
+package net.taviscaron.dcpu16vm.device;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * LEM1802 screen stream decoder, see LEM1802StreamEncoder for the format.
+ * Every frame read updates the display words, which are rendered by LEM1802Renderer.
+ * The stream may start at any keyframe, e.g. of a viewer joining it.
+ *
+ * @author Andrei Senchuk
+ */
+public class LEM1802StreamDecoder {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(LEM1802StreamEncoder.STATE_WORDS * 2);
+
+    private final short[] screen = new short[LEM1802StreamEncoder.SCREEN_WORDS];
+    private final short[] font = new short[LEM1802StreamEncoder.FONT_WORDS];
+    private final short[] palette = new short[LEM1802StreamEncoder.PALETTE_WORDS];
+    private int border;
+
+    private boolean headerRead;
+    private boolean keyframeRead;
+    private long frames;
+
+    /** @param channel blocking channel */
+    public LEM1802StreamDecoder(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public short[] getScreen() {
+        return screen;
+    }
+
+    public short[] getFont() {
+        return font;
+    }
+
+    public short[] getPalette() {
+        return palette;
+    }
+
+    public int getBorder() {
+        return border;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Read the next frame
+     * @return false at the end of the stream
+     * @throws IOException on a broken or truncated stream
+     */
+    public boolean next() throws IOException {
+        if(!read(1, true)) {
+            return false;
+        }
+        int type = buffer.get();
+
+        // keyframes start with the header, frame types differ from the magic
+        if(type == LEM1802StreamEncoder.MAGIC[0]) {
+            read(LEM1802StreamEncoder.MAGIC.length, false);
+            for(int i = 1; i < LEM1802StreamEncoder.MAGIC.length; i++) {
+                if(buffer.get() != LEM1802StreamEncoder.MAGIC[i]) {
+                    throw new IOException("Not a LEM1802 stream");
+                }
+            }
+            int version = buffer.get();
+            if(version != LEM1802StreamEncoder.VERSION) {
+                throw new IOException("Unsupported LEM1802 stream version " + version);
+            }
+            headerRead = true;
+
+            read(1, false);
+            type = buffer.get();
+        } else if(!headerRead) {
+            throw new IOException("Not a LEM1802 stream");
+        }
+
+        read(1, false);
+        int nextBorder = buffer.get() & 0xf;
+
+        switch(type) {
+            case LEM1802StreamEncoder.KEYFRAME:
+                read(LEM1802StreamEncoder.STATE_WORDS * 2, false);
+                for(int i = 0; i < LEM1802StreamEncoder.STATE_WORDS; i++) {
+                    setWord(i, buffer.getShort());
+                }
+                keyframeRead = true;
+                break;
+            case LEM1802StreamEncoder.DELTA:
+                if(!keyframeRead) {
+                    throw new IOException("LEM1802 stream delta before the keyframe");
+                }
+                read(2, false);
+                int runs = buffer.getShort() & 0xffff;
+                for(int run = 0; run < runs; run++) {
+                    read(3, false);
+                    int start = buffer.getShort() & 0xffff;
+                    int length = buffer.get() & 0xff;
+                    if(start + length > LEM1802StreamEncoder.STATE_WORDS) {
+                        throw new IOException("LEM1802 stream run is out of the display words: " + start + "+" + length);
+                    }
+                    read(length * 2, false);
+                    for(int i = start; i < start + length; i++) {
+                        setWord(i, buffer.getShort());
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Unknown LEM1802 stream frame type " + type);
+        }
+
+        border = nextBorder;
+        frames++;
+        return true;
+    }
+
+    /**
+     * Render the display words
+     * @return true if the frame has changed since the previous one of the renderer
+     */
+    public boolean render(LEM1802Renderer renderer, boolean blink) {
+        return renderer.render(screen, font, palette, border, blink);
+    }
+
+    private void setWord(int index, short word) {
+        if(index < LEM1802StreamEncoder.FONT_START) {
+            screen[index] = word;
+        } else if(index < LEM1802StreamEncoder.PALETTE_START) {
+            font[index - LEM1802StreamEncoder.FONT_START] = word;
+        } else {
+            palette[index - LEM1802StreamEncoder.PALETTE_START] = word;
+        }
+    }
+
+    /**
+     * Read the bytes into the buffer and flip it
+     * @param endAllowed the stream might end before the bytes
+     * @return false if the stream has ended
+     */
+    private boolean read(int length, boolean endAllowed) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                if(endAllowed && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated LEM1802 stream");
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+}
@@ -0,0 +1,167 @@
+package net.taviscaron.dcpu16vm.device;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * LEM1802 screen stream encoder. The display words are sent once in a keyframe, then
+ * the frames carry the runs of the words changed since the previous one only, an unchanged
+ * frame isn't sent at all. See LEM1802StreamDecoder.
+ *
+ * Stream, big-endian:
+ * header    4 bytes magic LEMS, byte version, it starts every keyframe
+ * keyframe  byte 1, byte border, 384 screen words, 256 font words, 16 palette words
+ * delta     byte 2, byte border, short runs count, runs
+ * run       short first word, byte words count, words
+ *
+ * Words of the keyframe and of the runs are indexed together: the screen from 0, the font
+ * from 384, the palette from 640. A disconnected screen is sent as zeros, the default font
+ * and palette as their words, so the decoder doesn't need to know the display state.
+ *
+ * A viewer can join the stream at a keyframe only, frames aren't length prefixed. A channel
+ * fanning the stream out should attach the viewer between encode calls and request a keyframe.
+ *
+ * @author Andrei Senchuk
+ */
+public class LEM1802StreamEncoder {
+    static final byte[] MAGIC = new byte[] { 'L', 'E', 'M', 'S' };
+    static final int VERSION = 1;
+    static final int KEYFRAME = 1;
+    static final int DELTA = 2;
+
+    static final int SCREEN_WORDS = 384;
+    static final int FONT_WORDS = 256;
+    static final int PALETTE_WORDS = 16;
+    static final int FONT_START = SCREEN_WORDS;
+    static final int PALETTE_START = FONT_START + FONT_WORDS;
+    static final int STATE_WORDS = PALETTE_START + PALETTE_WORDS;
+    static final int MAX_RUN = 0xff;
+
+    /** unchanged words a run takes in rather than starting a new run, its header is 3 bytes */
+    private static final int RUN_GAP = 1;
+
+    /** header and a run for every word, more than any message takes */
+    private static final int MAX_MESSAGE = MAGIC.length + 1 + 4 + STATE_WORDS * 5;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE);
+
+    /** words of the frame being encoded and of the previous one */
+    private short[] state = new short[STATE_WORDS];
+    private short[] last = new short[STATE_WORDS];
+    private int lastBorder;
+
+    private boolean keyframe = true;
+    private long bytesWritten;
+    private long frames;
+
+    /** @param channel blocking channel, e.g. a file, a pipe or a socket */
+    public LEM1802StreamEncoder(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /** Send the header and the keyframe next, e.g. for a viewer joining the stream, see the class docs */
+    public void requestKeyframe() {
+        keyframe = true;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** @return frames sent, keyframes included */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Encode the display state
+     * @param memory memory the words are read from with readBlock
+     * @param screenOffset video ram, 0 if the screen is disconnected
+     * @param fontOffset font ram, 0 for the default font
+     * @param paletteOffset palette ram, 0 for the default palette
+     * @param border border palette index
+     * @return true if a frame has been sent
+     */
+    public boolean encode(Memory memory, short screenOffset, short fontOffset, short paletteOffset, int border) throws IOException {
+        if(screenOffset != 0) {
+            memory.readBlock(screenOffset, state, 0, SCREEN_WORDS);
+        } else {
+            Arrays.fill(state, 0, SCREEN_WORDS, (short)0);
+        }
+        LEM1802Renderer.readMapped(memory, fontOffset, LEM1802.DEFAULT_FONT, state, FONT_START);
+        LEM1802Renderer.readMapped(memory, paletteOffset, LEM1802.DEFAULT_PALETTE, state, PALETTE_START);
+        border &= 0xf;
+
+        buffer.clear();
+        boolean changed = keyframe ? putKeyframe(border) : putDelta(border);
+        if(changed) {
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                bytesWritten += channel.write(buffer);
+            }
+            keyframe = false;
+            frames++;
+        }
+
+        // the current words become the previous ones
+        short[] swap = last;
+        last = state;
+        state = swap;
+        lastBorder = border;
+        return changed;
+    }
+
+    private boolean putKeyframe(int border) {
+        buffer.put(MAGIC);
+        buffer.put((byte)VERSION);
+        buffer.put((byte)KEYFRAME);
+        buffer.put((byte)border);
+        for(short word : state) {
+            buffer.putShort(word);
+        }
+        return true;
+    }
+
+    private boolean putDelta(int border) {
+        buffer.put((byte)DELTA);
+        buffer.put((byte)border);
+        int runsPosition = buffer.position();
+        buffer.putShort((short)0);
+
+        int runs = 0;
+        int i = 0;
+        while(i < STATE_WORDS) {
+            if(state[i] == last[i]) {
+                i++;
+                continue;
+            }
+
+            // the run ends at the last changed word before a longer gap
+            int start = i;
+            int end = i + 1;
+            for(int j = end; j < STATE_WORDS && j < start + MAX_RUN; j++) {
+                if(state[j] != last[j]) {
+                    end = j + 1;
+                } else if(j - end >= RUN_GAP) {
+                    break;
+                }
+            }
+
+            buffer.putShort((short)start);
+            buffer.put((byte)(end - start));
+            for(int j = start; j < end; j++) {
+                buffer.putShort(state[j]);
+            }
+            runs++;
+            i = end;
+        }
+
+        buffer.putShort(runsPosition, (short)runs);
+        return runs != 0 || border != lastBorder;
+    }
+}
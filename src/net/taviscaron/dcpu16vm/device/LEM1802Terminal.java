@@ -0,0 +1,180 @@
+package net.taviscaron.dcpu16vm.device;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Draws LEM1802Renderer frames on an ANSI terminal with 24-bit colors.
+ *
+ * A terminal character shows a block of the frame pixels with Unicode braille (2x4 pixels) or
+ * quadrant block (2x2 pixels) glyphs. Blocks never cross the cells and the border, so a block
+ * has two colors at most, the foreground and the background of the character.
+ *
+ * A frame writes the characters that changed since the previous one only, cursor moves and
+ * color changes are skipped if the terminal is already there.
+ *
+ * @author Andrei Senchuk
+ */
+public class LEM1802Terminal {
+    private static final String ESC = "\u001b[";
+
+    /** Pixels a terminal character shows */
+    public enum Glyphs {
+        BRAILLE(2, 4),
+        BLOCKS(2, 2);
+
+        private final int width;
+        private final int height;
+
+        private Glyphs(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /** quadrant characters by the mask of the upper left (1), upper right (2), lower left (4), lower right (8) pixels */
+    private static final char[] QUADRANTS = new char[] {
+        ' ', '\u2598', '\u259d', '\u2580', '\u2596', '\u258c', '\u259e', '\u259b',
+        '\u2597', '\u259a', '\u2590', '\u259c', '\u2584', '\u2599', '\u259f', '\u2588',
+    };
+
+    /** braille dots of the pixels of the 2x4 block, row by row */
+    private static final int[] BRAILLE_DOTS = new int[] { 0x01, 0x08, 0x02, 0x10, 0x04, 0x20, 0x40, 0x80 };
+
+    private final Writer out;
+    private final Glyphs glyphs;
+    private final int columns;
+    private final int rows;
+
+    /** characters on the terminal, their colors are 0xRRGGBB */
+    private final char[] lastChars;
+    private final int[] lastFg;
+    private final int[] lastBg;
+
+    /** terminal state after the previous frame, -1 if it's unknown */
+    private int cursor = -1;
+    private int currentFg = -1;
+    private int currentBg = -1;
+    private boolean initial = true;
+
+    private final StringBuilder frame = new StringBuilder();
+
+    public LEM1802Terminal(Writer out, Glyphs glyphs) {
+        this.out = out;
+        this.glyphs = glyphs;
+        this.columns = LEM1802Renderer.WIDTH / glyphs.width;
+        this.rows = LEM1802Renderer.HEIGHT / glyphs.height;
+        this.lastChars = new char[columns * rows];
+        this.lastFg = new int[columns * rows];
+        this.lastBg = new int[columns * rows];
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /** Clear the terminal and write every character on the next frame */
+    public void invalidate() {
+        initial = true;
+    }
+
+    /**
+     * Write the frame changes
+     * @param pixels frame of LEM1802Renderer
+     * @return characters written
+     */
+    public int draw(int[] pixels) throws IOException {
+        frame.setLength(0);
+        if(initial) {
+            // hide the cursor and clear
+            frame.append(ESC).append("?25l").append(ESC).append("0m").append(ESC).append("2J");
+            cursor = -1;
+            currentFg = -1;
+            currentBg = -1;
+        }
+
+        int written = 0;
+        for(int row = 0; row < rows; row++) {
+            for(int column = 0; column < columns; column++) {
+                int base = row * glyphs.height * LEM1802Renderer.WIDTH + column * glyphs.width;
+                int bg = pixels[base] & 0xffffff;
+                int fg = bg;
+                int mask = 0;
+                int bit = 0;
+                for(int y = 0; y < glyphs.height; y++) {
+                    for(int x = 0; x < glyphs.width; x++, bit++) {
+                        int color = pixels[base + y * LEM1802Renderer.WIDTH + x] & 0xffffff;
+                        if(color != bg) {
+                            fg = color;
+                            mask |= 1 << bit;
+                        }
+                    }
+                }
+
+                char c = glyph(mask);
+                int index = row * columns + column;
+                if(!initial && c == lastChars[index] && fg == lastFg[index] && bg == lastBg[index]) {
+                    continue;
+                }
+                lastChars[index] = c;
+                lastFg[index] = fg;
+                lastBg[index] = bg;
+
+                if(cursor != index) {
+                    frame.append(ESC).append(row + 1).append(';').append(column + 1).append('H');
+                }
+                if(mask != 0 && fg != currentFg) {
+                    appendColor(38, fg);
+                    currentFg = fg;
+                }
+                if(bg != currentBg) {
+                    appendColor(48, bg);
+                    currentBg = bg;
+                }
+                frame.append(c);
+
+                // the cursor stays at the last column
+                cursor = (column + 1 < columns) ? index + 1 : -1;
+                written++;
+            }
+        }
+        initial = false;
+
+        if(frame.length() > 0) {
+            out.append(frame);
+            out.flush();
+        }
+        return written;
+    }
+
+    /** Reset the colors, show the cursor and move it below the screen */
+    public void close() throws IOException {
+        out.append(ESC).append("0m").append(ESC).append(String.valueOf(rows + 1)).append(";1H").append(ESC).append("?25h");
+        out.flush();
+    }
+
+    private char glyph(int mask) {
+        if(glyphs == Glyphs.BLOCKS || mask == 0) {
+            return QUADRANTS[mask];
+        }
+
+        int dots = 0;
+        for(int bit = 0; bit < BRAILLE_DOTS.length; bit++) {
+            if((mask & (1 << bit)) != 0) {
+                dots |= BRAILLE_DOTS[bit];
+            }
+        }
+        return (char)(0x2800 + dots);
+    }
+
+    private void appendColor(int code, int rgb) {
+        frame.append(ESC).append(code).append(";2;")
+                .append((rgb >> 16) & 0xff).append(';')
+                .append((rgb >> 8) & 0xff).append(';')
+                .append(rgb & 0xff).append('m');
+    }
+}
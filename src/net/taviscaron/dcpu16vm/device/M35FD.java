@@ -1,8 +1,14 @@
 package net.taviscaron.dcpu16vm.device;
 
+import net.taviscaron.dcpu16vm.device.disk.CachedDiskImage;
+import net.taviscaron.dcpu16vm.device.disk.DiskImage;
+import net.taviscaron.dcpu16vm.device.disk.FileDiskImage;
+import net.taviscaron.dcpu16vm.device.disk.MappedDiskImage;
+import net.taviscaron.dcpu16vm.device.disk.OverlayDiskImage;
 import net.taviscaron.dcpu16vm.machine.Processor;
 import net.taviscaron.dcpu16vm.machine.device.Device;
 import net.taviscaron.dcpu16vm.machine.device.HardwareInfo;
+import net.taviscaron.dcpu16vm.util.VirtualThreads;
 
 import javax.swing.GroupLayout;
 import javax.swing.JButton;
@@ -11,26 +17,53 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.LayoutStyle;
 import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Mackapar 3.5" Floppy Drive (M35FD)
+ *
+ * An operation is transferred at once and completes at the deadline the drive would finish it:
+ * head seeking by 2.4 ms per track plus the sector at 30700 words per second. In the turbo mode
+ * it completes as soon as the disk image is read or written.
+ *
+ * Disk images are memory mapped unless mapped="false". The durability attribute sets when written
+ * sectors reach the host disk, see DiskImage.Durability, flushInterval is in milliseconds.
+ * Sectors are cached, cacheSize="0" disables the cache, see CachedDiskImage. The cache saves
+ * host disk accesses only, the emulated timing is the same.
+ *
+ * With the overlay attribute the inserted image is a read-only base shared by the machines,
+ * sectors written by this one are kept in the overlay file, see OverlayDiskImage.
+ *
+ * Headless drive (headless="true" or a headless JVM) has no window and doesn't start AWT.
+ * Disks are inserted with the image attribute on init or with insert/eject, which interrupt
+ * the processor as the window buttons do.
+ *
+ * Headless example:
+ * <device type="net.taviscaron.dcpu16vm.device.M35FD" headless="true" image="boot.img" writeProtected="true"/>
+ *
+ * Example:
+ * <device type="net.taviscaron.dcpu16vm.device.M35FD" turbo="true" durability="interval" flushInterval="1000"/>
+ *
  * @author Andrei Senchuk
  */
 @HardwareInfo(id = 0x4fd524c5, version = 0x000b, manufacturer = 0x1eb37e91)
 public class M35FD extends Device {
     /** common const */
-    private static final int SIZE_IN_WORDS = 737280;
+    private static final int SIZE_IN_WORDS = DiskImage.SECTORS_COUNT * DiskImage.SECTOR_SIZE;
     private static final int SPEED_IN_WORDS_PER_SEC = 30700;
     private static final int TRACK_SEEKING_MICROSECONDS = 2400;
-    private static final int SECTOR_SIZE = 512;
+    private static final int SECTOR_SIZE = DiskImage.SECTOR_SIZE;
+    private static final int SECTORS_PER_TRACK = DiskImage.SECTORS_PER_TRACK;
+    private static final long SECTOR_TRANSFER_NANOS = SECTOR_SIZE * 1000000000L / SPEED_IN_WORDS_PER_SEC;
 
     /** interrupts */
     private static final int POLL_DEVICE_INT = 0x0000;
@@ -51,46 +84,297 @@ public class M35FD extends Device {
     private static final short ERROR_BAD_SECTOR = 0x0005;
     private static final short ERROR_BROKEN = (short)0xffff;
     
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private final Object lock = new Object();
+    /** IO operations and their completions. They don't sleep, the completion is scheduled at the deadline. */
+    private final ScheduledExecutorService executor = (VirtualThreads.isSupported()) ? Executors.newSingleThreadScheduledExecutor(VirtualThreads.factory("M35FD-")) : Executors.newSingleThreadScheduledExecutor();
+    private final ReentrantLock lock = new ReentrantLock();
     private short error = ERROR_NONE;
     private short state = STATE_NO_MEDIA;
     private short intMessage;
     private FloppyDriveFrame frame;
-    private RandomAccessFile randomAccessFile;
-    private boolean writeProtection;
+    private DiskImage disk;
+    private boolean mapped = true;
+    private DiskImage.Durability durability = DiskImage.Durability.INTERVAL;
+    private int flushInterval = 1000;
+    private ScheduledFuture<?> flushTask;
+    private int cacheSize = 64;
+    private volatile CachedDiskImage cache;
+    private String overlay;
+    private boolean headless;
+    private String image;
+    private boolean writeProtected;
+
     private boolean busy;
+    private boolean turbo;
+
+    /** track the head is over */
+    private int track;
+
+    /** Complete operations as fast as the disk image allows instead of the drive timing */
+    public void setTurbo(boolean turbo) {
+        lock.lock();
+        try {
+            this.turbo = turbo;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isTurbo() {
+        lock.lock();
+        try {
+            return turbo;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Map disk images to memory or transfer sectors with file channel reads and writes. Applied on insert. */
+    public void setMapped(boolean mapped) {
+        lock.lock();
+        try {
+            this.mapped = mapped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isMapped() {
+        lock.lock();
+        try {
+            return mapped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Durability policy name, e.g. sync. Applied on insert. */
+    public void setDurability(String durability) {
+        lock.lock();
+        try {
+            this.durability = DiskImage.Durability.valueOf(durability.toUpperCase());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getDurability() {
+        lock.lock();
+        try {
+            return durability.name().toLowerCase();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Flush interval of the interval durability in milliseconds. Applied on insert. */
+    public void setFlushInterval(int flushInterval) {
+        if(flushInterval <= 0) {
+            throw new IllegalArgumentException("Invalid flush interval " + flushInterval);
+        }
+
+        lock.lock();
+        try {
+            this.flushInterval = flushInterval;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getFlushInterval() {
+        lock.lock();
+        try {
+            return flushInterval;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Copy-on-write overlay file of the inserted images, null to write them. Applied on insert. */
+    public void setOverlay(String overlay) {
+        lock.lock();
+        try {
+            this.overlay = overlay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getOverlay() {
+        lock.lock();
+        try {
+            return overlay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sector cache size in sectors, 0 disables it. Applied on insert. */
+    public void setCacheSize(int cacheSize) {
+        if(cacheSize < 0) {
+            throw new IllegalArgumentException("Invalid cache size " + cacheSize);
+        }
+
+        lock.lock();
+        try {
+            this.cacheSize = cacheSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCacheSize() {
+        lock.lock();
+        try {
+            return cacheSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sector reads of the inserted disk served by the cache */
+    public long getCacheHits() {
+        CachedDiskImage current = cache;
+        return (current != null) ? current.getHits() : 0;
+    }
+
+    /** Sector reads of the inserted disk which went to the image */
+    public long getCacheMisses() {
+        CachedDiskImage current = cache;
+        return (current != null) ? current.getMisses() : 0;
+    }
+
+    /** Run w/o the window. A headless JVM runs the drive headless anyway. */
+    public void setHeadless(boolean headless) {
+        lock.lock();
+        try {
+            this.headless = headless;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isHeadless() {
+        lock.lock();
+        try {
+            return headless || GraphicsEnvironment.isHeadless();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Disk image inserted on init, null to start w/o a disk */
+    public void setImage(String image) {
+        lock.lock();
+        try {
+            this.image = image;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getImage() {
+        lock.lock();
+        try {
+            return image;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Write protect the disk inserted on init */
+    public void setWriteProtected(boolean writeProtected) {
+        lock.lock();
+        try {
+            this.writeProtected = writeProtected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isWriteProtected() {
+        lock.lock();
+        try {
+            return writeProtected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Insert the disk. The drive state changes as if it's inserted by the window.
+     * @param writeProtected protect the disk even if the image file can be written
+     * @throws IllegalStateException if a disk is inserted already
+     * @throws IOException if the image can't be opened
+     */
+    public void insert(File file, boolean writeProtected) throws IOException {
+        insertDisk(file, writeProtected);
+        updateFrame(file);
+    }
+
+    /** Eject the disk if it's inserted. An operation in progress fails with the eject error. */
+    public void eject() {
+        ejectDisk();
+        updateFrame(null);
+    }
+
+    public boolean isInserted() {
+        lock.lock();
+        try {
+            return disk != null;
+        } finally {
+            lock.unlock();
+        }
+    }
 
     @Override
     public void init() {
-        EventQueue.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                frame = new FloppyDriveFrame();
-                frame.setVisible(true);
+        if(!isHeadless()) {
+            EventQueue.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    frame = new FloppyDriveFrame();
+                    frame.setVisible(true);
+                }
+            });
+        }
+
+        String configured = getImage();
+        if(configured != null && !isInserted()) {
+            try {
+                insert(new File(configured), isWriteProtected());
+            } catch(IOException e) {
+                System.err.println("Can't insert M35FD image " + configured + ": " + e);
             }
-        });
+        }
     }
 
     @Override
     public void shutdown() {
-        EventQueue.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                frame.dispose();
-                frame = null;
-            }
-        });
+        if(!isHeadless()) {
+            EventQueue.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if(frame != null) {
+                        frame.dispose();
+                        frame = null;
+                    }
+                }
+            });
+        }
 
-        synchronized(lock) {
+        lock.lock();
+        try {
             closeDiskImage();
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public void interrupt(Processor.State state) {
         short regA = state.readRegister(Processor.Register.A);
-        synchronized(lock) {
+        lock.lock();
+        try {
             switch(regA) {
                 case POLL_DEVICE_INT:
                     state.writeRegister(Processor.Register.B, this.state);
@@ -109,6 +393,8 @@ public class M35FD extends Device {
                     System.err.println("M35FD: unknown int: " + regA);
                     break;
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -121,7 +407,7 @@ public class M35FD extends Device {
                     busy = true;
                     updateState();
 
-                    executor.execute(new ReadOperation(state.readRegister(Processor.Register.X), state.readRegister(Processor.Register.Y)));
+                    submit(new ReadOperation(state.readRegister(Processor.Register.X), state.readRegister(Processor.Register.Y)));
                     state.writeRegister(Processor.Register.B, (short)1);
                 } catch(BadSectorException e) {
                     setError(ERROR_BAD_SECTOR);
@@ -147,12 +433,13 @@ public class M35FD extends Device {
                     busy = true;
                     updateState();
 
-                    executor.execute(new WriteOperation(state.readRegister(Processor.Register.X), state.readRegister(Processor.Register.Y)));
+                    submit(new WriteOperation(state.readRegister(Processor.Register.X), state.readRegister(Processor.Register.Y)));
                     state.writeRegister(Processor.Register.B, (short)1);
                 } catch(BadSectorException e) {
                     setError(ERROR_BAD_SECTOR);
                     state.writeRegister(Processor.Register.B, (short)0);
                 }
+                break;
             case STATE_READY_WP:
                 setError(ERROR_PROTECTED);
                 state.writeRegister(Processor.Register.B, (short)0);
@@ -168,82 +455,173 @@ public class M35FD extends Device {
         }
     }
 
+    /** Set the operation deadline, move the head and start it */
+    private void submit(IOOperation operation) {
+        int target = (operation.sector & 0xffff) / SECTORS_PER_TRACK;
+        long duration = 0;
+        if(!turbo) {
+            duration = Math.abs(target - track) * TimeUnit.MICROSECONDS.toNanos(TRACK_SEEKING_MICROSECONDS) + SECTOR_TRANSFER_NANOS;
+        }
+
+        track = target;
+        operation.deadline = System.nanoTime() + duration;
+        executor.execute(operation);
+    }
+
     /** Update internal device state */
     private void updateState() {
-        synchronized(lock) {
+        lock.lock();
+        try {
             short currentState = STATE_NO_MEDIA;
-            if(randomAccessFile != null) {
+            if(disk != null) {
                 if(busy) {
                     currentState = STATE_BUSY;
-                } else if(writeProtection) {
+                } else if(disk.isWriteProtected()) {
                     currentState = STATE_READY_WP;
                 } else {
                     currentState = STATE_READY;
                 }
             }
             setState(currentState);
+        } finally {
+            lock.unlock();
         }
     }
 
     /** Set device state. Interrupt processor if interrupts are enabled */
     private void setState(short state) {
-        synchronized(lock) {
+        lock.lock();
+        try {
             boolean interrupt = (state != this.state);
             this.state = state;
 
-            if(interrupt && intMessage != 0) {
-                interruptionBus.interrupt(intMessage);
+            // the bus is set after init, which inserts the configured disk
+            if(interrupt && interruptionBus != null) {
+                interruptionBus.wakeup();
+                if(intMessage != 0) {
+                    interruptionBus.interrupt(intMessage);
+                }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
     /** Set device error. Interrupt processor if interrupts are enabled */
     private void setError(short error) {
-        synchronized(lock) {
+        lock.lock();
+        try {
             boolean interrupt = (error != this.error);
             this.error = error;
 
-            if(interrupt && intMessage != 0) {
-                interruptionBus.interrupt(intMessage);
+            // the bus is set after init, which inserts the configured disk
+            if(interrupt && interruptionBus != null) {
+                interruptionBus.wakeup();
+                if(intMessage != 0) {
+                    interruptionBus.interrupt(intMessage);
+                }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
     /** Insert disk */
-    private void insertDisk(File file) {
-        synchronized(lock) {
-            if(randomAccessFile != null) {
-                throw new RuntimeException("M35FD: bad state: disk is already inserted");
+    private void insertDisk(File file, boolean protect) throws IOException {
+        lock.lock();
+        try {
+            if(disk != null) {
+                throw new IllegalStateException("M35FD: bad state: disk is already inserted");
             }
 
             try {
-                writeProtection = !file.canWrite();
                 busy = false;
-                randomAccessFile = new RandomAccessFile(file, ((writeProtection) ? "r" : "rws"));
-            } catch (IOException e) {
-                System.err.println("Can't open M35FD image: " + e);
+                boolean readOnly = protect || (file.exists() && !file.canWrite());
+                File overlayFile = (overlay != null) ? new File(overlay) : null;
+                if(overlayFile != null && (!protect || overlayFile.length() > 0)) {
+                    // protected disk still reads the sectors written to the overlay before
+                    DiskImage base = (mapped) ? new MappedDiskImage(file, DiskImage.Durability.CLOSE, true) : new FileDiskImage(file, DiskImage.Durability.CLOSE, true);
+                    disk = (protect) ? new OverlayDiskImage(base, overlayFile, durability, true) : new OverlayDiskImage(base, overlayFile, durability);
+                } else if(protect) {
+                    // nothing has been written to the overlay yet
+                    disk = (mapped) ? new MappedDiskImage(file, durability, true) : new FileDiskImage(file, durability, true);
+                } else {
+                    disk = (mapped) ? new MappedDiskImage(file, durability, readOnly) : new FileDiskImage(file, durability, readOnly);
+                }
+                if(cacheSize > 0) {
+                    // sync durability writes through
+                    cache = new CachedDiskImage(disk, cacheSize, durability != DiskImage.Durability.SYNC);
+                    disk = cache;
+                }
+                if(durability == DiskImage.Durability.INTERVAL && !disk.isWriteProtected()) {
+                    flushTask = executor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushDiskImage();
+                        }
+                    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+                }
             } finally {
                 updateState();
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushDiskImage() {
+        lock.lock();
+        try {
+            if(disk != null) {
+                disk.flush();
+            }
+        } catch(IOException e) {
+            System.err.println("Can't flush M35FD image: " + e);
+        } finally {
+            lock.unlock();
         }
     }
 
     private void closeDiskImage() {
-        if(randomAccessFile != null) {
+        if(flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+
+        if(disk != null) {
             try {
-                randomAccessFile.close();
-                randomAccessFile = null;
+                disk.close();
             } catch (IOException e) {
                 System.err.println("Can't close M35FD image: " + e);
+            } finally {
+                disk = null;
+                cache = null;
             }
         }
     }
 
     /** Eject disk */
     private void ejectDisk() {
-        synchronized(lock) {
+        lock.lock();
+        try {
             closeDiskImage();
             updateState();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Show the inserted disk in the window */
+    private void updateFrame(final File file) {
+        if(!isHeadless()) {
+            EventQueue.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if(frame != null) {
+                        frame.showDisk(file);
+                    }
+                }
+            });
         }
     }
 
@@ -260,17 +638,7 @@ public class M35FD extends Device {
 
         @Override
         protected void operation() throws IOException {
-            byte[] buffer = new byte[SECTOR_SIZE * 2];
-            for(int i = 0; i < SECTOR_SIZE; i++) {
-                short word = memoryBus.memory().readWord((short)(ram + i));
-                buffer[i * 2] = (byte)((word >> 8) & 0xff);
-                buffer[i * 2 + 1] = (byte)(word & 0xff);
-                readWordDelay();
-            }
-
-            seekDelay();
-            randomAccessFile.seek(sector & 0xffff * SECTOR_SIZE);
-            randomAccessFile.write(buffer);
+            disk.write(sector & 0xffff, memoryBus.memory(), ram);
         }
     }
 
@@ -282,28 +650,22 @@ public class M35FD extends Device {
 
         @Override
         protected void operation() throws IOException {
-            randomAccessFile.seek((sector & 0xffff) * SECTOR_SIZE);
-            seekDelay();
-
-            byte[] buffer = new byte[SECTOR_SIZE * 2];
-            randomAccessFile.read(buffer);
-
-            for(int i = 0; i < SECTOR_SIZE; i++) {
-                short word = (short)((buffer[i * 2] << 8) + (buffer[i * 2 + 1] & 0xff));
-                memoryBus.memory().writeWord((short)(ram + i), word);
-                readWordDelay();
-            }
+            disk.read(sector & 0xffff, memoryBus.memory(), ram);
         }
     }
 
-    /** Base for IO operations. Simulates delays and updates device state. */
+    /** Base for IO operations. Transfers the sector and completes the operation at its deadline. */
     private abstract class IOOperation implements Runnable {
         protected final short sector;
         protected final short ram;
 
+        /** System.nanoTime() the drive completes the operation at */
+        private long deadline;
+        private boolean failed;
+
         public IOOperation(short sector, short ram) throws BadSectorException {
-            if((sector & 0xffff) >= SIZE_IN_WORDS) {
-                throw new IllegalArgumentException("bad sector");
+            if((sector & 0xffff) >= DiskImage.SECTORS_COUNT) {
+                throw new BadSectorException();
             }
 
             this.ram = ram;
@@ -312,36 +674,42 @@ public class M35FD extends Device {
 
         @Override
         public void run() {
-            // read if it's possible and update busy state
-            synchronized(lock) {
-                if(randomAccessFile != null) {
+            // transfer at once, the drive is busy until the deadline anyway
+            lock.lock();
+            try {
+                if(disk != null) {
                     try {
                         operation();
                     } catch(IOException e) {
-                        setError(ERROR_BROKEN);
+                        failed = true;
                     }
-                } else {
-                    setError(ERROR_EJECT);
                 }
-
-                busy = false;
-                updateState();
+            } finally {
+                lock.unlock();
             }
-        }
 
-        protected void seekDelay() {
-            try {
-                TimeUnit.MICROSECONDS.sleep(TRACK_SEEKING_MICROSECONDS);
-            } catch(InterruptedException e) {
-                System.err.println("M35FD: io delay interrupted");
-            }
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    complete();
+                }
+            }, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
         }
 
-        protected void readWordDelay() {
+        /** Report the result and update busy state */
+        private void complete() {
+            lock.lock();
             try {
-                TimeUnit.MICROSECONDS.sleep((long)(1000000f / SPEED_IN_WORDS_PER_SEC));
-            } catch(InterruptedException e) {
-                System.err.println("M35FD: io delay interrupted");
+                if(disk == null) {
+                    setError(ERROR_EJECT);
+                } else if(failed) {
+                    setError(ERROR_BROKEN);
+                }
+
+                busy = false;
+                updateState();
+            } finally {
+                lock.unlock();
             }
         }
 
@@ -423,16 +791,32 @@ public class M35FD extends Device {
             File file = chooser.getSelectedFile();
             if(file != null) {
                 if(!file.exists() || file.isFile() && file.canRead() && (file.canWrite() || file.length() >= SIZE_IN_WORDS * 2)) {
-                    insertDisk(file);
-                    filePathLabel.setText(file.getAbsolutePath());
-                    insertButton.setEnabled(false);
-                    ejectButton.setEnabled(true);
+                    try {
+                        insertDisk(file, false);
+                        showDisk(file);
+                    } catch(IOException e) {
+                        System.err.println("Can't open M35FD image: " + e);
+                        filePathLabel.setText("Can't insert drive due to some errors.");
+                    } catch(IllegalStateException e) {
+                        filePathLabel.setText("Disk is already inserted.");
+                    }
                 } else {
                     filePathLabel.setText("Can't insert drive due to some errors.");
                 }
             }
         }
 
+        /** Show the disk state, null if there is no disk */
+        private void showDisk(File file) {
+            if(file != null) {
+                filePathLabel.setText(file.getAbsolutePath());
+                insertButton.setEnabled(false);
+                ejectButton.setEnabled(true);
+            } else {
+                setInitialUIState();
+            }
+        }
+
         private void setInitialUIState() {
             insertButton.setEnabled(true);
             ejectButton.setEnabled(false);
@@ -2,6 +2,9 @@ package net.taviscaron.dcpu16vm.device;
 
 import java.awt.Dimension;
 import java.awt.EventQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLEventListener;
@@ -10,6 +13,7 @@ import javax.media.opengl.glu.GLU;
 import javax.swing.JFrame;
 
 import com.jogamp.opengl.util.FPSAnimator;
+import net.taviscaron.dcpu16vm.machine.Memory;
 import net.taviscaron.dcpu16vm.machine.Processor.Register;
 import net.taviscaron.dcpu16vm.machine.Processor.State;
 import net.taviscaron.dcpu16vm.machine.device.Device;
@@ -46,6 +50,9 @@ public class SPED3 extends Device {
     private static final float VERTEX_INTENSE_SIZE = 3f;
     private static final float CAMERA_DISTANCE_FROM_CENTER = 3.5f;
     
+    /** floats of a vertex in the vertex buffer, the position and the color */
+    private static final int VERTEX_FLOATS = 6;
+
     /** colors */
     private static final int DEFAULT_LINE_COLOR_INDEX = 2;
     private static final float[][] COLORS = new float[][] {
@@ -62,31 +69,102 @@ public class SPED3 extends Device {
     private short vertexCount;
     private short rotation;
     private boolean rotating;
+
+    /** vertices region, the renderer re-reads them once it's written */
+    private Memory.Region vertexRegion;
     
     private final GLEventListener renderer = new GLEventListener() {
         private final GLU glu = new GLU();
         private float currentRotation = 0.0f;
-        
-        private void drawVertexs(Vertex[] vertexs, GL2 gl) {
+
+        /** vertices words, copied under the lock once the region is written */
+        private short[] words = new short[0];
+        private int wordsLength;
+        private int count;
+
+        /** line strip vertices in the memory order followed by the points, the intense ones first */
+        private FloatBuffer vertices = newFloatBuffer(0);
+        private int intenseCount;
+
+        /** vertex buffer object, its size and whether the vertices should be uploaded */
+        private final int[] buffers = new int[1];
+        private int bufferSize;
+        private boolean uploadNeeded;
+
+        /** Build the vertices of the copied words */
+        private void fillVertices() {
+            int floats = count * 2 * VERTEX_FLOATS;
+            if(vertices.capacity() < floats) {
+                vertices = newFloatBuffer(floats);
+            }
+            vertices.clear();
+
+            // vertices past the memory end wrap around
+            for(int i = 0; i < count; i++) {
+                putVertex(words[(i * 2) % wordsLength], words[(i * 2 + 1) % wordsLength], COLORS[DEFAULT_LINE_COLOR_INDEX]);
+            }
+
+            intenseCount = 0;
+            for(int pass = 0; pass < 2; pass++) {
+                for(int i = 0; i < count; i++) {
+                    short second = words[(i * 2 + 1) % wordsLength];
+                    boolean intense = ((second >> 10) & 0x01) == 1;
+                    if(intense == (pass == 0)) {
+                        putVertex(words[(i * 2) % wordsLength], second, COLORS[(second >> 8) & 0x03]);
+                        if(intense) {
+                            intenseCount++;
+                        }
+                    }
+                }
+            }
+            vertices.flip();
+        }
+
+        /** Vertex is x and y in the first word, z and the color in the second one, y is the height */
+        private void putVertex(short first, short second, float[] color) {
+            vertices.put((first & 0xff) / 255f);
+            vertices.put((second & 0xff) / 255f);
+            vertices.put(((first >> 8) & 0xff) / 255f);
+            vertices.put(color);
+        }
+
+        private void uploadVertices(GL2 gl) {
+            int size = vertices.limit() * Float.SIZE / 8;
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffers[0]);
+            if(size > bufferSize) {
+                gl.glBufferData(GL2.GL_ARRAY_BUFFER, size, vertices, GL2.GL_DYNAMIC_DRAW);
+                bufferSize = size;
+            } else {
+                gl.glBufferSubData(GL2.GL_ARRAY_BUFFER, 0, size, vertices);
+            }
+            uploadNeeded = false;
+        }
+
+        private void drawVertices(GL2 gl) {
+            int stride = VERTEX_FLOATS * Float.SIZE / 8;
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffers[0]);
+            gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+            gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+            gl.glVertexPointer(3, GL2.GL_FLOAT, stride, 0);
+            gl.glColorPointer(3, GL2.GL_FLOAT, stride, 3 * Float.SIZE / 8);
+
             // draw lines
             gl.glLineWidth(DEFAULT_SIZE);
-            gl.glColor3fv(COLORS[DEFAULT_LINE_COLOR_INDEX], 0);
-            gl.glBegin(GL2.GL_LINE_STRIP);
-            
-            for(Vertex v : vertexs) {
-                gl.glVertex3f(v.x, v.z, v.y);
+            gl.glDrawArrays(GL2.GL_LINE_STRIP, 0, count);
+
+            // draw points, a call per point size
+            if(intenseCount != 0) {
+                gl.glPointSize(VERTEX_INTENSE_SIZE);
+                gl.glDrawArrays(GL2.GL_POINTS, count, intenseCount);
             }
-            
-            gl.glEnd();
-                    
-            // draw points
-            for(Vertex v : vertexs) {
-                gl.glPointSize((v.intense) ? VERTEX_INTENSE_SIZE : DEFAULT_SIZE);
-                gl.glColor3fv(COLORS[v.color], 0);
-                gl.glBegin(GL2.GL_POINTS);
-                gl.glVertex3f(v.x, v.z, v.y);
-                gl.glEnd();
+            if(intenseCount != count) {
+                gl.glPointSize(DEFAULT_SIZE);
+                gl.glDrawArrays(GL2.GL_POINTS, count + intenseCount, count - intenseCount);
             }
+
+            gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+            gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
         }
         
         @Override
@@ -97,8 +175,12 @@ public class SPED3 extends Device {
             
             // reset matrix
             gl.glLoadIdentity();
-            
+
+            // the lock is held to take the state and to copy the written vertices only
+            boolean visible;
+            boolean written = false;
             synchronized(lock) {
+                boolean wasRotating = rotating;
                 if(currentRotation != rotation) {
                     rotating = true;
                     
@@ -110,26 +192,41 @@ public class SPED3 extends Device {
                 } else {
                     rotating = false;
                 }
-                
-                double angle = currentRotation / 180 * Math.PI;
-                double dx = Math.sin(angle) * CAMERA_DISTANCE_FROM_CENTER;
-                double dz = Math.cos(angle) * CAMERA_DISTANCE_FROM_CENTER;
-                
-                glu.gluLookAt(dx + 0.5, 0.5, dz + 0.5, 0.5, 0.5, 0.5, 0, 1, 0);
-                
-                if(mapOffset != 0 && vertexCount != 0) {
-                    int count = vertexCount & 0xffff;
-                    Vertex[] vertexs = new Vertex[count];
-                    
-                    for(int i = 0; i < count; i++) {
-                        short first = memoryBus.memory().readWord((short)(mapOffset + i * 2));
-                        short second = memoryBus.memory().readWord((short)(mapOffset + i * 2 + 1));
-                        vertexs[i] = new Vertex(first, second);
+
+                if(wasRotating != rotating) {
+                    interruptionBus.wakeup();
+                }
+
+                visible = vertexRegion != null && mapOffset != 0 && vertexCount != 0;
+                if(visible && vertexRegion.takeWritten()) {
+                    count = vertexCount & 0xffff;
+                    wordsLength = vertexRegion.getLength();
+                    if(words.length < wordsLength) {
+                        words = new short[wordsLength];
                     }
-                    
-                    drawVertexs(vertexs, gl);
+                    memoryBus.memory().readBlock(mapOffset, words, 0, wordsLength);
+                    written = true;
                 }
             }
+
+            double angle = currentRotation / 180 * Math.PI;
+            double dx = Math.sin(angle) * CAMERA_DISTANCE_FROM_CENTER;
+            double dz = Math.cos(angle) * CAMERA_DISTANCE_FROM_CENTER;
+
+            glu.gluLookAt(dx + 0.5, 0.5, dz + 0.5, 0.5, 0.5, 0.5, 0, 1, 0);
+
+            if(!visible) {
+                return;
+            }
+
+            if(written) {
+                fillVertices();
+                uploadNeeded = true;
+            }
+            if(uploadNeeded) {
+                uploadVertices(gl);
+            }
+            drawVertices(gl);
         }
         
         @Override
@@ -141,11 +238,17 @@ public class SPED3 extends Device {
             gl.glEnable(GL2.GL_DEPTH_TEST);
             gl.glDepthFunc(GL2.GL_LEQUAL);
             gl.glHint(GL2.GL_PERSPECTIVE_CORRECTION_HINT, GL2.GL_NICEST);
+
+            // new context has no buffer, the vertices are uploaded again
+            gl.glGenBuffers(1, buffers, 0);
+            bufferSize = 0;
+            uploadNeeded = true;
         }
 
         @Override
         public void dispose(GLAutoDrawable glAutoDrawable) {
-            // noop
+            GL2 gl = glAutoDrawable.getGL().getGL2();
+            gl.glDeleteBuffers(1, buffers, 0);
         }
 
         @Override   
@@ -186,6 +289,13 @@ public class SPED3 extends Device {
     
     @Override
     public void shutdown() {
+        synchronized(lock) {
+            if(vertexRegion != null) {
+                vertexRegion.unmap();
+                vertexRegion = null;
+            }
+        }
+
         EventQueue.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -210,6 +320,14 @@ public class SPED3 extends Device {
                 case MAP_REGION_INT:
                     mapOffset = state.readRegister(Register.X);
                     vertexCount = state.readRegister(Register.Y);
+
+                    // two words per vertex, the region can't exceed memory
+                    int length = (mapOffset != 0) ? Math.min((vertexCount & 0xffff) * 2, 0x10000) : 0;
+                    if(vertexRegion == null) {
+                        vertexRegion = memoryBus.mapRegion(mapOffset, length, null);
+                    } else {
+                        vertexRegion.remap(mapOffset, length);
+                    }
                     break;
                 case ROTATE_DEVICE_INT:
                     rotation = (short)((state.readRegister(Register.X) & 0xffff) % 360);
@@ -220,21 +338,8 @@ public class SPED3 extends Device {
             }
         }
     }
-    
-    /** vertex wrapper */
-    private static class Vertex {
-        public final float x;
-        public final float y;
-        public final float z;
-        public final boolean intense;
-        public final int color;
-        
-        public Vertex(short first, short second) {
-            x = (first & 0xff) / 255f;
-            y = ((first >> 8) & 0xff) / 255f;
-            z = (second & 0xff) / 255f;
-            color = (second >> 8) & 0x03;
-            intense = (((second >> 10) & 0x01) == 1);
-        }
+
+    private static FloatBuffer newFloatBuffer(int floats) {
+        return ByteBuffer.allocateDirect(floats * Float.SIZE / 8).order(ByteOrder.nativeOrder()).asFloatBuffer();
     }
 }
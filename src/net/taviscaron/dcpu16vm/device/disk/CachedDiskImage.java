@@ -0,0 +1,196 @@
+package net.taviscaron.dcpu16vm.device.disk;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU sector cache over a disk image.
+ *
+ * A missed sector is read with the following sectors of its track, as guests mostly read files
+ * sequentially. Written sectors are kept dirty until they're evicted or the image is flushed,
+ * unless the cache writes through.
+ *
+ * @author Andrei Senchuk
+ */
+public class CachedDiskImage implements DiskImage {
+    private final DiskImage disk;
+    private final int capacity;
+    private final boolean writeBack;
+
+    /** cached sectors in the access order */
+    private final LinkedHashMap<Integer, Sector> sectors = new LinkedHashMap<Integer, Sector>(16, 0.75f, true);
+
+    /** counters are updated by the thread holding the drive lock, read by any */
+    private volatile long hits;
+    private volatile long misses;
+
+    private static class Sector {
+        private final short[] words = new short[SECTOR_SIZE];
+        private boolean dirty;
+    }
+
+    /**
+     * @param capacity cache size in sectors
+     * @param writeBack keep written sectors until flush, otherwise they're written through
+     */
+    public CachedDiskImage(DiskImage disk, int capacity, boolean writeBack) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Invalid cache capacity " + capacity);
+        }
+
+        this.disk = disk;
+        this.capacity = capacity;
+        this.writeBack = writeBack;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public boolean isWriteProtected() {
+        return disk.isWriteProtected();
+    }
+
+    @Override
+    public void read(int sector, short[] buffer) throws IOException {
+        System.arraycopy(lookup(sector).words, 0, buffer, 0, SECTOR_SIZE);
+    }
+
+    /** Memory is written from the cached words */
+    @Override
+    public void read(int sector, Memory memory, short offset) throws IOException {
+        memory.writeBlock(offset, lookup(sector).words, 0, SECTOR_SIZE);
+    }
+
+    /** Cached sector, a missed one is loaded with the rest of its track */
+    private Sector lookup(int sector) throws IOException {
+        FileDiskImage.checkSector(sector);
+
+        Sector cached = sectors.get(sector);
+        if(cached != null) {
+            hits++;
+        } else {
+            misses++;
+            cached = load(sector);
+
+            // read ahead the rest of the track w/o evicting the sector
+            int trackEnd = (sector / SECTORS_PER_TRACK + 1) * SECTORS_PER_TRACK;
+            for(int next = sector + 1; next < trackEnd && next - sector < capacity; next++) {
+                if(!sectors.containsKey(next)) {
+                    load(next);
+                }
+            }
+        }
+        return cached;
+    }
+
+    @Override
+    public void write(int sector, short[] buffer) throws IOException {
+        FileDiskImage.checkSector(sector);
+        if(isWriteProtected()) {
+            throw new IOException("Disk image is write protected");
+        }
+
+        Sector cached = sectors.get(sector);
+        if(!writeBack) {
+            disk.write(sector, buffer);
+            if(cached != null) {
+                System.arraycopy(buffer, 0, cached.words, 0, SECTOR_SIZE);
+            }
+            return;
+        }
+
+        if(cached == null) {
+            cached = allocate(sector);
+        }
+        System.arraycopy(buffer, 0, cached.words, 0, SECTOR_SIZE);
+        cached.dirty = true;
+    }
+
+    /** Memory is read once, to the cached words if the sector is kept, so the cache and the disk can't differ */
+    @Override
+    public void write(int sector, Memory memory, short offset) throws IOException {
+        FileDiskImage.checkSector(sector);
+        if(isWriteProtected()) {
+            throw new IOException("Disk image is write protected");
+        }
+
+        Sector cached = sectors.get(sector);
+        if(!writeBack && cached == null) {
+            disk.write(sector, memory, offset);
+            return;
+        }
+
+        if(cached == null) {
+            cached = allocate(sector);
+        }
+        memory.readBlock(offset, cached.words, 0, SECTOR_SIZE);
+        if(writeBack) {
+            cached.dirty = true;
+        } else {
+            disk.write(sector, cached.words);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for(Map.Entry<Integer, Sector> entry : sectors.entrySet()) {
+            Sector sector = entry.getValue();
+            if(sector.dirty) {
+                disk.write(entry.getKey(), sector.words);
+                sector.dirty = false;
+            }
+        }
+        disk.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            disk.close();
+        }
+    }
+
+    private Sector load(int sector) throws IOException {
+        Sector loaded = allocate(sector);
+        try {
+            disk.read(sector, loaded.words);
+        } catch(IOException e) {
+            sectors.remove(sector);
+            throw e;
+        }
+        return loaded;
+    }
+
+    /** Put a sector to the cache evicting the least recently used one if it's full */
+    private Sector allocate(int sector) throws IOException {
+        Sector allocated = null;
+        if(sectors.size() >= capacity) {
+            Iterator<Map.Entry<Integer, Sector>> iterator = sectors.entrySet().iterator();
+            Map.Entry<Integer, Sector> eldest = iterator.next();
+            allocated = eldest.getValue();
+            if(allocated.dirty) {
+                disk.write(eldest.getKey(), allocated.words);
+                allocated.dirty = false;
+            }
+            iterator.remove();
+        }
+
+        if(allocated == null) {
+            allocated = new Sector();
+        }
+        sectors.put(sector, allocated);
+        return allocated;
+    }
+}
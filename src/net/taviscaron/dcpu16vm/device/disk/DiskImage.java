@@ -0,0 +1,50 @@
+package net.taviscaron.dcpu16vm.device.disk;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+
+import java.io.IOException;
+
+/**
+ * M35FD disk image. Sectors are SECTOR_SIZE big-endian words, sector N starts at byte N * SECTOR_SIZE * 2.
+ *
+ * Images aren't thread safe, the drive accesses them under its lock.
+ *
+ * @author Andrei Senchuk
+ */
+public interface DiskImage {
+    public static final int SECTOR_SIZE = 512;
+    public static final int SECTORS_COUNT = 1440;
+    public static final int SECTORS_PER_TRACK = 18;
+    public static final long SIZE_IN_BYTES = (long)SECTORS_COUNT * SECTOR_SIZE * 2;
+
+    /** When written sectors reach the storage device */
+    public enum Durability {
+        /** every sector write is forced, as "rwd" files are */
+        SYNC,
+        /** the drive flushes the image periodically, on eject and on shutdown */
+        INTERVAL,
+        /** the drive flushes the image on eject and on shutdown only */
+        CLOSE
+    }
+
+    /** Sectors can't be written. Images of read-only files are write protected. */
+    public boolean isWriteProtected();
+
+    /** Read sector words to the buffer, words past the image file end are zeros */
+    public void read(int sector, short[] buffer) throws IOException;
+
+    /** Write sector words from the buffer. Forced to the storage with the SYNC durability. */
+    public void write(int sector, short[] buffer) throws IOException;
+
+    /** Read sector words to memory at the offset with Memory.writeBlock, w/o a buffer in between where the image allows */
+    public void read(int sector, Memory memory, short offset) throws IOException;
+
+    /** Write sector words from memory at the offset read with Memory.readBlock, w/o a buffer in between where the image allows */
+    public void write(int sector, Memory memory, short offset) throws IOException;
+
+    /** Force written sectors to the storage */
+    public void flush() throws IOException;
+
+    /** Flush and release the image */
+    public void close() throws IOException;
+}
@@ -0,0 +1,127 @@
+package net.taviscaron.dcpu16vm.device.disk;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Disk image read and written with positional FileChannel transfers
+ * @author Andrei Senchuk
+ */
+public class FileDiskImage implements DiskImage {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean writeProtected;
+    private final Durability durability;
+
+    /** sector bytes, reused by the transfers */
+    private final ByteBuffer bytes = ByteBuffer.allocate(SECTOR_SIZE * 2);
+
+    /** Open the image, it's write protected if the file can't be written. A missing file is created. */
+    public FileDiskImage(File file, Durability durability) throws IOException {
+        this(file, durability, file.exists() && !file.canWrite());
+    }
+
+    /** Open the image, a write protected one is opened read-only even if the file can be written */
+    public FileDiskImage(File file, Durability durability, boolean writeProtected) throws IOException {
+        this.writeProtected = writeProtected;
+        this.durability = durability;
+        this.file = new RandomAccessFile(file, (writeProtected) ? "r" : "rw");
+        this.channel = this.file.getChannel();
+    }
+
+    @Override
+    public boolean isWriteProtected() {
+        return writeProtected;
+    }
+
+    @Override
+    public void read(int sector, short[] buffer) throws IOException {
+        readBytes(sector);
+        bytes.asShortBuffer().get(buffer, 0, SECTOR_SIZE);
+    }
+
+    /** Memory is written from the sector bytes, so it's a single copy after the file read */
+    @Override
+    public void read(int sector, Memory memory, short offset) throws IOException {
+        readBytes(sector);
+        memory.writeBlock(offset, bytes.asShortBuffer());
+    }
+
+    @Override
+    public void write(int sector, short[] buffer) throws IOException {
+        checkWrite(sector);
+        bytes.clear();
+        bytes.asShortBuffer().put(buffer, 0, SECTOR_SIZE);
+        writeBytes(sector);
+    }
+
+    @Override
+    public void write(int sector, Memory memory, short offset) throws IOException {
+        checkWrite(sector);
+        bytes.clear();
+        memory.readBlock(offset, bytes.asShortBuffer());
+        writeBytes(sector);
+    }
+
+    /** Read the sector to the bytes and flip them, bytes past the file end are zeros */
+    private void readBytes(int sector) throws IOException {
+        checkSector(sector);
+
+        bytes.clear();
+        long position = (long)sector * bytes.capacity();
+        while(bytes.hasRemaining() && channel.read(bytes, position + bytes.position()) >= 0) {
+            // read the rest
+        }
+
+        // the file might be shorter than the image
+        Arrays.fill(bytes.array(), bytes.position(), bytes.capacity(), (byte)0);
+        bytes.clear();
+    }
+
+    private void checkWrite(int sector) throws IOException {
+        checkSector(sector);
+        if(writeProtected) {
+            throw new IOException("Disk image is write protected");
+        }
+    }
+
+    /** Write the sector bytes */
+    private void writeBytes(int sector) throws IOException {
+        long position = (long)sector * bytes.capacity();
+        while(bytes.hasRemaining()) {
+            channel.write(bytes, position + bytes.position());
+        }
+
+        if(durability == Durability.SYNC) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(!writeProtected) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            file.close();
+        }
+    }
+
+    static void checkSector(int sector) {
+        if(sector < 0 || sector >= SECTORS_COUNT) {
+            throw new IllegalArgumentException("Invalid sector " + sector);
+        }
+    }
+}
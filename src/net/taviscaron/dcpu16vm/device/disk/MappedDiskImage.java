@@ -0,0 +1,140 @@
+package net.taviscaron.dcpu16vm.device.disk;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Disk image mapped to memory. Sectors are copied straight between the mapping and the
+ * machine memory, w/o a system call per transfer, the OS writes the modified pages back.
+ *
+ * Writable images are extended to the full disk size, read-only ones are mapped as long as they are.
+ *
+ * @author Andrei Senchuk
+ */
+public class MappedDiskImage implements DiskImage {
+    private final MappedByteBuffer mapping;
+    private final ShortBuffer words;
+    private final boolean writeProtected;
+    private final Durability durability;
+
+    /** words past the end of a read-only image */
+    private static final short[] ZEROS = new short[SECTOR_SIZE];
+
+    /** Open the image, it's write protected if the file can't be written. A missing file is created. */
+    public MappedDiskImage(File file, Durability durability) throws IOException {
+        this(file, durability, file.exists() && !file.canWrite());
+    }
+
+    /** Open the image, a write protected one is opened read-only even if the file can be written */
+    public MappedDiskImage(File file, Durability durability, boolean writeProtected) throws IOException {
+        this.writeProtected = writeProtected;
+        this.durability = durability;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, (writeProtected) ? "r" : "rw");
+        try {
+            if(writeProtected) {
+                long size = Math.min(randomAccessFile.length(), SIZE_IN_BYTES) & ~1L;
+                mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                if(randomAccessFile.length() < SIZE_IN_BYTES) {
+                    randomAccessFile.setLength(SIZE_IN_BYTES);
+                }
+                mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE_IN_BYTES);
+            }
+        } finally {
+            // the mapping stays valid after the channel is closed
+            randomAccessFile.close();
+        }
+
+        words = mapping.asShortBuffer();
+    }
+
+    @Override
+    public boolean isWriteProtected() {
+        return writeProtected;
+    }
+
+    @Override
+    public void read(int sector, short[] buffer) throws IOException {
+        FileDiskImage.checkSector(sector);
+
+        int start = sector * SECTOR_SIZE;
+        int available = Math.max(0, Math.min(SECTOR_SIZE, words.limit() - start));
+        if(available > 0) {
+            ShortBuffer view = words.duplicate();
+            view.position(start);
+            view.get(buffer, 0, available);
+        }
+        Arrays.fill(buffer, available, SECTOR_SIZE, (short)0);
+    }
+
+    @Override
+    public void write(int sector, short[] buffer) throws IOException {
+        FileDiskImage.checkSector(sector);
+        if(writeProtected) {
+            throw new IOException("Disk image is write protected");
+        }
+
+        ShortBuffer view = words.duplicate();
+        view.position(sector * SECTOR_SIZE);
+        view.put(buffer, 0, SECTOR_SIZE);
+
+        if(durability == Durability.SYNC) {
+            mapping.force();
+        }
+    }
+
+    @Override
+    public void read(int sector, Memory memory, short offset) throws IOException {
+        FileDiskImage.checkSector(sector);
+
+        int start = sector * SECTOR_SIZE;
+        int available = Math.max(0, Math.min(SECTOR_SIZE, words.limit() - start));
+        if(available > 0) {
+            ShortBuffer view = words.duplicate();
+            view.position(start);
+            view.limit(start + available);
+            memory.writeBlock(offset, view);
+        }
+        if(available < SECTOR_SIZE) {
+            memory.writeBlock((short)(offset + available), ZEROS, 0, SECTOR_SIZE - available);
+        }
+    }
+
+    @Override
+    public void write(int sector, Memory memory, short offset) throws IOException {
+        FileDiskImage.checkSector(sector);
+        if(writeProtected) {
+            throw new IOException("Disk image is write protected");
+        }
+
+        ShortBuffer view = words.duplicate();
+        view.position(sector * SECTOR_SIZE);
+        view.limit(sector * SECTOR_SIZE + SECTOR_SIZE);
+        memory.readBlock(offset, view);
+
+        if(durability == Durability.SYNC) {
+            mapping.force();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(!writeProtected) {
+            mapping.force();
+        }
+    }
+
+    /** The mapping is released by GC, as the JDK doesn't unmap buffers explicitly */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
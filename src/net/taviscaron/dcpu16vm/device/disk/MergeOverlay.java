@@ -0,0 +1,24 @@
+package net.taviscaron.dcpu16vm.device.disk;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Merge M35FD disk overlay to a new base image
+ * @author Andrei Senchuk
+ */
+public class MergeOverlay {
+    public static void main(String[] args) {
+        if(args.length != 3) {
+            System.err.println("Usage: java " + MergeOverlay.class.getCanonicalName() + " base.img overlay.img merged.img");
+            System.exit(1);
+        }
+
+        try {
+            OverlayDiskImage.merge(new File(args[0]), new File(args[1]), new File(args[2]));
+        } catch(IOException e) {
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+}
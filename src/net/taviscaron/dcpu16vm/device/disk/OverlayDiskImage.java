@@ -0,0 +1,252 @@
+package net.taviscaron.dcpu16vm.device.disk;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Copy-on-write overlay over a read-only base image, so many machines boot from one disk.
+ *
+ * The overlay file is sparse: a header sector with the bitmap of the written sectors, then
+ * sector N at byte (N + 1) * SECTOR_SIZE * 2. Sectors never written stay file holes and are
+ * read from the base. A sector is written before its bitmap bit, so a crash doesn't expose
+ * a sector which hasn't been written completely.
+ *
+ * @author Andrei Senchuk
+ */
+public class OverlayDiskImage implements DiskImage {
+    private static final long MAGIC = 0x4d333546444f564cL; // M35FDOVL
+    private static final int VERSION = 1;
+    private static final int BITMAP_OFFSET = 16;
+    private static final int HEADER_SIZE = SECTOR_SIZE * 2;
+
+    private final DiskImage base;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Durability durability;
+    private final boolean writeProtected;
+
+    /** written sectors, bit (sector % 64) of bitmap[sector / 64] */
+    private final long[] bitmap = new long[(SECTORS_COUNT + 63) / 64];
+
+    /** sector bytes, reused by the transfers */
+    private final ByteBuffer bytes = ByteBuffer.allocate(SECTOR_SIZE * 2);
+
+    /**
+     * Open the overlay, a missing or empty file is initialized
+     * @param base base image, it's never written. The overlay owns it, it's closed if the overlay can't be opened.
+     */
+    public OverlayDiskImage(DiskImage base, File overlay, Durability durability) throws IOException {
+        this(base, overlay, durability, overlay.exists() && !overlay.canWrite());
+    }
+
+    /**
+     * Open the overlay, a write protected one is opened read-only even if the file can be written.
+     * Its written sectors are still read from it, so it should exist then.
+     * @param base base image, it's never written. The overlay owns it, it's closed if the overlay can't be opened.
+     */
+    public OverlayDiskImage(DiskImage base, File overlay, Durability durability, boolean writeProtected) throws IOException {
+        this.base = base;
+        this.durability = durability;
+        this.writeProtected = writeProtected;
+
+        try {
+            this.file = new RandomAccessFile(overlay, (writeProtected) ? "r" : "rw");
+        } catch(IOException e) {
+            base.close();
+            throw e;
+        }
+        this.channel = file.getChannel();
+
+        try {
+            if(file.length() == 0 && !writeProtected) {
+                writeHeader();
+            } else {
+                readHeader(overlay);
+            }
+        } catch(IOException e) {
+            file.close();
+            base.close();
+            throw e;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC).putInt(VERSION).putInt(SECTORS_COUNT);
+        header.clear();
+        writeFully(header, 0);
+
+        // sectors are holes until they're written
+        file.setLength(HEADER_SIZE + SIZE_IN_BYTES);
+        channel.force(true);
+    }
+
+    private void readHeader(File overlay) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while(header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // read the rest
+        }
+        header.flip();
+
+        if(header.remaining() < HEADER_SIZE || header.getLong() != MAGIC || header.getInt() != VERSION || header.getInt() != SECTORS_COUNT) {
+            throw new IOException("Invalid disk overlay " + overlay);
+        }
+        header.asLongBuffer().get(bitmap);
+    }
+
+    @Override
+    public boolean isWriteProtected() {
+        return writeProtected;
+    }
+
+    /** Sector is read from the overlay */
+    public boolean isWritten(int sector) {
+        return (bitmap[sector >> 6] & (1L << sector)) != 0;
+    }
+
+    @Override
+    public void read(int sector, short[] buffer) throws IOException {
+        FileDiskImage.checkSector(sector);
+        if(!isWritten(sector)) {
+            base.read(sector, buffer);
+            return;
+        }
+
+        readBytes(sector);
+        bytes.asShortBuffer().get(buffer, 0, SECTOR_SIZE);
+    }
+
+    @Override
+    public void read(int sector, Memory memory, short offset) throws IOException {
+        FileDiskImage.checkSector(sector);
+        if(!isWritten(sector)) {
+            base.read(sector, memory, offset);
+            return;
+        }
+
+        readBytes(sector);
+        memory.writeBlock(offset, bytes.asShortBuffer());
+    }
+
+    @Override
+    public void write(int sector, short[] buffer) throws IOException {
+        checkWrite(sector);
+        bytes.clear();
+        bytes.asShortBuffer().put(buffer, 0, SECTOR_SIZE);
+        writeBytes(sector);
+    }
+
+    @Override
+    public void write(int sector, Memory memory, short offset) throws IOException {
+        checkWrite(sector);
+        bytes.clear();
+        memory.readBlock(offset, bytes.asShortBuffer());
+        writeBytes(sector);
+    }
+
+    /** Read the written sector to the bytes, bytes past the file end are zeros */
+    private void readBytes(int sector) throws IOException {
+        bytes.clear();
+        long position = HEADER_SIZE + (long)sector * bytes.capacity();
+        while(bytes.hasRemaining() && channel.read(bytes, position + bytes.position()) >= 0) {
+            // read the rest
+        }
+
+        Arrays.fill(bytes.array(), bytes.position(), bytes.capacity(), (byte)0);
+        bytes.clear();
+    }
+
+    private void checkWrite(int sector) throws IOException {
+        FileDiskImage.checkSector(sector);
+        if(writeProtected) {
+            throw new IOException("Disk overlay is write protected");
+        }
+    }
+
+    /** Write the sector bytes, then mark the sector written */
+    private void writeBytes(int sector) throws IOException {
+        writeFully(bytes, HEADER_SIZE + (long)sector * bytes.capacity());
+
+        if(!isWritten(sector)) {
+            if(durability == Durability.SYNC) {
+                channel.force(false);
+            }
+
+            bitmap[sector >> 6] |= 1L << sector;
+
+            // the bitmap long holding the bit, big-endian as the header is
+            ByteBuffer word = ByteBuffer.allocate(8);
+            word.putLong(bitmap[sector >> 6]);
+            word.flip();
+            writeFully(word, BITMAP_OFFSET + (sector >> 6) * 8);
+        }
+
+        if(durability == Durability.SYNC) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(!writeProtected) {
+            channel.force(false);
+        }
+    }
+
+    /** Closes the base too */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            try {
+                file.close();
+            } finally {
+                base.close();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Write the base image with the overlay sectors applied to a new image
+     * @param target merged image file, it shouldn't be the base one
+     */
+    public static void merge(File base, File overlay, File target) throws IOException {
+        if(target.getCanonicalFile().equals(base.getCanonicalFile())) {
+            throw new IOException("Merged image should be a new file");
+        }
+
+        // the overlay is only read, it isn't created if it's missing
+        if(!overlay.isFile()) {
+            throw new IOException("Disk overlay " + overlay + " doesn't exist");
+        }
+
+        OverlayDiskImage source = new OverlayDiskImage(new FileDiskImage(base, Durability.CLOSE, true), overlay, Durability.CLOSE, true);
+        try {
+            FileDiskImage merged = new FileDiskImage(target, Durability.CLOSE);
+            try {
+                short[] buffer = new short[SECTOR_SIZE];
+                for(int sector = 0; sector < SECTORS_COUNT; sector++) {
+                    source.read(sector, buffer);
+                    merged.write(sector, buffer);
+                }
+            } finally {
+                merged.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+}
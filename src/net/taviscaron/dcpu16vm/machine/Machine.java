@@ -9,10 +9,19 @@ import net.taviscaron.dcpu16vm.machine.device.Device;
 public interface Machine {
     public interface MemoryBus {
         public Memory memory();
+
+        /** Map memory-mapped I/O region of a device, see Memory.Region */
+        public Memory.Region mapRegion(short offset, int length, Memory.RegionListener listener);
     }
 
     public interface InterruptionBus {
         public void interrupt(short code);
+
+        /** Device state the processor can query with HWI has changed */
+        public void wakeup();
+
+        /** Processor cycles executed since the start, can be read by any thread, see Processor.getCycles */
+        public long cycles();
     }
 
     public interface HardwareBus {
@@ -33,5 +42,11 @@ public interface Machine {
     public void setProgram(short[] program);
     public short[] getProgram();
 
+    /** Init devices, load the program and reset the processor w/o starting it. The processor is driven by its run methods then. */
+    public void prepare();
+
     public void start() throws MachineException;
+
+    /** Shutdown devices of the machine the processor has stopped */
+    public void shutdown();
 }
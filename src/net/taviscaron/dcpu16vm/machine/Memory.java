@@ -1,12 +1,115 @@
 package net.taviscaron.dcpu16vm.machine;
 
+import java.nio.ShortBuffer;
+
 /**
- * Memory interface
+ * Memory interface.
+ *
+ * Memory is owned by the processor thread. readWord/writeWord are plain accesses of the words,
+ * the processor and the devices handling its HWI use them. writeWord isn't a bare store though:
+ * it bumps the page version for the change cursors with a release store and notifies the regions
+ * on the page and the write listeners. Device threads (DMA, display refresh) use the
+ * acquire/release accessors:
+ *
+ * - words a device writes with writeWordRelease are visible to the processor once it has seen
+ *   a later interrupt or device state change of that device, both are published by the processor
+ *   queues and the device locks;
+ * - words the processor wrote before it triggered a device (HWI) are visible to readWordAcquire
+ *   of the device thread the work was handed off to. Words written later are seen eventually,
+ *   e.g. a display might show a frame in the middle of its update, as the real hardware does.
+ *
  * @author Andrei Senchuk
  */
 public interface Memory {
+    /** Changes are tracked per page of PAGE_SIZE words */
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    public static final int PAGES_COUNT = 0x10000 >> PAGE_SHIFT;
+
+    /** Dirty bitmap length in longs */
+    public static final int DIRTY_BITMAP_SIZE = PAGES_COUNT / 64;
+
+    /** Memory write listener. It's notified after words have been written. */
+    public interface WriteListener {
+        public void wordsWritten(short offset, int length);
+    }
+
+    /**
+     * Consumer view on memory changes, e.g. of a display, a snapshotter or a debugger. Cursors are
+     * independent, every one sees pages written since its own previous poll. A cursor should be
+     * polled by one thread at a time, words of the reported pages are visible to readWordAcquire then.
+     */
+    public interface ChangeCursor {
+        /**
+         * Collect pages written since the previous poll, all pages on the first poll
+         * @param dirty DIRTY_BITMAP_SIZE longs, bit (page % 64) of dirty[page / 64] is set for a written page
+         * @return written pages count
+         */
+        public int poll(long[] dirty);
+    }
+
+    /**
+     * Memory-mapped I/O region of a device. Writes to the words of the region mark it written and
+     * call its listener, writes to the pages w/o regions don't pay for the lookup.
+     */
+    public interface Region {
+        public short getOffset();
+        public int getLength();
+
+        /** Move the region, e.g. on the device map interrupt. Zero length disconnects it. The region is marked written. */
+        public void remap(short offset, int length);
+
+        /** Remove the region from memory */
+        public void unmap();
+
+        /**
+         * Take the coalesced written mark. Words written before the mark was set are visible
+         * to readWordAcquire of the thread taking it.
+         * @return true if the region has been written or remapped since the previous call
+         */
+        public boolean takeWritten();
+    }
+
+    /** Region write listener. It's called by the writing thread, usually the processor one, so it should be cheap. */
+    public interface RegionListener {
+        /** Words of the range have been written, the range might exceed the region */
+        public void regionWritten(Region region, short offset, int length);
+    }
+
     public short readWord(short offset);
     public void writeWord(short offset, short value);
+
+    /** Read word by a thread other than the processor one */
+    public short readWordAcquire(short offset);
+
+    /** Write word by a thread other than the processor one */
+    public void writeWordRelease(short offset, short value);
     public void set(short offset, short[] buffer);
+
+    /**
+     * Read words of the block wrapping around the memory end, by any thread. Words are read
+     * as readWordAcquire reads them, w/o taking locks.
+     */
+    public void readBlock(short offset, short[] buffer, int from, int length);
+
+    /** Write words of the block wrapping around the memory end, by any thread. Words are written as writeWordRelease writes them. */
+    public void writeBlock(short offset, short[] buffer, int from, int length);
+
+    /** Read the remaining words of the buffer as readBlock does, e.g. straight to a mapped file. The buffer position is advanced. */
+    public void readBlock(short offset, ShortBuffer buffer);
+
+    /** Write the remaining words of the buffer as writeBlock does, e.g. straight from a mapped file. The buffer position is advanced. */
+    public void writeBlock(short offset, ShortBuffer buffer);
     public short sizeInWords();
+
+    public void addWriteListener(WriteListener listener);
+    public void removeWriteListener(WriteListener listener);
+
+    public ChangeCursor createChangeCursor();
+
+    /**
+     * Map the device region
+     * @param listener write listener, null if the device takes the written mark only
+     */
+    public Region mapRegion(short offset, int length, RegionListener listener);
 }
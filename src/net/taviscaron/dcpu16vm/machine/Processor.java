@@ -1,5 +1,7 @@
 package net.taviscaron.dcpu16vm.machine;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.Arrays;
 
 /**
@@ -9,6 +11,17 @@ import java.util.Arrays;
 public abstract class Processor {
     public static final int MAX_QUEUED_INT = 255;
 
+    /** State.cycles published for other threads, a plain long might be read torn */
+    private static final VarHandle PUBLISHED_CYCLES;
+
+    static {
+        try {
+            PUBLISHED_CYCLES = MethodHandles.lookup().findVarHandle(Processor.class, "publishedCycles", long.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     /** DCPU-16 has 8 registers */
     public enum Register {
         A, B, C, X, Y, Z, I, J
@@ -19,6 +32,16 @@ public abstract class Processor {
         public void dumpState(Processor processor, State state, Memory memory);
     }
 
+    /** Listener of events that make an idle or stopped processor worth running again */
+    public interface WakeupListener {
+        public void wokeUp(Processor processor);
+    }
+
+    /** Condition checked between instructions by runUntil */
+    public interface Condition {
+        public boolean holds(State state);
+    }
+
     /** DCPU-16 processor state */
     public class State {
         /** common registers */
@@ -39,7 +62,11 @@ public abstract class Processor {
         /** intructions skipping */
         public boolean skipping;
 
+        /** cycles executed since the processor start */
+        public long cycles;
+
         public void reset() {
+            cycles = 0;
             pc = 0;
             sp = 0;
             ex = 0;
@@ -66,9 +93,13 @@ public abstract class Processor {
     }
     
     protected State state = new State();
+
+    /** accessed with PUBLISHED_CYCLES only */
+    private long publishedCycles;
     protected Machine.MemoryBus memoryBus;
     protected Machine.HardwareBus hardwareBus;
     protected Debugger debugger;
+    protected volatile WakeupListener wakeupListener;
     
     /** Setup processor->memory communication bus */
     public void setMemoryBus(Machine.MemoryBus memoryBus) {
@@ -89,8 +120,21 @@ public abstract class Processor {
         this.debugger = null;
     }
     
+    /** Set listener called on interrupts, device state changes and stop. Can be called by any thread. */
+    public void setWakeupListener(WakeupListener wakeupListener) {
+        this.wakeupListener = wakeupListener;
+    }
+
+    protected void notifyWakeupListener() {
+        WakeupListener listener = wakeupListener;
+        if(listener != null) {
+            listener.wokeUp(this);
+        }
+    }
+
     protected void dumpState() {
         if(debugger != null) {
+            publishCycles();
             debugger.dumpState(this, state, memoryBus.memory());
         }
     }
@@ -99,4 +143,59 @@ public abstract class Processor {
     public abstract void start();
     public abstract void stop();
     public abstract void interrupt(short code);
+
+    /**
+     * Reset processor state before using the run methods. start() resets the state by itself.
+     * The run methods execute instructions on the calling thread and return. They aren't
+     * throttled, return on stop() and once the processor gets into an idle loop.
+     * A stopped processor doesn't run until the next reset.
+     */
+    public abstract void reset();
+
+    /** Check the processor hasn't been stopped since the last reset */
+    public abstract boolean isRunning();
+
+    /** Target frequency in Hz, 0 if the processor isn't throttled */
+    public abstract int getFrequency();
+
+    /**
+     * Cycles executed since the processor start. Can be called by any thread. The processor counts
+     * with plain stores and publishes the count after every batch of instructions and run method,
+     * before HWI and debugger dumps. So it's exact for the devices handling HWI, other threads
+     * see it lag by up to a batch.
+     */
+    public long getCycles() {
+        return (long)PUBLISHED_CYCLES.getOpaque(this);
+    }
+
+    /** Publish State.cycles for getCycles, by the processor thread */
+    protected void publishCycles() {
+        PUBLISHED_CYCLES.setOpaque(this, state.cycles);
+    }
+
+    /**
+     * Execute instructions until the cycles are spent. The last instructions might exceed them.
+     * @return executed cycles
+     */
+    public abstract long runCycles(long cycles);
+
+    /**
+     * Execute instructions. A skipped instruction counts as executed.
+     * @return executed instructions count
+     */
+    public abstract long runInstructions(long count);
+
+    /**
+     * Execute instructions until the condition holds
+     * @param condition condition checked before every instruction
+     * @param maxCycles cycles limit
+     * @return true if the condition holds
+     */
+    public abstract boolean runUntil(Condition condition, long maxCycles);
+
+    /** Check the processor waits for an interrupt or a device in an idle loop */
+    public abstract boolean isIdle();
+
+    /** Device state has changed. Wakes the processor waiting for it in an idle loop. */
+    public abstract void wakeup();
 }
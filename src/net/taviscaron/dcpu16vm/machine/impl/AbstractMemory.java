@@ -0,0 +1,336 @@
+package net.taviscaron.dcpu16vm.machine.impl;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write listeners and changes tracking shared by the memory implementations.
+ *
+ * Every page has a version bumped on writes to it. A cursor keeps the versions it has seen,
+ * so cursors don't interfere and writes cost a page version update only. The update is a release
+ * one even after a plain writeWord, so a cursor reporting the page sees the word.
+ *
+ * writeWord is called by the processor thread only, it bumps its own versions with a plain
+ * increment. Writes of the other threads might race, they add to the shared versions atomically,
+ * so no bump is lost. A cursor sees the sum of both, it grows on every write.
+ *
+ * Device regions are looked up by the page too, a write to a page w/o regions costs a null check.
+ *
+ * @author Andrei Senchuk
+ */
+abstract class AbstractMemory implements Memory {
+    private static final VarHandle VERSIONS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    /** Page versions. Released after the words, so a cursor seeing the version sees the words. */
+    private final int[] versions = new int[PAGES_COUNT];
+
+    /** Page versions bumped by writes of any thread */
+    private final int[] sharedVersions = new int[PAGES_COUNT];
+
+    /** write listeners. Replaced on change, so it can be iterated w/o copying */
+    private volatile WriteListener[] listeners = new WriteListener[0];
+
+    /** Regions by page, null for pages w/o regions. Rebuilt on change as the listeners are. */
+    private volatile MappedRegion[][] pageRegions = new MappedRegion[PAGES_COUNT][];
+    private final List<MappedRegion> regions = new ArrayList<MappedRegion>();
+
+    /** Listeners are changed on the processor start and stop only, so the monitor isn't on the hot path */
+    @Override
+    public synchronized void addWriteListener(WriteListener listener) {
+        WriteListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[updated.length - 1] = listener;
+        listeners = updated;
+    }
+
+    @Override
+    public synchronized void removeWriteListener(WriteListener listener) {
+        WriteListener[] current = listeners;
+        for(int i = 0; i < current.length; i++) {
+            if(current[i] == listener) {
+                WriteListener[] updated = new WriteListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                listeners = updated;
+                break;
+            }
+        }
+    }
+
+    /** Block transfers are fenced once, the words are copied by the implementation in bulk */
+    @Override
+    public void readBlock(short offset, short[] buffer, int from, int length) {
+        checkBlock(buffer, from, length);
+
+        int start = offset & 0xffff;
+        int first = Math.min(length, 0x10000 - start);
+        readWords(start, buffer, from, first);
+        if(first < length) {
+            readWords(0, buffer, from + first, length - first);
+        }
+
+        // every word read above is an acquire one
+        VarHandle.acquireFence();
+    }
+
+    @Override
+    public void writeBlock(short offset, short[] buffer, int from, int length) {
+        checkBlock(buffer, from, length);
+
+        // every word written below is a release one
+        VarHandle.releaseFence();
+
+        int start = offset & 0xffff;
+        int first = Math.min(length, 0x10000 - start);
+        writeWords(start, buffer, from, first);
+        wordsWritten(offset, first);
+        if(first < length) {
+            writeWords(0, buffer, from + first, length - first);
+            wordsWritten((short)0, length - first);
+        }
+    }
+
+    @Override
+    public void readBlock(short offset, ShortBuffer buffer) {
+        int length = checkBlock(buffer);
+
+        int start = offset & 0xffff;
+        int first = Math.min(length, 0x10000 - start);
+        readWords(start, buffer, first);
+        if(first < length) {
+            readWords(0, buffer, length - first);
+        }
+
+        VarHandle.acquireFence();
+    }
+
+    @Override
+    public void writeBlock(short offset, ShortBuffer buffer) {
+        int length = checkBlock(buffer);
+
+        VarHandle.releaseFence();
+
+        int start = offset & 0xffff;
+        int first = Math.min(length, 0x10000 - start);
+        writeWords(start, buffer, first);
+        wordsWritten(offset, first);
+        if(first < length) {
+            writeWords(0, buffer, length - first);
+            wordsWritten((short)0, length - first);
+        }
+    }
+
+    private static int checkBlock(ShortBuffer buffer) {
+        if(buffer.remaining() > 0x10000) {
+            throw new IllegalArgumentException("Invalid block of " + buffer.remaining() + " words");
+        }
+        return buffer.remaining();
+    }
+
+    private static void checkBlock(short[] buffer, int from, int length) {
+        if(length < 0 || length > 0x10000 || from < 0 || from + length > buffer.length) {
+            throw new IllegalArgumentException("Invalid block " + from + "+" + length + " of " + buffer.length + " words buffer");
+        }
+    }
+
+    /** Copy words [start, start + length) w/o wrapping around to the buffer */
+    protected abstract void readWords(int start, short[] buffer, int from, int length);
+
+    /** Copy words from the buffer to [start, start + length) w/o wrapping around and notifying */
+    protected abstract void writeWords(int start, short[] buffer, int from, int length);
+
+    /** Copy words [start, start + length) w/o wrapping around to the buffer position */
+    protected abstract void readWords(int start, ShortBuffer buffer, int length);
+
+    /** Copy words from the buffer position to [start, start + length) w/o wrapping around and notifying */
+    protected abstract void writeWords(int start, ShortBuffer buffer, int length);
+
+    @Override
+    public ChangeCursor createChangeCursor() {
+        return new PageCursor();
+    }
+
+    @Override
+    public Region mapRegion(short offset, int length, RegionListener listener) {
+        MappedRegion region = new MappedRegion(listener);
+        region.remap(offset, length);
+        return region;
+    }
+
+    /** Regions are changed on the device interrupts only, so the table is rebuilt from scratch */
+    private synchronized void updateRegion(MappedRegion region, short offset, int length, boolean mapped) {
+        if(length < 0 || length > 0x10000) {
+            throw new IllegalArgumentException("Invalid region length " + length);
+        }
+
+        region.offset = offset;
+        region.length = length;
+        regions.remove(region);
+        if(mapped) {
+            regions.add(region);
+        }
+
+        MappedRegion[][] table = new MappedRegion[PAGES_COUNT][];
+        for(MappedRegion r : regions) {
+            if(r.length == 0) {
+                continue;
+            }
+
+            int start = r.offset & 0xffff;
+            int last = (start + r.length - 1) >> PAGE_SHIFT;
+            for(int page = start >> PAGE_SHIFT; page <= last; page++) {
+                int index = page & (PAGES_COUNT - 1);
+                MappedRegion[] current = table[index];
+                if(current == null) {
+                    table[index] = new MappedRegion[] { r };
+                } else {
+                    MappedRegion[] updated = Arrays.copyOf(current, current.length + 1);
+                    updated[current.length] = r;
+                    table[index] = updated;
+                }
+            }
+        }
+        pageRegions = table;
+    }
+
+    /**
+     * Should be called after the processor has written a word with writeWord. It's wordsWritten
+     * of a single word w/o the loop over the pages.
+     */
+    protected void wordWritten(short offset) {
+        int start = offset & 0xffff;
+        int index = start >> PAGE_SHIFT;
+        VERSIONS.setRelease(versions, index, versions[index] + 1);
+
+        MappedRegion[] onPage = pageRegions[index];
+        if(onPage != null) {
+            for(MappedRegion region : onPage) {
+                region.written(index, start, 1);
+            }
+        }
+
+        for(WriteListener listener : listeners) {
+            listener.wordsWritten(offset, 1);
+        }
+    }
+
+    /** Should be called after words have been written, by any thread */
+    protected void wordsWritten(short offset, int length) {
+        if(length <= 0) {
+            return;
+        }
+
+        MappedRegion[][] mapped = pageRegions;
+        int start = offset & 0xffff;
+        int last = (start + length - 1) >> PAGE_SHIFT;
+        for(int page = start >> PAGE_SHIFT; page <= last; page++) {
+            int index = page & (PAGES_COUNT - 1);
+            VERSIONS.getAndAddRelease(sharedVersions, index, 1);
+
+            MappedRegion[] onPage = mapped[index];
+            if(onPage != null) {
+                for(MappedRegion region : onPage) {
+                    region.written(index, start, length);
+                }
+            }
+        }
+
+        for(WriteListener listener : listeners) {
+            listener.wordsWritten(offset, length);
+        }
+    }
+
+    private int version(int page) {
+        return (int)VERSIONS.getAcquire(versions, page) + (int)VERSIONS.getAcquire(sharedVersions, page);
+    }
+
+    private class PageCursor implements ChangeCursor {
+        private final int[] seen = new int[PAGES_COUNT];
+
+        public PageCursor() {
+            // new cursor sees all pages written
+            for(int i = 0; i < PAGES_COUNT; i++) {
+                seen[i] = ~version(i);
+            }
+        }
+
+        @Override
+        public int poll(long[] dirty) {
+            Arrays.fill(dirty, 0L);
+
+            int count = 0;
+            for(int i = 0; i < PAGES_COUNT; i++) {
+                int version = version(i);
+                if(version != seen[i]) {
+                    seen[i] = version;
+                    dirty[i >> 6] |= 1L << i;
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private class MappedRegion implements Region {
+        private final RegionListener listener;
+        private final AtomicBoolean written = new AtomicBoolean();
+        private volatile short offset;
+        private volatile int length;
+
+        public MappedRegion(RegionListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public short getOffset() {
+            return offset;
+        }
+
+        @Override
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public void remap(short offset, int length) {
+            updateRegion(this, offset, length, true);
+            written.set(true);
+        }
+
+        @Override
+        public void unmap() {
+            updateRegion(this, offset, 0, false);
+        }
+
+        @Override
+        public boolean takeWritten() {
+            return written.getAndSet(false);
+        }
+
+        /** Words [start, start + length) have been written to the page of the region */
+        private void written(int page, int start, int length) {
+            int regionStart = offset & 0xffff;
+
+            // the range is seen by every page of the region it spans, handle it on the first one
+            if(page != start >> PAGE_SHIFT && page != regionStart >> PAGE_SHIFT) {
+                return;
+            }
+
+            if(((regionStart - start) & 0xffff) >= length && ((start - regionStart) & 0xffff) >= this.length) {
+                return;
+            }
+
+            // release store after the words, see takeWritten
+            written.lazySet(true);
+            if(listener != null) {
+                listener.regionWritten(this, (short)start, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,677 @@
+package net.taviscaron.dcpu16vm.machine.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiles translated blocks into classes, so the JIT compiles guest loops as plain Java methods.
+ *
+ * Every block becomes a CompiledBlock subclass whose run method has the register operations and
+ * tests inlined, registers accessed as array elements and literals as constants. PC and cycles
+ * are stored once before an instruction which may observe them and at the block exit. Other
+ * instructions call Runtime.generic which performs them with the interpreter operations.
+ *
+ * Classes are defined as hidden classes since Java 15. Older runtimes define every class in its
+ * own BlockLoader, as classes of the application loader are never unloaded and a self-modifying
+ * guest would retranslate its blocks into them w/o a limit. Either way a class is unloaded with its block.
+ *
+ * @author Andrei Senchuk
+ */
+final class BlockCompiler {
+    /** Operation kinds */
+    static final int SET = 0;
+    static final int ADD = 1;
+    static final int SUB = 2;
+    static final int AND = 3;
+    static final int BOR = 4;
+    static final int XOR = 5;
+    static final int IFB = 6;
+    static final int IFC = 7;
+    static final int IFE = 8;
+    static final int IFN = 9;
+    static final int IFG = 10;
+    static final int IFL = 11;
+    static final int JUMP = 12;
+    static final int GENERIC = 13;
+
+    /** Instruction of a block */
+    static class Op {
+        final int kind;
+
+        /** b register, a register or -1, a literal or jump target */
+        final int b;
+        final int aRegister;
+        final short aLiteral;
+
+        /** address of the following instruction */
+        short nextPc;
+
+        /** conditional instruction */
+        boolean conditional;
+
+        /** cycles the instruction takes if its test doesn't fail */
+        int cycles;
+
+        Op(int kind, int b, int aRegister, short aLiteral) {
+            this.kind = kind;
+            this.b = b;
+            this.aRegister = aRegister;
+            this.aLiteral = aLiteral;
+        }
+    }
+
+    private static final String SUPER_CLASS = "net/taviscaron/dcpu16vm/machine/impl/CompiledBlock";
+    private static final String STATE_CLASS = "net/taviscaron/dcpu16vm/machine/Processor$State";
+    private static final String RUNTIME_CLASS = "net/taviscaron/dcpu16vm/machine/impl/CompiledBlock$Runtime";
+    private static final String CLASS_PREFIX = "net/taviscaron/dcpu16vm/machine/impl/GeneratedBlock";
+
+    /** run method locals: this, state, runtime, registers array and the generic instruction status */
+    private static final int STATUS = 4;
+    private static final int LOCALS_COUNT = 5;
+    private static final int MAX_STACK = 8;
+
+    /** opcodes */
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int ALOAD_3 = 0x2d;
+    private static final int SALOAD = 0x35;
+    private static final int ISTORE = 0x36;
+    private static final int ASTORE_3 = 0x4e;
+    private static final int SASTORE = 0x56;
+    private static final int DUP = 0x59;
+    private static final int IADD = 0x60;
+    private static final int LADD = 0x61;
+    private static final int ISUB = 0x64;
+    private static final int INEG = 0x74;
+    private static final int ISHR = 0x7a;
+    private static final int IUSHR = 0x7c;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int I2L = 0x85;
+    private static final int I2C = 0x92;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int IF_ICMPLE = 0xa4;
+    private static final int GOTO = 0xa7;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKEINTERFACE = 0xb9;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /** Lookup.defineHiddenClass(byte[], boolean, ClassOption...), available since Java 15 */
+    private static final Method defineHiddenClass;
+    private static final Object noClassOptions;
+
+    private static final AtomicLong classesCount = new AtomicLong();
+
+    /** Loader of a single block class, so the class is unloaded once the block is dropped */
+    private static class BlockLoader extends ClassLoader {
+        public BlockLoader() {
+            super(BlockCompiler.class.getClassLoader());
+        }
+
+        public Class<?> define(String className, byte[] bytes) {
+            return defineClass(className.replace('/', '.'), bytes, 0, bytes.length);
+        }
+    }
+
+    static {
+        Method defineHiddenClassMethod = null;
+        Object options = null;
+        try {
+            Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(classOption, 0);
+            defineHiddenClassMethod = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+        } catch(ClassNotFoundException e) {
+            // hidden classes aren't supported
+        } catch(NoSuchMethodException e) {
+            // hidden classes aren't supported
+        }
+
+        defineHiddenClass = defineHiddenClassMethod;
+        noClassOptions = options;
+    }
+
+    /** Growable class file bytes */
+    private static class Bytes {
+        private byte[] data = new byte[256];
+        private int length;
+
+        public void u1(int value) {
+            if(length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[length++] = (byte)value;
+        }
+
+        public void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        public void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        public void put(Bytes bytes) {
+            for(int i = 0; i < bytes.length; i++) {
+                u1(bytes.data[i]);
+            }
+        }
+
+        public void patch2(int position, int value) {
+            data[position] = (byte)(value >> 8);
+            data[position + 1] = (byte)value;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+    /** Code position, jumps to it are patched when it's bound */
+    private static class Label {
+        private int position = -1;
+        private final List<Integer> jumps = new ArrayList<Integer>();
+    }
+
+    /** Failed test of an inlined conditional instruction, emitted after the block code */
+    private static class FailureStub {
+        private final Label label = new Label();
+        private final int index;
+
+        /** cycles not stored yet when the test failed */
+        private final int pendingCycles;
+
+        public FailureStub(int index, int pendingCycles) {
+            this.index = index;
+            this.pendingCycles = pendingCycles;
+        }
+    }
+
+    private final Op[] ops;
+    private final String className;
+
+    private final Bytes pool = new Bytes();
+    private final Map<String, Integer> poolIndexes = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private final Bytes code = new Bytes();
+    private final TreeSet<Integer> frames = new TreeSet<Integer>();
+
+    /** PC and cycles of the executed instructions not stored into the state yet */
+    private int pendingCycles;
+    private boolean pendingPc;
+    private short pc;
+
+    private BlockCompiler(Op[] ops, String className) {
+        this.ops = ops;
+        this.className = className;
+    }
+
+    /**
+     * Compile the block
+     * @param start entry address, for the class name
+     * @param ops instructions, generic ones are performed by the runtime with their indexes
+     */
+    public static CompiledBlock compile(int start, Op[] ops) {
+        String className = String.format("%s%04X_%d", CLASS_PREFIX, start, classesCount.incrementAndGet());
+        byte[] bytes = new BlockCompiler(ops, className).generate();
+
+        try {
+            Class<?> blockClass;
+            if(defineHiddenClass != null) {
+                MethodHandles.Lookup lookup = (MethodHandles.Lookup)defineHiddenClass.invoke(LOOKUP, bytes, false, noClassOptions);
+                blockClass = lookup.lookupClass();
+            } else {
+                blockClass = new BlockLoader().define(className, bytes);
+            }
+            return (CompiledBlock)blockClass.getDeclaredConstructor().newInstance();
+        } catch(InvocationTargetException e) {
+            throw new IllegalStateException("Can't define block class " + className, e.getCause());
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't define block class " + className, e);
+        }
+    }
+
+    private byte[] generate() {
+        int thisClass = classRef(className);
+        int superClass = classRef(SUPER_CLASS);
+        int codeName = utf8("Code");
+
+        Bytes methods = new Bytes();
+
+        // public constructor
+        Bytes constructorCode = new Bytes();
+        constructorCode.u1(ALOAD_0);
+        constructorCode.u1(INVOKESPECIAL);
+        constructorCode.u2(memberRef(10, SUPER_CLASS, "<init>", "()V"));
+        constructorCode.u1(RETURN);
+        methods.u2(0x0001);
+        methods.u2(utf8("<init>"));
+        methods.u2(utf8("()V"));
+        methods.u2(1);
+        methods.u2(codeName);
+        methods.u4(12 + constructorCode.length());
+        methods.u2(1);
+        methods.u2(1);
+        methods.u4(constructorCode.length());
+        methods.put(constructorCode);
+        methods.u2(0);
+        methods.u2(0);
+
+        // run method
+        generateRun();
+        Bytes stackMap = new Bytes();
+        stackMap.u2(frames.size());
+        int[] localTypes = new int[] { thisClass, classRef(STATE_CLASS), classRef(RUNTIME_CLASS), classRef("[S") };
+        int previous = -1;
+        for(int frame : frames) {
+            stackMap.u1(255);
+            stackMap.u2(frame - previous - 1);
+            stackMap.u2(LOCALS_COUNT);
+            for(int type : localTypes) {
+                stackMap.u1(7);
+                stackMap.u2(type);
+            }
+            stackMap.u1(1);
+            stackMap.u2(0);
+            previous = frame;
+        }
+        int stackMapName = utf8("StackMapTable");
+
+        methods.u2(0x0001);
+        methods.u2(utf8("run"));
+        methods.u2(utf8("(L" + STATE_CLASS + ";L" + RUNTIME_CLASS + ";)V"));
+        methods.u2(1);
+        methods.u2(codeName);
+        methods.u4(12 + code.length() + (frames.isEmpty() ? 0 : 6 + stackMap.length()));
+        methods.u2(MAX_STACK);
+        methods.u2(LOCALS_COUNT);
+        methods.u4(code.length());
+        methods.put(code);
+        methods.u2(0);
+        if(frames.isEmpty()) {
+            methods.u2(0);
+        } else {
+            methods.u2(1);
+            methods.u2(stackMapName);
+            methods.u4(stackMap.length());
+            methods.put(stackMap);
+        }
+
+        Bytes classFile = new Bytes();
+        classFile.u4(0xcafebabe);
+        classFile.u2(0);
+        classFile.u2(52);
+        classFile.u2(poolCount);
+        classFile.put(pool);
+        classFile.u2(0x0031); // public final super
+        classFile.u2(thisClass);
+        classFile.u2(superClass);
+        classFile.u2(0); // interfaces
+        classFile.u2(0); // fields
+        classFile.u2(2);
+        classFile.put(methods);
+        classFile.u2(0); // attributes
+        return classFile.toByteArray();
+    }
+
+    private void generateRun() {
+        int n = ops.length;
+
+        // skipping a failed test goes on until a non-conditional instruction has been skipped
+        int[] skipTo = new int[n];
+        boolean[] skipTarget = new boolean[n + 1];
+        for(int i = 0; i < n; i++) {
+            skipTo[i] = -1;
+            if(ops[i].conditional) {
+                int skipped = i + 1;
+                while(skipped < n && ops[skipped].conditional) {
+                    skipped++;
+                }
+                if(skipped < n) {
+                    skipTo[i] = skipped + 1;
+                    skipTarget[skipped + 1] = true;
+                }
+            }
+        }
+
+        Label[] labels = new Label[n + 1];
+        for(int i = 0; i <= n; i++) {
+            labels[i] = new Label();
+        }
+        List<FailureStub> stubs = new ArrayList<FailureStub>();
+
+        code.u1(ALOAD_1);
+        code.u1(GETFIELD);
+        code.u2(memberRef(9, STATE_CLASS, "registers", "[S"));
+        code.u1(ASTORE_3);
+        code.u1(ICONST_0);
+        code.u1(ISTORE);
+        code.u1(STATUS);
+
+        for(int i = 0; i < n; i++) {
+            Op op = ops[i];
+            if(skipTarget[i]) {
+                flush();
+                bind(labels[i]);
+            }
+
+            pendingCycles += op.cycles;
+            pc = op.nextPc;
+            pendingPc = true;
+
+            switch(op.kind) {
+                case SET:
+                    code.u1(ALOAD_3);
+                    pushInt(op.b);
+                    loadA(op);
+                    code.u1(SASTORE);
+                    break;
+                case ADD:
+                case SUB:
+                    loadB(op);
+                    loadA(op);
+                    code.u1((op.kind == ADD) ? IADD : ISUB);
+                    code.u1(ISTORE);
+                    code.u1(STATUS);
+                    code.u1(ALOAD_3);
+                    pushInt(op.b);
+                    code.u1(ILOAD);
+                    code.u1(STATUS);
+                    code.u1(SASTORE);
+
+                    // x = (result + 0x8000) >>> 16 isn't 0 on overflow, (x | -x) has the sign bit then
+                    code.u1(ALOAD_1);
+                    code.u1(ILOAD);
+                    code.u1(STATUS);
+                    pushInt(0x8000);
+                    code.u1(IADD);
+                    pushInt(16);
+                    code.u1(IUSHR);
+                    code.u1(DUP);
+                    code.u1(INEG);
+                    code.u1(IOR);
+                    pushInt(31);
+                    code.u1((op.kind == ADD) ? IUSHR : ISHR);
+                    code.u1(PUTFIELD);
+                    code.u2(memberRef(9, STATE_CLASS, "ex", "S"));
+                    break;
+                case AND:
+                case BOR:
+                case XOR:
+                    code.u1(ALOAD_3);
+                    pushInt(op.b);
+                    loadB(op);
+                    loadA(op);
+                    code.u1((op.kind == AND) ? IAND : (op.kind == BOR) ? IOR : IXOR);
+                    code.u1(SASTORE);
+                    break;
+                case IFB:
+                case IFC:
+                    loadB(op);
+                    loadA(op);
+                    code.u1(IAND);
+                    stubs.add(failure(i, (op.kind == IFB) ? IFEQ : IFNE));
+                    break;
+                case IFE:
+                case IFN:
+                    loadB(op);
+                    loadA(op);
+                    stubs.add(failure(i, (op.kind == IFE) ? IF_ICMPNE : IF_ICMPEQ));
+                    break;
+                case IFG:
+                case IFL:
+                    loadB(op);
+                    code.u1(I2C);
+                    if(op.aRegister >= 0) {
+                        loadA(op);
+                        code.u1(I2C);
+                    } else {
+                        pushInt(op.aLiteral & 0xffff);
+                    }
+                    stubs.add(failure(i, (op.kind == IFG) ? IF_ICMPLE : IF_ICMPGE));
+                    break;
+                case JUMP:
+                    pc = op.aLiteral;
+                    break;
+                default: {
+                    // the interpreter operation sees PC and cycles as the interpreter has them
+                    flush();
+                    code.u1(ALOAD_2);
+                    pushInt(i);
+                    code.u1(INVOKEINTERFACE);
+                    code.u2(memberRef(11, RUNTIME_CLASS, "generic", "(I)I"));
+                    code.u1(2);
+                    code.u1(0);
+                    code.u1(ISTORE);
+                    code.u1(STATUS);
+
+                    Label next = new Label();
+                    code.u1(ILOAD);
+                    code.u1(STATUS);
+                    jump(IFEQ, next);
+                    if(op.conditional) {
+                        FailureStub stub = new FailureStub(i, 0);
+                        code.u1(ILOAD);
+                        code.u1(STATUS);
+                        pushInt(CompiledBlock.TEST_FAILED);
+                        jump(IF_ICMPEQ, stub.label);
+                        stubs.add(stub);
+                    }
+                    code.u1(RETURN);
+                    bind(next);
+                    break;
+                }
+            }
+        }
+
+        flush();
+        code.u1(RETURN);
+
+        for(FailureStub stub : stubs) {
+            bind(stub.label);
+            int i = stub.index;
+            if(skipTo[i] >= 0) {
+                // failed test takes a cycle longer, every skipped instruction takes a cycle
+                addCycles(stub.pendingCycles + 1 + skipTo[i] - i - 1);
+                storePc(ops[skipTo[i] - 1].nextPc);
+                if(skipTo[i] < n) {
+                    jump(GOTO, labels[skipTo[i]]);
+                } else {
+                    code.u1(RETURN);
+                }
+            } else {
+                // skipping runs out of the block
+                addCycles(stub.pendingCycles + 1 + n - i - 1);
+                storePc(ops[n - 1].nextPc);
+                code.u1(ALOAD_1);
+                pushInt(1);
+                code.u1(PUTFIELD);
+                code.u2(memberRef(9, STATE_CLASS, "skipping", "Z"));
+                code.u1(RETURN);
+            }
+        }
+    }
+
+    /** Jump to a new failure stub, the test result is on the stack */
+    private FailureStub failure(int index, int opcode) {
+        FailureStub stub = new FailureStub(index, pendingCycles);
+        jump(opcode, stub.label);
+        return stub;
+    }
+
+    /** Store pending PC and cycles */
+    private void flush() {
+        addCycles(pendingCycles);
+        pendingCycles = 0;
+        if(pendingPc) {
+            storePc(pc);
+            pendingPc = false;
+        }
+    }
+
+    private void addCycles(int cycles) {
+        if(cycles != 0) {
+            int field = memberRef(9, STATE_CLASS, "cycles", "J");
+            code.u1(ALOAD_1);
+            code.u1(DUP);
+            code.u1(GETFIELD);
+            code.u2(field);
+            pushInt(cycles);
+            code.u1(I2L);
+            code.u1(LADD);
+            code.u1(PUTFIELD);
+            code.u2(field);
+        }
+    }
+
+    private void storePc(short value) {
+        code.u1(ALOAD_1);
+        pushInt(value);
+        code.u1(PUTFIELD);
+        code.u2(memberRef(9, STATE_CLASS, "pc", "S"));
+    }
+
+    private void loadB(Op op) {
+        code.u1(ALOAD_3);
+        pushInt(op.b);
+        code.u1(SALOAD);
+    }
+
+    private void loadA(Op op) {
+        if(op.aRegister >= 0) {
+            code.u1(ALOAD_3);
+            pushInt(op.aRegister);
+            code.u1(SALOAD);
+        } else {
+            pushInt(op.aLiteral);
+        }
+    }
+
+    private void pushInt(int value) {
+        if(value >= -1 && value <= 5) {
+            code.u1(ICONST_0 + value);
+        } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH);
+            code.u1(value);
+        } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH);
+            code.u2(value);
+        } else {
+            code.u1(LDC_W);
+            code.u2(integer(value));
+        }
+    }
+
+    private void jump(int opcode, Label label) {
+        int position = code.length();
+        code.u1(opcode);
+        if(label.position >= 0) {
+            code.u2(label.position - position);
+        } else {
+            label.jumps.add(position);
+            code.u2(0);
+        }
+    }
+
+    /** Bind the label to the current position, it gets a stack map frame */
+    private void bind(Label label) {
+        label.position = code.length();
+        for(int jump : label.jumps) {
+            code.patch2(jump + 1, label.position - jump);
+        }
+        frames.add(label.position);
+    }
+
+    private int utf8(String value) {
+        Integer index = poolIndexes.get("s" + value);
+        if(index == null) {
+            // names and descriptors are ASCII
+            pool.u1(1);
+            pool.u2(value.length());
+            for(int i = 0; i < value.length(); i++) {
+                pool.u1(value.charAt(i));
+            }
+            index = addConstant("s" + value);
+        }
+        return index;
+    }
+
+    private int integer(int value) {
+        Integer index = poolIndexes.get("i" + value);
+        if(index == null) {
+            pool.u1(3);
+            pool.u4(value);
+            index = addConstant("i" + value);
+        }
+        return index;
+    }
+
+    private int classRef(String name) {
+        Integer index = poolIndexes.get("c" + name);
+        if(index == null) {
+            int nameIndex = utf8(name);
+            pool.u1(7);
+            pool.u2(nameIndex);
+            index = addConstant("c" + name);
+        }
+        return index;
+    }
+
+    /** @param tag 9 field, 10 method, 11 interface method */
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = "m" + tag + owner + "." + name + ":" + descriptor;
+        Integer index = poolIndexes.get(key);
+        if(index == null) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+
+            pool.u1(12);
+            pool.u2(nameIndex);
+            pool.u2(descriptorIndex);
+            int nameAndType = addConstant("n" + key);
+
+            pool.u1(tag);
+            pool.u2(ownerIndex);
+            pool.u2(nameAndType);
+            index = addConstant(key);
+        }
+        return index;
+    }
+
+    private int addConstant(String key) {
+        int index = poolCount++;
+        poolIndexes.put(key, index);
+        return index;
+    }
+}
@@ -0,0 +1,33 @@
+package net.taviscaron.dcpu16vm.machine.impl;
+
+import net.taviscaron.dcpu16vm.machine.Processor;
+
+/**
+ * Superclass of the classes generated by BlockCompiler, one class per translated block.
+ * It's public for the classes defined by the block loaders, which are in another runtime package.
+ *
+ * @author Andrei Senchuk
+ */
+public abstract class CompiledBlock {
+    /** Results of Runtime.generic */
+    static final int CONTINUE = 0;
+    static final int TEST_FAILED = 1;
+
+    /** the block has been overwritten, the runtime has finished the instruction */
+    static final int STOP = 2;
+
+    /** Instructions the generated code doesn't inline */
+    public interface Runtime {
+        /**
+         * Perform the instruction of the block, PC and cycles are already updated
+         * @return CONTINUE, TEST_FAILED or STOP
+         */
+        int generic(int index);
+    }
+
+    protected CompiledBlock() {
+    }
+
+    /** Execute the block */
+    public abstract void run(Processor.State state, Runtime runtime);
+}
@@ -0,0 +1,146 @@
+package net.taviscaron.dcpu16vm.machine.impl;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue of interrupt messages.
+ *
+ * Any thread can offer messages, only the processor thread polls them. Messages are
+ * kept as primitive words in a ring buffer. The pending flag is the only thing the
+ * processor reads while nothing is queued.
+ *
+ * An offer to the full queue marks it overflowed, the DCPU-16 catches fire then.
+ *
+ * A slot keeps the lap of its position with the message, so a message stored for a position
+ * the consumer has cleared isn't taken for the message of a later position.
+ *
+ * @author Andrei Senchuk
+ */
+public class InterruptQueue {
+    /** empty slot marker, messages are stored as unsigned words with the lap above them */
+    private static final int EMPTY = -1;
+    private static final int LAP_MASK = 0x7fff;
+
+    private final int capacity;
+    private final int mask;
+    private final int lapShift;
+    private final AtomicIntegerArray slots;
+
+    /** next slot to be reserved by a producer */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** next slot to be polled. Written by the consumer only. */
+    private volatile long head;
+
+    /** queue might have messages or is overflowed */
+    private volatile boolean pending;
+
+    /** more than capacity messages were queued */
+    private volatile boolean overflowed;
+
+    public InterruptQueue(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be positive");
+        }
+
+        this.capacity = capacity;
+
+        // ring buffer is bigger than capacity, so a producer never stores into the slot being polled
+        int size = Integer.highestOneBit(capacity) << 1;
+        this.mask = size - 1;
+        this.lapShift = Integer.numberOfTrailingZeros(size);
+        this.slots = new AtomicIntegerArray(size);
+        for(int i = 0; i < size; i++) {
+            slots.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * Queue message. Can be called by any thread.
+     * @param code interrupt message
+     * @return false if the queue is full. The queue is overflowed then.
+     */
+    public boolean offer(short code) {
+        long position = tail.getAndIncrement();
+        if(position - head >= capacity) {
+            overflowed = true;
+            pending = true;
+            return false;
+        }
+
+        slots.set((int)position & mask, lap(position) << 16 | (code & 0xffff));
+        pending = true;
+        return true;
+    }
+
+    /**
+     * Poll next message. Should be called by the consumer thread only.
+     * @return message or -1 if here's nothing to poll
+     */
+    public int poll() {
+        if(!pending) {
+            return -1;
+        }
+
+        long position = head;
+        int index = (int)position & mask;
+        int slot = slots.get(index);
+        if(slot == EMPTY || slot >>> 16 != lap(position)) {
+            // queue is empty or a producer hasn't stored its message yet
+            clearPendingIfEmpty(position);
+            return -1;
+        }
+
+        slots.lazySet(index, EMPTY);
+        head = position + 1;
+        clearPendingIfEmpty(position + 1);
+        return slot & 0xffff;
+    }
+
+    /**
+     * Drop queued messages and the overflow. Should be called by the consumer thread only.
+     * Messages offered concurrently with the clear might be dropped too.
+     */
+    public void clear() {
+        // positions reserved so far are skipped. Late stores into them have a past lap.
+        overflowed = false;
+        long position = tail.get();
+        head = position;
+        clearPendingIfEmpty(position);
+    }
+
+    /** Check messages might be queued */
+    public boolean isPending() {
+        return pending;
+    }
+
+    /** Check the queue was offered more messages than it can hold */
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /** Approximate number of queued messages */
+    public int size() {
+        return (int)Math.max(0, Math.min(capacity, tail.get() - head));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private int lap(long position) {
+        return (int)(position >>> lapShift) & LAP_MASK;
+    }
+
+    private void clearPendingIfEmpty(long position) {
+        if(!overflowed && tail.get() == position) {
+            pending = false;
+
+            // a producer could reserve a slot after the check
+            if(tail.get() != position) {
+                pending = true;
+            }
+        }
+    }
+}
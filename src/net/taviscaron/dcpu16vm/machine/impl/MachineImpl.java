@@ -5,6 +5,10 @@ import net.taviscaron.dcpu16vm.machine.MachineException;
 import net.taviscaron.dcpu16vm.machine.Memory;
 import net.taviscaron.dcpu16vm.machine.Processor;
 import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.util.VirtualThreads;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Machine implementation
@@ -16,11 +20,19 @@ public class MachineImpl implements Machine {
     private Device[] devices;
     private short[] program;
 
+    /** Run the processor on a virtual thread, so its parking and throttling don't hold a platform thread */
+    private boolean virtualThread;
+
     private final MemoryBus memoryBus = new MemoryBus() {
         @Override
         public Memory memory() {
             return memory;
         }
+
+        @Override
+        public Memory.Region mapRegion(short offset, int length, Memory.RegionListener listener) {
+            return memory.mapRegion(offset, length, listener);
+        }
     };
 
     private final InterruptionBus interruptionBus = new InterruptionBus() {
@@ -28,6 +40,16 @@ public class MachineImpl implements Machine {
         public void interrupt(short code) {
             processor.interrupt(code);
         }
+
+        @Override
+        public void wakeup() {
+            processor.wakeup();
+        }
+
+        @Override
+        public long cycles() {
+            return processor.getCycles();
+        }
     };
 
     private final HardwareBus hardwareBus = new HardwareBus() {
@@ -90,8 +112,23 @@ public class MachineImpl implements Machine {
         return program;
     }
 
+    /**
+     * Run the processor on a virtual thread. start() still returns once the processor stops.
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public void setVirtualThread(boolean virtualThread) {
+        if(virtualThread && !VirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21, running on " + System.getProperty("java.version"));
+        }
+        this.virtualThread = virtualThread;
+    }
+
+    public boolean isVirtualThread() {
+        return virtualThread;
+    }
+
     @Override
-    public void start() throws MachineException {
+    public void prepare() {
         if(processor == null) {
             throw new RuntimeException("Machine is missing processor");
         }
@@ -118,16 +155,65 @@ public class MachineImpl implements Machine {
         // load program
         memory.set((short)0, program);
 
+        processor.reset();
+    }
+
+    @Override
+    public void start() throws MachineException {
+        prepare();
+
+        if(virtualThread && !VirtualThreads.isVirtual(Thread.currentThread())) {
+            runOnVirtualThread();
+        } else {
+            runProcessor();
+        }
+    }
+
+    private void runProcessor() throws MachineException {
         try {
             processor.start();
         } catch(Throwable th) {
-            // shutdown devices
-            for(Device device : devices) {
-                device.shutdown();
-            }
+            shutdown();
 
             // re-throw exception
             throw new MachineException(th);
         }
     }
+
+    /** Run the processor on a new virtual thread and wait for it */
+    private void runOnVirtualThread() throws MachineException {
+        final AtomicReference<MachineException> failure = new AtomicReference<MachineException>();
+        ThreadFactory factory = VirtualThreads.factory("machine-");
+        Thread thread = factory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runProcessor();
+                } catch(MachineException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        thread.start();
+
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            processor.stop();
+            throw new MachineException(e);
+        }
+
+        if(failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if(devices != null) {
+            for(Device device : devices) {
+                device.shutdown();
+            }
+        }
+    }
 }
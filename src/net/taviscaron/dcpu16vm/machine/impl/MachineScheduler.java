@@ -0,0 +1,364 @@
+package net.taviscaron.dcpu16vm.machine.impl;
+
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.Processor;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs many machines on a fixed pool of worker threads.
+ *
+ * Machines are driven by the processor run methods in quanta of QUANTUM_CYCLES cycles scaled by
+ * the machine priority, so busy machines share the workers in proportion to their priorities.
+ * Every worker has its own queue and steals from the other queues once its own is empty.
+ *
+ * A machine spinning in an idle loop takes no queue slot and no thread until an interrupt,
+ * a device state change or stop() wakes its processor. Throttled machines are put aside until
+ * the wall time catches up with their cycles.
+ *
+ * @author Andrei Senchuk
+ */
+public class MachineScheduler {
+    public static final int MIN_PRIORITY = 1;
+    public static final int NORM_PRIORITY = 5;
+    public static final int MAX_PRIORITY = 10;
+
+    /** Cycles a machine of the normal priority runs before the worker switches to the next one */
+    public static final long QUANTUM_CYCLES = 10000;
+
+    /** Task states */
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int IDLE = 2;
+    private static final int DELAYED = 3;
+    private static final int DONE = 4;
+
+    /** Scheduled machine handle */
+    public class Task implements Processor.WakeupListener {
+        private final Machine machine;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final Throttle throttle = new Throttle();
+        private volatile int priority;
+        private volatile long cycles;
+        private volatile Throwable error;
+
+        /** Worker the task has run on the last time. Woken tasks are queued to it. */
+        private volatile Worker worker;
+
+        private final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                if(state.compareAndSet(DELAYED, QUEUED)) {
+                    enqueue(Task.this);
+                }
+            }
+        };
+
+        private Task(Machine machine, int priority) {
+            this.machine = machine;
+            this.priority = priority;
+        }
+
+        public Machine getMachine() {
+            return machine;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /** Change priority. Takes effect on the next quantum. */
+        public void setPriority(int priority) {
+            checkPriority(priority);
+            this.priority = priority;
+        }
+
+        /** Cycles executed by the machine processor */
+        public long getCycles() {
+            return cycles;
+        }
+
+        /** Check the machine waits in an idle loop */
+        public boolean isIdle() {
+            return state.get() == IDLE;
+        }
+
+        /** Check the processor has stopped or failed */
+        public boolean isDone() {
+            return state.get() == DONE;
+        }
+
+        /** Exception the processor has failed with, null if it hasn't */
+        public Throwable getError() {
+            return error;
+        }
+
+        /** Stop the processor. The task is done once its current quantum ends. */
+        public void cancel() {
+            machine.getProcessor().stop();
+        }
+
+        /** Wait until the task is done */
+        public void join() throws InterruptedException {
+            done.await();
+        }
+
+        /**
+         * Wait until the task is done
+         * @return false if the timeout has elapsed first
+         */
+        public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        @Override
+        public void wokeUp(Processor processor) {
+            if(state.compareAndSet(IDLE, QUEUED)) {
+                enqueue(this);
+            }
+        }
+
+        private void runQuantum(Worker worker) {
+            if(!state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+
+            this.worker = worker;
+            Processor processor = machine.getProcessor();
+            try {
+                cycles += processor.runCycles(QUANTUM_CYCLES * priority / NORM_PRIORITY);
+            } catch(Throwable th) {
+                error = th;
+                finish();
+                return;
+            }
+
+            if(!processor.isRunning()) {
+                finish();
+                return;
+            }
+
+            if(processor.isIdle()) {
+                throttle.reset();
+                state.set(IDLE);
+
+                // the processor could be woken before the state was set, so its listener has missed it
+                if((!processor.isIdle() || !processor.isRunning()) && state.compareAndSet(IDLE, QUEUED)) {
+                    enqueue(this);
+                }
+                return;
+            }
+
+            int frequency = processor.getFrequency();
+            if(frequency != ProcessorImpl.UNTHROTTLED) {
+                long ahead = throttle.ahead(cycles, frequency, System.nanoTime());
+                if(ahead > 0) {
+                    state.set(DELAYED);
+                    try {
+                        timer.schedule(resume, ahead, TimeUnit.NANOSECONDS);
+                    } catch(RuntimeException e) {
+                        // the scheduler is shut down, the task is finished by shutdown()
+                    }
+                    return;
+                }
+            } else {
+                throttle.reset();
+            }
+
+            // round robin over the own queue
+            state.set(QUEUED);
+            worker.queue.addLast(this);
+        }
+
+        private void finish() {
+            if(state.getAndSet(DONE) == DONE) {
+                return;
+            }
+
+            machine.getProcessor().setWakeupListener(null);
+            tasks.remove(this);
+            try {
+                machine.shutdown();
+            } catch(RuntimeException e) {
+                if(error == null) {
+                    error = e;
+                }
+            }
+            done.countDown();
+        }
+    }
+
+    /** Worker thread running queued tasks */
+    private class Worker extends Thread {
+        private final ConcurrentLinkedDeque<Task> queue = new ConcurrentLinkedDeque<Task>();
+        private final int index;
+        private volatile boolean parked;
+
+        public Worker(int index) {
+            super("machine-scheduler-" + index);
+            this.index = index;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while(!shutdown) {
+                Task task = queue.pollFirst();
+                if(task == null) {
+                    task = steal();
+                }
+
+                if(task != null) {
+                    task.runQuantum(this);
+                } else {
+                    park();
+                }
+            }
+        }
+
+        /** Take a task from the tail of another worker queue */
+        private Task steal() {
+            for(int i = 1; i < workers.length; i++) {
+                Task task = workers[(index + i) % workers.length].queue.pollLast();
+                if(task != null) {
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        private void park() {
+            // parked is set before the queues check, so enqueue() sees it or the check sees the task
+            parked = true;
+            try {
+                while(!shutdown && !hasQueuedTasks()) {
+                    LockSupport.park(this);
+                }
+            } finally {
+                parked = false;
+            }
+        }
+    }
+
+    private final Worker[] workers;
+    private final ScheduledExecutorService timer;
+    private final Set<Task> tasks = Collections.newSetFromMap(new ConcurrentHashMap<Task, Boolean>());
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private volatile boolean shutdown;
+
+    /** Create scheduler with a worker per available processor */
+    public MachineScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public MachineScheduler(int threads) {
+        if(threads <= 0) {
+            throw new IllegalArgumentException("threads count should be positive");
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "machine-scheduler-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        workers = new Worker[threads];
+        for(int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+        }
+
+        for(Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    /** Prepare the machine and schedule it with the normal priority */
+    public Task submit(Machine machine) {
+        return submit(machine, NORM_PRIORITY);
+    }
+
+    /** Prepare the machine and schedule it. The task is done once its processor stops. */
+    public Task submit(Machine machine, int priority) {
+        checkPriority(priority);
+        if(shutdown) {
+            throw new IllegalStateException("scheduler is shut down");
+        }
+
+        machine.prepare();
+
+        Task task = new Task(machine, priority);
+        tasks.add(task);
+        machine.getProcessor().setWakeupListener(task);
+        enqueue(task);
+        return task;
+    }
+
+    /** Stop the workers, then stop and finish the tasks left */
+    public void shutdown() throws InterruptedException {
+        shutdown = true;
+        timer.shutdownNow();
+
+        for(Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+
+        for(Worker worker : workers) {
+            worker.join();
+        }
+
+        for(Task task : tasks) {
+            task.machine.getProcessor().setWakeupListener(null);
+            task.cancel();
+            task.finish();
+        }
+    }
+
+    private void enqueue(Task task) {
+        Worker worker = task.worker;
+        if(worker == null) {
+            worker = workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+        }
+        worker.queue.addLast(task);
+
+        if(worker.parked) {
+            LockSupport.unpark(worker);
+        } else {
+            // the worker is busy, let a parked one steal the task
+            for(Worker other : workers) {
+                if(other.parked) {
+                    LockSupport.unpark(other);
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean hasQueuedTasks() {
+        for(Worker worker : workers) {
+            if(!worker.queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkPriority(int priority) {
+        if(priority < MIN_PRIORITY || priority > MAX_PRIORITY) {
+            throw new IllegalArgumentException("priority should be in " + MIN_PRIORITY + ".." + MAX_PRIORITY);
+        }
+    }
+}
@@ -1,25 +1,48 @@
 package net.taviscaron.dcpu16vm.machine.impl;
 
-import net.taviscaron.dcpu16vm.machine.Memory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ShortBuffer;
 
 /**
- * Memory in-memory implementation
+ * Memory in-memory implementation.
+ *
+ * The processor thread owns the words and accesses them as plain array elements. Other threads
+ * use the acquire/release accessors, see Memory for the visibility they get. A write still bumps
+ * the page version with a release store and notifies the regions and the write listeners.
+ *
+ * Words are kept in the Java heap, see OffHeapMemoryImpl to keep them out of it.
+ *
  * @author Andrei Senchuk
  */
-public class MemoryImpl implements Memory {
+public class MemoryImpl extends AbstractMemory {
     public static final int DEFAULT_MEMORY_WORDS_SIZE = 0x10000;
-    
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(short[].class);
+
     /** memory buffer */
-    private short[] memory = new short[DEFAULT_MEMORY_WORDS_SIZE];
+    private final short[] memory = new short[DEFAULT_MEMORY_WORDS_SIZE];
 
     @Override
-    public synchronized short readWord(short offset) {
+    public short readWord(short offset) {
         return memory[offset & 0xffff];
     }
 
     @Override
-    public synchronized void writeWord(short offset, short value) {
+    public void writeWord(short offset, short value) {
         memory[offset & 0xffff] = value;
+        wordWritten(offset);
+    }
+
+    @Override
+    public short readWordAcquire(short offset) {
+        return (short)WORDS.getAcquire(memory, offset & 0xffff);
+    }
+
+    @Override
+    public void writeWordRelease(short offset, short value) {
+        WORDS.setRelease(memory, offset & 0xffff, value);
+        wordsWritten(offset, 1);
     }
 
     @Override
@@ -28,9 +51,30 @@ public class MemoryImpl implements Memory {
     }
 
     @Override
-    public synchronized void set(short offset, short[] buffer) {
+    public void set(short offset, short[] buffer) {
         int start = offset & 0xffff;
         int size = Math.min(buffer.length, memory.length - start);
         System.arraycopy(buffer, 0, memory, start, size);
+        wordsWritten(offset, size);
+    }
+
+    @Override
+    protected void readWords(int start, short[] buffer, int from, int length) {
+        System.arraycopy(memory, start, buffer, from, length);
+    }
+
+    @Override
+    protected void writeWords(int start, short[] buffer, int from, int length) {
+        System.arraycopy(buffer, from, memory, start, length);
+    }
+
+    @Override
+    protected void readWords(int start, ShortBuffer buffer, int length) {
+        buffer.put(memory, start, length);
+    }
+
+    @Override
+    protected void writeWords(int start, ShortBuffer buffer, int length) {
+        buffer.get(memory, start, length);
     }
 }
@@ -0,0 +1,153 @@
+package net.taviscaron.dcpu16vm.machine.impl;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory kept out of the Java heap in a direct buffer, so thousands of guests don't make the GC
+ * mark their RAM. The buffer might be mapped from a file with the file property, the RAM image
+ * persists across the JVM restarts then and other processes can inspect it while the guest runs.
+ *
+ * Words are stored big-endian as the program images are. Accesses follow MemoryImpl: plain ones
+ * by the processor thread, acquire/release ones by the others.
+ *
+ * Example:
+ * <memory type="net.taviscaron.dcpu16vm.machine.impl.OffHeapMemoryImpl" file="guest.ram"/>
+ *
+ * @author Andrei Senchuk
+ */
+public class OffHeapMemoryImpl extends AbstractMemory {
+    public static final int DEFAULT_MEMORY_WORDS_SIZE = 0x10000;
+    private static final int SIZE_IN_BYTES = DEFAULT_MEMORY_WORDS_SIZE * 2;
+
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+
+    /** memory buffer */
+    private ByteBuffer memory = ByteBuffer.allocateDirect(SIZE_IN_BYTES);
+
+    /** words view for the bulk transfers */
+    private ShortBuffer words = memory.asShortBuffer();
+
+    /** file the memory is mapped from, null if it's not mapped */
+    private String file;
+
+    /**
+     * Map memory from the file. The file is created or extended to the memory size if it's shorter.
+     * Should be set before the machine starts, the current memory content is dropped.
+     */
+    public void setFile(String file) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            if(randomAccessFile.length() < SIZE_IN_BYTES) {
+                randomAccessFile.setLength(SIZE_IN_BYTES);
+            }
+
+            // the mapping stays valid after the channel is closed
+            memory = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE_IN_BYTES);
+            words = memory.asShortBuffer();
+            this.file = file;
+        } catch(IOException e) {
+            throw new IllegalArgumentException("Can't map memory file " + file + ": " + e.getMessage(), e);
+        } finally {
+            if(randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch(IOException e) {
+                    System.err.println("Can't close memory file " + file + ": " + e);
+                }
+            }
+        }
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * Write the mapped memory to the file. Modified pages are written by the OS anyway,
+     * even if the JVM exits abnormally, so it's only needed to survive the OS crash.
+     */
+    public void flush() {
+        if(memory instanceof MappedByteBuffer) {
+            ((MappedByteBuffer)memory).force();
+        }
+    }
+
+    @Override
+    public short readWord(short offset) {
+        return memory.getShort((offset & 0xffff) << 1);
+    }
+
+    @Override
+    public void writeWord(short offset, short value) {
+        memory.putShort((offset & 0xffff) << 1, value);
+        wordWritten(offset);
+    }
+
+    @Override
+    public short readWordAcquire(short offset) {
+        return (short)WORDS.getAcquire(memory, (offset & 0xffff) << 1);
+    }
+
+    @Override
+    public void writeWordRelease(short offset, short value) {
+        WORDS.setRelease(memory, (offset & 0xffff) << 1, value);
+        wordsWritten(offset, 1);
+    }
+
+    @Override
+    public short sizeInWords() {
+        return (short)DEFAULT_MEMORY_WORDS_SIZE;
+    }
+
+    @Override
+    public void set(short offset, short[] buffer) {
+        int start = offset & 0xffff;
+        int size = Math.min(buffer.length, DEFAULT_MEMORY_WORDS_SIZE - start);
+        for(int i = 0; i < size; i++) {
+            memory.putShort((start + i) << 1, buffer[i]);
+        }
+        wordsWritten(offset, size);
+    }
+
+    /** Views share the buffer content but not the position, so concurrent transfers don't interfere */
+    @Override
+    protected void readWords(int start, short[] buffer, int from, int length) {
+        ShortBuffer view = words.duplicate();
+        view.position(start);
+        view.get(buffer, from, length);
+    }
+
+    @Override
+    protected void writeWords(int start, short[] buffer, int from, int length) {
+        ShortBuffer view = words.duplicate();
+        view.position(start);
+        view.put(buffer, from, length);
+    }
+
+    @Override
+    protected void readWords(int start, ShortBuffer buffer, int length) {
+        ShortBuffer view = words.duplicate();
+        view.position(start);
+        view.limit(start + length);
+        buffer.put(view);
+    }
+
+    @Override
+    protected void writeWords(int start, ShortBuffer buffer, int length) {
+        ShortBuffer source = buffer.duplicate();
+        source.limit(source.position() + length);
+        ShortBuffer view = words.duplicate();
+        view.position(start);
+        view.put(source);
+        buffer.position(source.position());
+    }
+}
@@ -1,10 +1,13 @@
 package net.taviscaron.dcpu16vm.machine.impl;
 
+import net.taviscaron.dcpu16vm.machine.Memory;
 import net.taviscaron.dcpu16vm.machine.Processor;
 import net.taviscaron.dcpu16vm.machine.device.Device;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Processor implementation
@@ -12,12 +15,12 @@ import java.util.Queue;
  */
 public class ProcessorImpl extends Processor {
     /** Processor operation interface. */
-    private interface Operation {
+    interface Operation {
         public void perform(short opcode, short aCode, Value a, short bCode, Value b);
     }
     
     /** Conditional operation base class. Sets skip bit on falce condition. */
-    private abstract class ConditionalOperation implements Operation {
+    abstract class ConditionalOperation implements Operation {
         @Override
         public void perform(short opcode, short aCode, Value a, short bCode, Value b) {
             if(!condition(a, b)) {
@@ -39,138 +42,93 @@ public class ProcessorImpl extends Processor {
     }
     
     /** Operation arg value interface */
-    private interface Value {
+    interface Value {
         public short get();
         public void set(short value);
     }
-    
-    private class RegisterValue implements Value {
-        private short index;
-        
-        public RegisterValue(short index) {
-            this.index = index;
-        }
-
-        @Override
-        public short get() {
-            return state.registers[index];
-        }
-
-        @Override
-        public void set(short value) {
-            state.registers[index] = value;
-        }
-    }
-    
-    /** [position] get/set */
-    private class MemoryValue implements Value {
-        private short pos;
-        
-        public MemoryValue(short pos) {
-            this.pos = pos;
-        }
-        
-        @Override
-        public short get() {
-            return memoryBus.memory().readWord(pos);
-        }
 
-        @Override
-        public void set(short value) {
-            memoryBus.memory().writeWord(pos, value);
-        }
-    }
-    
-    /** [register + next word] get/set */
-    private class RegisterAddressValue extends MemoryValue {
-        public RegisterAddressValue(short index, boolean withOffset) {            
-            super((short)(state.registers[index] + ((withOffset) ? nextWord() : 0)));
-        }
-    }
-    
-    /** literal get/set */
-    private class LiteralValue implements Value {
-        private short value;
-        
-        public LiteralValue(short value) {
-            this.value = value;
-        }
-        
-        @Override
-        public short get() {
-            return value;
-        }
+    /** operand addressing modes */
+    private static final int MODE_REGISTER = 0;
+    private static final int MODE_MEMORY = 1;
+    private static final int MODE_PUSH = 2;
+    private static final int MODE_POP = 3;
+    private static final int MODE_SP = 4;
+    private static final int MODE_PC = 5;
+    private static final int MODE_EX = 6;
+    private static final int MODE_LITERAL = 7;
 
-        @Override
-        public void set(short value) {
-            // attempting to write to a literal value fails silently
-        }
-    }
+    /**
+     * Reusable operand value. Decoding binds it to a register, a memory cell,
+     * a stack access or a literal, so executing an instruction doesn't allocate.
+     */
+    private class OperandValue implements Value {
+        /** addressing mode */
+        private int mode;
 
-    /** push value into the stack */
-    private final Value pushValue = new Value() {
-        @Override
-        public short get() {
-            return 0;
-        }
+        /** register index, memory address or literal value depending on the mode */
+        private short arg;
 
-        @Override
-        public void set(short value) {
-            memoryBus.memory().writeWord(--state.sp, value);
+        public void bind(int mode, short arg) {
+            this.mode = mode;
+            this.arg = arg;
         }
-    };
 
-    /** pop value from the stack */
-    private final Value popValue = new Value() {
         @Override
         public short get() {
-            return memoryBus.memory().readWord(state.sp++);
+            switch(mode) {
+                case MODE_REGISTER:
+                    return state.registers[arg];
+                case MODE_MEMORY:
+                    return memoryBus.memory().readWord(arg);
+                case MODE_POP:
+                    return memoryBus.memory().readWord(state.sp++);
+                case MODE_SP:
+                    return state.sp;
+                case MODE_PC:
+                    return state.pc;
+                case MODE_EX:
+                    return state.ex;
+                case MODE_LITERAL:
+                    return arg;
+                default:
+                    // nothing to read on push
+                    return 0;
+            }
         }
 
         @Override
         public void set(short value) {
-            // nothing on pop
-        }
-    };
-
-    /** SP */
-    private final Value spValue = new Value() {
-        @Override
-        public short get() {
-            return state.sp;
+            switch(mode) {
+                case MODE_REGISTER:
+                    state.registers[arg] = value;
+                    break;
+                case MODE_MEMORY:
+                    memoryBus.memory().writeWord(arg, value);
+                    break;
+                case MODE_PUSH:
+                    memoryBus.memory().writeWord(--state.sp, value);
+                    break;
+                case MODE_SP:
+                    state.sp = value;
+                    break;
+                case MODE_PC:
+                    state.pc = value;
+                    break;
+                case MODE_EX:
+                    state.ex = value;
+                    break;
+                default:
+                    // nothing on pop, attempting to write to a literal value fails silently
+                    break;
+            }
         }
+    }
 
-        @Override
-        public void set(short value) {
-            state.sp = value;
-        }
-    };
-    
-    /** PC */
-    private final Value pcValue = new Value() {
-        @Override
-        public short get() {
-            return state.pc;
-        }
+    /** a operand of the current instruction */
+    private final OperandValue aValue = new OperandValue();
 
-        @Override
-        public void set(short value) {
-            state.pc = value;
-        }
-    };
-    
-    /** EX */
-    private final Value exValue = new Value() {
-        @Override
-        public short get() {
-            return state.ex;
-        }
-
-        @Override
-        public void set(short value) {
-            state.ex = value;
-        }
-    };
+    /** b operand of the current instruction */
+    private final OperandValue bValue = new OperandValue();
     
     /** SET b, a | sets b to a */
     private final Operation setOp = new Operation() {
@@ -482,6 +440,12 @@ public class ProcessorImpl extends Processor {
         /* 0x1F */ stdOp,
     };
     
+    /** Basic operations cycles, operands lookup takes extra cycles */
+    private static final int[] OPERATION_CYCLES = new int[] {
+        0, 1, 2, 2, 2, 2, 3, 3, 3, 3, 1, 1, 1, 1, 1, 1,
+        2, 2, 2, 2, 2, 2, 2, 2, 0, 0, 3, 3, 0, 0, 2, 2
+    };
+
     /** JSR a | pushes the address of the next instruction to the stack, then sets PC to a */
     private final SpecialOperation jsrOp = new SpecialOperation() {
         @Override
@@ -569,6 +533,7 @@ public class ProcessorImpl extends Processor {
         @Override
         public void perform(short opcode, short specialOpcode, short aCode, Value a) {
             Device device = hardwareBus.device(a.get());
+            publishCycles();
             device.interrupt(state);
         }
     };
@@ -608,6 +573,71 @@ public class ProcessorImpl extends Processor {
         /* 0x1F */ null,
     };
 
+    /** Special operations cycles, operand lookup takes extra cycles */
+    private static final int[] SPECIAL_OPERATION_CYCLES = new int[] {
+        0, 3, 0, 0, 0, 0, 0, 0, 4, 1, 1, 3, 2, 0, 0, 0,
+        2, 4, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    /** Decoded instructions cache covers the whole address space by 256 words pages allocated on demand */
+    private static final int DECODED_PAGE_SHIFT = 8;
+    private static final int DECODED_PAGE_SIZE = 1 << DECODED_PAGE_SHIFT;
+    private static final int DECODED_PAGE_MASK = DECODED_PAGE_SIZE - 1;
+    private static final int DECODED_PAGES_COUNT = 0x10000 >> DECODED_PAGE_SHIFT;
+
+    /** Decoded instruction entry flag. Entry layout: aaaaaabbbbbooooo word, 2 bits of length, 4 bits of cycles, valid flag. */
+    private static final int DECODED = 0x80000000;
+
+    /** Instructions are up to 3 words long */
+    private static final int MAX_INSTRUCTION_LENGTH = 3;
+
+    /** Decoded instructions of a page */
+    private static class DecodedPage {
+        /** Decoded instructions by address. 0 if the address wasn't decoded or was overwritten. */
+        private final int[] instructions = new int[DECODED_PAGE_SIZE];
+
+        /** Decoded operations by address */
+        private final Operation[] operations = new Operation[DECODED_PAGE_SIZE];
+
+        /** a operand next word by address */
+        private final short[] nextA = new short[DECODED_PAGE_SIZE];
+
+        /** b operand next word by address */
+        private final short[] nextB = new short[DECODED_PAGE_SIZE];
+    }
+
+    /** Decoded pages. Null until anything on the page is decoded. */
+    private final DecodedPage[] decodedPages = new DecodedPage[DECODED_PAGES_COUNT];
+
+    /** Drops decoded instructions which cover written words and counts writes for idle loops detection */
+    private final Memory.WriteListener decodedInvalidator = new Memory.WriteListener() {
+        @Override
+        public void wordsWritten(short offset, int length) {
+            boolean foreign = (Thread.currentThread() != processorThread);
+            if(foreign) {
+                // written words must be visible before the pages are read, see decode()
+                VarHandle.fullFence();
+            }
+
+            int start = (offset & 0xffff) - (MAX_INSTRUCTION_LENGTH - 1);
+            int count = Math.min(length + MAX_INSTRUCTION_LENGTH - 1, 0x10000);
+            for(int i = 0; i < count; i++) {
+                int address = (start + i) & 0xffff;
+                DecodedPage page = decodedPages[address >> DECODED_PAGE_SHIFT];
+                if(page != null) {
+                    page.instructions[address & DECODED_PAGE_MASK] = 0;
+                }
+            }
+
+            if(foreign) {
+                // a device changed memory the idle loop might read
+                wakeup();
+            } else {
+                memoryWrites++;
+            }
+        }
+    };
+
     /**
      * Force interrupts queuing. If true - interrupts will be queued.
      * Otherwise interrupts will be triggered as normal.
@@ -621,88 +651,535 @@ public class ProcessorImpl extends Processor {
      * Interrupts queue.
      * If the queue grows longer than 256 interrupts, the DCPU-16 will catch fire.
      */
-    private Queue<Short> interruptsQueue = new LinkedList<Short>();
+    private final InterruptQueue interruptsQueue = new InterruptQueue(MAX_QUEUED_INT);
+
+    /** DCPU-16 runs at 100 kHz */
+    public static final int DEFAULT_FREQUENCY = 100000;
+
+    /** Frequency value turning throttling off */
+    public static final int UNTHROTTLED = 0;
+
+    /** Throttling batches per second. Shorter batches make the processor sleep too often. */
+    private static final int THROTTLE_BATCHES_PER_SECOND = 1000;
+
+    /** Batch size when unthrottled. Frequency changes are picked up on batch ends. */
+    private static final int UNTHROTTLED_BATCH_CYCLES = 1000000;
 
     /**
-     * Processor interrupts lock
+     * Processor running
      */
-    private final Object lock = new Object();
+    protected volatile boolean running;
+
+    /** Thread running the processor */
+    protected volatile Thread processorThread;
 
     /**
-     * Processor running
+     * Cycles count the current batch ends at. The processor is throttled on batch ends,
+     * so step() implementations executing several instructions return once it's reached.
      */
-    private volatile boolean running;
+    protected long batchEnd;
+
+    /** Target frequency in Hz, UNTHROTTLED to run as fast as possible */
+    private volatile int frequency = DEFAULT_FREQUENCY;
+
+    private final Throttle throttle = new Throttle();
+
+    /** Memory writes made by the processor thread */
+    private int memoryWrites;
+
+    /** Device state changes and memory writes made by other threads */
+    private final AtomicInteger wakeups = new AtomicInteger();
+
+    /** Processor thread is parked in an idle loop */
+    private volatile boolean parked;
+
+    /** Park in idle loops. Set while the processor is started, the run methods return instead. */
+    private boolean parkOnIdle;
+
+    /** The run has returned in an idle loop */
+    private boolean idleStopped;
+
+    /** Target of the last backward jump and the state it was taken with. -1 if here's no snapshot. */
+    private int idleTarget = -1;
+    private final short[] idleRegisters = new short[8];
+    private short idleSp;
+    private short idleEx;
+    private short idleIa;
+    private boolean idleForceInterruptsQueuing;
+    private boolean idleInterruptsQueuing;
+    private int idleMemoryWrites;
+    private int idleWakeups;
 
     @Override
     public void start() {
-        running = true;
+        reset();
+        beginRun();
+        parkOnIdle = true;
+        try {
+            execute();
+        } finally {
+            detachMemory();
+        }
+    }
+
+    @Override
+    public void reset() {
         state.skipping = false;
         state.reset();
+        publishCycles();
         state.sp = memoryBus.memory().sizeInWords();
-        
+        running = true;
+        idleTarget = -1;
+        throttle.reset();
+        batchEnd = 0;
+        interruptsQueue.clear();
+
+        Arrays.fill(decodedPages, null);
+        detachMemory();
+        attachMemory();
+    }
+
+    /** Start listening to memory writes */
+    protected void attachMemory() {
+        memoryBus.memory().addWriteListener(decodedInvalidator);
+    }
+
+    /** Stop listening to memory writes */
+    protected void detachMemory() {
+        memoryBus.memory().removeWriteListener(decodedInvalidator);
+    }
+
+    private void execute() {
         while(running) {
-            // interrupts are not triggered while the DCPU-16 is skipping.
-            if(!state.skipping && !interruptsQueuing) {
-                Short code = null;
-                synchronized(lock) {
-                    if(interruptsQueue.size() >= MAX_QUEUED_INT) {
-                        throw new RuntimeException("Interrupts queue grow to " + MAX_QUEUED_INT + " interrupts. DCPU-16 catched fire.");
-                    }
+            runBatch();
+            publishCycles();
+
+            if(state.cycles >= batchEnd) {
+                throttle();
+            }
+        }
+    }
+
+    /**
+     * Execute instructions until the cycles count reaches batchEnd, the processor is stopped or
+     * an idle loop stops the run. Executes a single instruction if a debugger is attached.
+     */
+    private void runBatch() {
+        if(debugger != null) {
+            step();
+            dumpState();
+        } else {
+            while(running && !idleStopped && state.cycles < batchEnd) {
+                step();
+            }
+        }
+    }
+
+    /** Prepare the processor state to run on the calling thread */
+    private void beginRun() {
+        idleStopped = false;
+        parkOnIdle = false;
+        processorThread = Thread.currentThread();
+    }
 
-                    code = interruptsQueue.poll();
+    @Override
+    public long runCycles(long cycles) {
+        long start = state.cycles;
+        beginRun();
+        batchEnd = start + cycles;
+        while(running && !idleStopped && state.cycles < batchEnd) {
+            runBatch();
+        }
+        publishCycles();
+        return state.cycles - start;
+    }
+
+    @Override
+    public long runInstructions(long count) {
+        beginRun();
+        long executed = 0;
+        if(debugger != null) {
+            while(executed < count && running && !idleStopped) {
+                stepInstruction();
+                executed++;
+                dumpState();
+            }
+        } else {
+            while(executed < count && running && !idleStopped) {
+                stepInstruction();
+                executed++;
+            }
+        }
+        publishCycles();
+        return executed;
+    }
+
+    @Override
+    public boolean runUntil(Condition condition, long maxCycles) {
+        beginRun();
+        try {
+            return runUntilEnd(condition, state.cycles + maxCycles);
+        } finally {
+            publishCycles();
+        }
+    }
+
+    /** Run until the condition holds or the cycles count reaches the end */
+    private boolean runUntilEnd(Condition condition, long end) {
+        if(debugger != null) {
+            while(running && !idleStopped && state.cycles < end) {
+                if(condition.holds(state)) {
+                    return true;
                 }
 
-                if(code != null) {
-                    doInterrupt(code);
+                stepInstruction();
+                dumpState();
+            }
+        } else {
+            while(running && !idleStopped && state.cycles < end) {
+                if(condition.holds(state)) {
+                    return true;
                 }
+
+                stepInstruction();
             }
-            
-            // perform loop
-            loop();
-            
-            dumpState();
         }
+        return condition.holds(state);
+    }
+
+    /** Set target frequency in Hz. UNTHROTTLED turns throttling off. */
+    public void setFrequency(int frequency) {
+        if(frequency < 0) {
+            throw new IllegalArgumentException("frequency should not be negative");
+        }
+        this.frequency = frequency;
+    }
+
+    @Override
+    public int getFrequency() {
+        return frequency;
+    }
+
+    /** Sleep until the time executed cycles take at the target frequency, then start the next batch */
+    private void throttle() {
+        int frequency = this.frequency;
+        if(frequency != UNTHROTTLED) {
+            long ahead = throttle.ahead(state.cycles, frequency, System.nanoTime());
+            if(ahead > 0) {
+                LockSupport.parkNanos(this, ahead);
+            }
+        } else {
+            throttle.reset();
+        }
+
+        batchEnd = state.cycles + ((frequency != UNTHROTTLED) ? Math.max(frequency / THROTTLE_BATCHES_PER_SECOND, 1) : UNTHROTTLED_BATCH_CYCLES);
+    }
+
+    /**
+     * Perform the next instruction triggering a queued interrupt before it.
+     * Processors executing several instructions at once override it.
+     */
+    protected void step() {
+        stepInstruction();
     }
 
+    /** Perform exactly one instruction triggering a queued interrupt before it */
+    protected final void stepInstruction() {
+        handleInterrupts();
+        loop();
+    }
+
+    /** Trigger a queued interrupt if it's allowed */
+    protected void handleInterrupts() {
+        if(interruptsQueue.isPending()) {
+            if(interruptsQueue.isOverflowed()) {
+                throw new RuntimeException("Interrupts queue grow to " + MAX_QUEUED_INT + " interrupts. DCPU-16 catched fire.");
+            }
+
+            // interrupts are not triggered while the DCPU-16 is skipping.
+            if(!state.skipping && !interruptsQueuing) {
+                int code = interruptsQueue.poll();
+                if(code >= 0) {
+                    doInterrupt((short)code);
+                }
+            }
+        }
+    }
+
+    @Override
     public void stop() {
         running = false;
+        LockSupport.unpark(processorThread);
+        notifyWakeupListener();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
     }
 
     @Override
     public void interrupt(short code) {
-        synchronized(lock) {
-            interruptsQueue.add(code);
+        interruptsQueue.offer(code);
+        if(parked) {
+            LockSupport.unpark(processorThread);
+        }
+        notifyWakeupListener();
+    }
+
+    @Override
+    public void wakeup() {
+        wakeups.incrementAndGet();
+        if(parked) {
+            LockSupport.unpark(processorThread);
+        }
+        notifyWakeupListener();
+    }
+
+    @Override
+    public boolean isIdle() {
+        return parked || (idleStopped && wakeups.get() == idleWakeups && !canTriggerInterrupt());
+    }
+
+    /**
+     * Called on a jump to the address not above the jump instruction.
+     * The loop is idle if it comes to the same target with the same state, having written no memory
+     * and with no device state changed. It would repeat forever then, so the processor parks
+     * until an interrupt can be triggered, a device changes its state or the processor is stopped.
+     * The run methods return instead of parking.
+     * @param target jump target
+     * @return true if the run should return
+     */
+    protected boolean backwardJump(int target) {
+        if(debugger != null) {
+            // debugger might depend on every instruction
+            return false;
+        }
+
+        if(target == idleTarget && isSameIdleState()) {
+            if(parkOnIdle) {
+                park();
+            } else {
+                idleStopped = true;
+                return true;
+            }
+        } else {
+            idleTarget = target;
+            System.arraycopy(state.registers, 0, idleRegisters, 0, idleRegisters.length);
+            idleSp = state.sp;
+            idleEx = state.ex;
+            idleIa = state.ia;
+            idleForceInterruptsQueuing = forceInterruptsQueuing;
+            idleInterruptsQueuing = interruptsQueuing;
+            idleMemoryWrites = memoryWrites;
+            idleWakeups = wakeups.get();
+        }
+        return false;
+    }
+
+    private boolean isSameIdleState() {
+        if(memoryWrites != idleMemoryWrites || wakeups.get() != idleWakeups) {
+            return false;
+        }
+
+        if(state.sp != idleSp || state.ex != idleEx || state.ia != idleIa) {
+            return false;
+        }
+
+        if(forceInterruptsQueuing != idleForceInterruptsQueuing || interruptsQueuing != idleInterruptsQueuing) {
+            return false;
+        }
+
+        short[] registers = state.registers;
+        for(int i = 0; i < registers.length; i++) {
+            if(registers[i] != idleRegisters[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Park the processor thread until the idle loop can make progress */
+    private void park() {
+        // parked is set before the conditions check, so wakers see it or the check sees them
+        parked = true;
+        try {
+            while(running && wakeups.get() == idleWakeups && !canTriggerInterrupt()) {
+                LockSupport.park(this);
+            }
+        } finally {
+            parked = false;
         }
     }
 
+    /** Check the queued interrupt would be triggered or the queue is overflowed */
+    private boolean canTriggerInterrupt() {
+        return interruptsQueue.isPending() && (!interruptsQueuing || interruptsQueue.isOverflowed());
+    }
+
     private void loop() {
-        short word = nextWord();
-        
+        int pc = state.pc & 0xffff;
+        int index = pc & DECODED_PAGE_MASK;
+        DecodedPage page = decodedPages[pc >> DECODED_PAGE_SHIFT];
+        int instruction;
+        if(page == null || (instruction = page.instructions[index]) == 0) {
+            instruction = decode(pc);
+            page = decodedPages[pc >> DECODED_PAGE_SHIFT];
+        }
+        Operation operation = page.operations[index];
+
+        state.pc += instructionLength(instruction);
+
+        if(state.skipping) {
+            state.cycles++;
+            state.skipping = (operation instanceof ConditionalOperation);
+        } else {
+            state.cycles += instructionCycles(instruction);
+            perform(operation, instruction, page.nextA[index], page.nextB[index]);
+
+            // failed test takes a cycle longer
+            if(state.skipping) {
+                state.cycles++;
+            }
+
+            int next = state.pc & 0xffff;
+            if(next <= pc) {
+                backwardJump(next);
+            }
+        }
+    }
+
+    /**
+     * Perform decoded instruction. PC should already point to the next instruction.
+     * @param operation instruction operation
+     * @param instruction decoded instruction entry
+     * @param nextA a operand next word
+     * @param nextB b operand next word
+     */
+    void perform(Operation operation, int instruction, short nextA, short nextB) {
+        short opcode = (short)(instruction & 0x001f);
+        short aCode = (short)((instruction & 0xfc00) >> 10);
+        short bCode = (short)((instruction & 0x03e0) >> 5);
+
+        Value a = bindOperand(aValue, aCode, true, nextA);
+        Value b = null;
+        if(opcode != 0x0000) {
+            b = bindOperand(bValue, bCode, false, nextB);
+        }
+
+        operation.perform(opcode, aCode, a, bCode, b);
+    }
+
+    /** Decoded instruction entry at the address. Decodes it if it isn't cached. */
+    int decodedInstruction(int pc) {
+        DecodedPage page = decodedPages[pc >> DECODED_PAGE_SHIFT];
+        int instruction;
+        if(page == null || (instruction = page.instructions[pc & DECODED_PAGE_MASK]) == 0) {
+            instruction = decode(pc);
+        }
+        return instruction;
+    }
+
+    /** Operation of the instruction decoded at the address */
+    Operation decodedOperation(int pc) {
+        return decodedPages[pc >> DECODED_PAGE_SHIFT].operations[pc & DECODED_PAGE_MASK];
+    }
+
+    /** a operand next word of the instruction decoded at the address */
+    short decodedNextA(int pc) {
+        return decodedPages[pc >> DECODED_PAGE_SHIFT].nextA[pc & DECODED_PAGE_MASK];
+    }
+
+    /** b operand next word of the instruction decoded at the address */
+    short decodedNextB(int pc) {
+        return decodedPages[pc >> DECODED_PAGE_SHIFT].nextB[pc & DECODED_PAGE_MASK];
+    }
+
+    /** Instruction length in words */
+    static int instructionLength(int instruction) {
+        return (instruction >> 16) & 0x3;
+    }
+
+    /** Cycles the instruction takes if its test doesn't fail */
+    static int instructionCycles(int instruction) {
+        return (instruction >> 18) & 0xf;
+    }
+
+    /**
+     * Decode instruction at the address and put it into the decoded instructions cache
+     * @param pc instruction address
+     * @return decoded instruction entry
+     */
+    private int decode(int pc) {
+        Memory memory = memoryBus.memory();
+        short word = memory.readWord((short)pc);
+
         short opcode = (short)(word & 0x001f);
         short aCode = (short)((word & 0xfc00) >> 10);
         short bCode = (short)((word & 0x03e0) >> 5);
-        
+
         Operation operation = null;
-        Value a = valueForCode(aCode, true);
-        Value b = null;
+        int cycles;
         
         // special operation
         if (opcode == 0x0000) {
             if (bCode >= specialOperations.length || (operation = specialOperations[bCode]) == null) {
                 throw new RuntimeException(String.format("Special operation 0x%04X is not supported", bCode));
             }
+            cycles = SPECIAL_OPERATION_CYCLES[bCode];
         } else {
-            b = valueForCode(bCode, false);
             if (opcode >= operations.length || (operation = operations[opcode]) == null) {
                 throw new RuntimeException(String.format("Operation 0x%04X is not supported", opcode));
             }
+            cycles = OPERATION_CYCLES[opcode];
         }
-        
-        if(state.skipping) {
-            state.skipping = (operation instanceof ConditionalOperation);
-        } else {
-            operation.perform(opcode, aCode, a, bCode, b);
+
+        // a is always handled before b
+        int length = 1;
+        short nextA = 0;
+        short nextB = 0;
+        if(hasNextWord(aCode)) {
+            nextA = memory.readWord((short)(pc + length++));
+        }
+        if(opcode != 0x0000 && hasNextWord(bCode)) {
+            nextB = memory.readWord((short)(pc + length++));
+        }
+
+        // every next word takes a cycle
+        cycles += length - 1;
+
+        DecodedPage page = decodedPages[pc >> DECODED_PAGE_SHIFT];
+        if(page == null) {
+            page = new DecodedPage();
+            decodedPages[pc >> DECODED_PAGE_SHIFT] = page;
+        }
+
+        int index = pc & DECODED_PAGE_MASK;
+        int instruction = DECODED | (cycles << 18) | (length << 16) | (word & 0xffff);
+        page.operations[index] = operation;
+        page.nextA[index] = nextA;
+        page.nextB[index] = nextB;
+        page.instructions[index] = instruction;
+
+        // A device might have overwritten the instruction while it was being decoded. Writers
+        // drop entries after storing words, so re-reading the words after publishing the entry
+        // either sees the new words or the entry gets dropped by the writer.
+        VarHandle.fullFence();
+        boolean changed = (memory.readWord((short)pc) != word);
+        for(int i = 1; i < length && !changed; i++) {
+            short next = (i == 1 && hasNextWord(aCode)) ? nextA : nextB;
+            changed = (memory.readWord((short)(pc + i)) != next);
+        }
+        if(changed) {
+            page.instructions[index] = 0;
         }
+
+        return instruction;
+    }
+
+    /** Check operand code consumes the next word */
+    static boolean hasNextWord(short code) {
+        return (code >= 0x10 && code <= 0x17) || code == 0x1a || code == 0x1e || code == 0x1f;
     }
     
     private void doInterrupt(short code) {
@@ -715,36 +1192,37 @@ public class ProcessorImpl extends Processor {
         }
     }
     
-    private short nextWord() {
-        return memoryBus.memory().readWord(state.pc++);
-    }
-    
-    private Value valueForCode(short code, boolean isAValue) {
-        Value value = null;
+    /**
+     * Bind reusable operand to the value addressed by code.
+     * next is the operand's next word if the code requires it.
+     */
+    private Value bindOperand(OperandValue value, short code, boolean isAValue, short next) {
         if(code >= 0x00 && code <= 0x07) {
-            value = new RegisterValue(code);
+            value.bind(MODE_REGISTER, code);
         } else if(code >= 0x08 && code <= 0x0f) {
-            value = new RegisterAddressValue((short)(code - 0x08), false);
+            value.bind(MODE_MEMORY, state.registers[code - 0x08]);
         } else if(code >= 0x10 && code <= 0x17) {
-            value = new RegisterAddressValue((short)(code - 0x10), true);
+            value.bind(MODE_MEMORY, (short)(state.registers[code - 0x10] + next));
         } else if(code == 0x18) {
-            value = ((isAValue) ? popValue : pushValue);
+            value.bind((isAValue) ? MODE_POP : MODE_PUSH, (short)0);
         } else if(code == 0x19) {
-            value = new MemoryValue(state.sp);
+            value.bind(MODE_MEMORY, state.sp);
         } else if(code == 0x1a) {
-            value = new MemoryValue((short)(state.sp + nextWord()));
+            value.bind(MODE_MEMORY, (short)(state.sp + next));
         } else if(code == 0x1b) {
-            value = spValue;
+            value.bind(MODE_SP, (short)0);
         } else if(code == 0x1c) {
-            value = pcValue;
+            value.bind(MODE_PC, (short)0);
         } else if(code == 0x1d) {
-            value = exValue;
+            value.bind(MODE_EX, (short)0);
         } else if(code == 0x1e) {
-            value = new MemoryValue(nextWord());
+            value.bind(MODE_MEMORY, next);
         } else if(code == 0x1f) {
-            value = new LiteralValue(nextWord());
+            value.bind(MODE_LITERAL, next);
         } else if(code >= 0x20 && code <= 0x3f && isAValue) {
-            value = new LiteralValue((short)(code - 0x20 - 1));
+            value.bind(MODE_LITERAL, (short)(code - 0x20 - 1));
+        } else {
+            return null;
         }
         return value;
     }
@@ -0,0 +1,56 @@
+package net.taviscaron.dcpu16vm.machine.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares cycles executed at a frequency with the wall time
+ * @author Andrei Senchuk
+ */
+class Throttle {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /** Lag the throttling gives up to catch up with, e.g. after the processor was parked or paused */
+    private static final long MAX_LAG_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /** Frequency, cycles count and time the throttling is measured from */
+    private int frequency = -1;
+    private long cycles;
+    private long nanos;
+
+    /** Start measuring from the next call */
+    public void reset() {
+        frequency = -1;
+    }
+
+    /**
+     * Time the executed cycles are ahead of the wall time
+     * @param cycles executed cycles
+     * @param frequency frequency in Hz
+     * @param now current System.nanoTime()
+     * @return nanoseconds to wait, 0 if the cycles aren't ahead
+     */
+    public long ahead(long cycles, int frequency, long now) {
+        if(frequency != this.frequency) {
+            this.frequency = frequency;
+            this.cycles = cycles;
+            this.nanos = now;
+            return 0;
+        }
+
+        long elapsed = cycles - this.cycles;
+        if(elapsed >= frequency) {
+            // keep the products small
+            long seconds = elapsed / frequency;
+            this.cycles += seconds * frequency;
+            this.nanos += seconds * NANOS_PER_SECOND;
+            elapsed -= seconds * frequency;
+        }
+
+        long ahead = nanos + elapsed * NANOS_PER_SECOND / frequency - now;
+        if(ahead < -MAX_LAG_NANOS) {
+            this.cycles = cycles;
+            this.nanos = now;
+        }
+        return Math.max(ahead, 0);
+    }
+}
@@ -0,0 +1,467 @@
+package net.taviscaron.dcpu16vm.machine.impl;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Processor translating guest basic blocks.
+ *
+ * A block is a run of instructions ending with an instruction which writes PC or
+ * affects interrupts (JSR, INT, IAS, RFI, IAQ, HWI). Every block is translated once
+ * into a generated class, see BlockCompiler, and blocks are chained to their
+ * successors, so loops run w/o decoding and lookups. Queued interrupts and
+ * memory writes of device threads are handled on block edges. Writes into a block
+ * from the block itself stop it right after the writing instruction.
+ *
+ * The interpreter is used while a debugger is attached.
+ *
+ * Configuration:
+ * <processor type="net.taviscaron.dcpu16vm.machine.impl.TranslatingProcessorImpl"/>
+ *
+ * @author Andrei Senchuk
+ */
+public class TranslatingProcessorImpl extends ProcessorImpl {
+    /** block size limit in instructions, conditionals chain may exceed it */
+    private static final int MAX_BLOCK_SIZE = 64;
+
+    /** blocks executed w/o returning to the processor loop */
+    private static final int MAX_CHAINED_BLOCKS = 256;
+
+    /** instructions are up to 3 words long */
+    private static final int MAX_INSTRUCTION_WORDS = 3;
+
+    /** blocks are tracked by 256 words pages */
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGES_COUNT = 0x10000 >> PAGE_SHIFT;
+
+    /** Any other instruction performed by the interpreter operations */
+    private class GenericOp extends BlockCompiler.Op {
+        private final Operation operation;
+        private final int instruction;
+        private final short nextA;
+        private final short nextB;
+
+        public GenericOp(Operation operation, int instruction, short nextA, short nextB) {
+            super(BlockCompiler.GENERIC, 0, -1, (short)0);
+            this.operation = operation;
+            this.instruction = instruction;
+            this.nextA = nextA;
+            this.nextB = nextB;
+        }
+
+        /** @return false if test of a conditional instruction fails */
+        public boolean execute() {
+            perform(operation, instruction, nextA, nextB);
+            if(state.skipping) {
+                state.skipping = false;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /** Translated block */
+    private static class Block {
+        /** entry address */
+        private final int start;
+
+        /** size in words */
+        private final int size;
+
+        /** address following the block */
+        private final int end;
+
+        private final BlockCompiler.Op[] ops;
+
+        /** generated code of the block */
+        private final CompiledBlock code;
+
+        /** false once the block has been overwritten */
+        private boolean valid = true;
+
+        /** chained successors */
+        private Block fallthrough;
+        private Block jump;
+
+        public Block(int start, int size, BlockCompiler.Op[] ops) {
+            this.start = start;
+            this.size = size;
+            this.end = (start + size) & 0xffff;
+            this.ops = ops;
+            this.code = BlockCompiler.compile(start, ops);
+        }
+
+        /** Check the block covers any of words [offset, offset + length) */
+        public boolean overlaps(int offset, int length) {
+            return ((offset - start) & 0xffff) < size || ((start - offset) & 0xffff) < length;
+        }
+
+        public int firstPage() {
+            return start >> PAGE_SHIFT;
+        }
+
+        public int pagesCount() {
+            return Math.min((((start & ((1 << PAGE_SHIFT) - 1)) + size - 1) >> PAGE_SHIFT) + 1, PAGES_COUNT);
+        }
+    }
+
+    /** Translated blocks by entry address, split into pages allocated on demand */
+    private final Block[][] blocks = new Block[PAGES_COUNT][];
+
+    /** Translated blocks covering each page */
+    private final List<List<Block>> pageBlocks = new ArrayList<List<Block>>(PAGES_COUNT);
+
+    /** Pages written by other threads. Blocks on them are dropped on the next block edge. */
+    private final AtomicLongArray foreignPages = new AtomicLongArray(PAGES_COUNT / 64);
+
+    /** Set when foreignPages has anything */
+    private volatile boolean foreignWrites;
+
+    /** Drops blocks overwritten by the processor and collects pages written by devices */
+    private final Memory.WriteListener blockInvalidator = new Memory.WriteListener() {
+        @Override
+        public void wordsWritten(short offset, int length) {
+            if(Thread.currentThread() == processorThread) {
+                invalidate(offset & 0xffff, length);
+            } else {
+                markForeignWrite(offset & 0xffff, length);
+            }
+        }
+    };
+
+    /** Block being executed, its generated code calls back for the generic instructions */
+    private Block current;
+
+    private final CompiledBlock.Runtime runtime = new CompiledBlock.Runtime() {
+        @Override
+        public int generic(int index) {
+            Block block = current;
+            boolean passed = ((GenericOp)block.ops[index]).execute();
+            if(!block.valid) {
+                // the block overwrote itself, the rest is handled by new translation
+                if(!passed) {
+                    state.cycles++;
+                }
+                state.skipping = !passed;
+                return CompiledBlock.STOP;
+            }
+            return passed ? CompiledBlock.CONTINUE : CompiledBlock.TEST_FAILED;
+        }
+    };
+
+    public TranslatingProcessorImpl() {
+        for(int i = 0; i < PAGES_COUNT; i++) {
+            pageBlocks.add(new ArrayList<Block>());
+        }
+    }
+
+    @Override
+    public void reset() {
+        clearBlocks();
+        super.reset();
+    }
+
+    @Override
+    protected void attachMemory() {
+        super.attachMemory();
+        memoryBus.memory().addWriteListener(blockInvalidator);
+    }
+
+    @Override
+    protected void detachMemory() {
+        super.detachMemory();
+        memoryBus.memory().removeWriteListener(blockInvalidator);
+    }
+
+    @Override
+    protected void step() {
+        if(debugger != null || state.skipping) {
+            super.step();
+            return;
+        }
+
+        Block block = null;
+        for(int chained = 0; chained < MAX_CHAINED_BLOCKS && running && state.cycles < batchEnd; chained++) {
+            if(foreignWrites) {
+                applyForeignWrites();
+            }
+
+            handleInterrupts();
+
+            block = successor(block, state.pc & 0xffff);
+            run(block);
+
+            // skipping ran out of the block
+            if(state.skipping) {
+                break;
+            }
+
+            int next = state.pc & 0xffff;
+            if(next <= block.start && backwardJump(next)) {
+                break;
+            }
+        }
+    }
+
+    /** Execute block code */
+    private void run(Block block) {
+        current = block;
+        block.code.run(state, runtime);
+    }
+
+    /** Find block at the address following previous block using chained links */
+    private Block successor(Block previous, int pc) {
+        if(previous == null || !previous.valid) {
+            return block(pc);
+        }
+
+        Block next;
+        if(pc == previous.end) {
+            next = previous.fallthrough;
+            if(next == null || !next.valid) {
+                next = previous.fallthrough = block(pc);
+            }
+        } else {
+            next = previous.jump;
+            if(next == null || !next.valid || next.start != pc) {
+                next = previous.jump = block(pc);
+            }
+        }
+        return next;
+    }
+
+    /** Find or translate block at the address */
+    private Block block(int pc) {
+        Block[] entries = blocks[pc >> PAGE_SHIFT];
+        if(entries == null) {
+            entries = new Block[1 << PAGE_SHIFT];
+            blocks[pc >> PAGE_SHIFT] = entries;
+        }
+
+        Block block = entries[pc & ((1 << PAGE_SHIFT) - 1)];
+        if(block == null) {
+            block = translate(pc);
+            entries[pc & ((1 << PAGE_SHIFT) - 1)] = block;
+
+            int page = block.firstPage();
+            for(int i = 0; i < block.pagesCount(); i++) {
+                pageBlocks.get((page + i) % PAGES_COUNT).add(block);
+            }
+        }
+        return block;
+    }
+
+    /** Translate block starting at the address */
+    private Block translate(int start) {
+        List<BlockCompiler.Op> ops = new ArrayList<BlockCompiler.Op>();
+        int pc = start;
+        int size = 0;
+
+        while(true) {
+            int instruction;
+            try {
+                instruction = decodedInstruction(pc);
+            } catch(RuntimeException e) {
+                // unsupported instruction. Fail when it's actually reached.
+                if(ops.isEmpty()) {
+                    throw e;
+                }
+                break;
+            }
+
+            int length = instructionLength(instruction);
+            BlockCompiler.Op op = translate(pc, instruction);
+            op.nextPc = (short)(pc + length);
+            ops.add(op);
+
+            size += length;
+            pc = (pc + length) & 0xffff;
+
+            if(size > 0x10000 - MAX_INSTRUCTION_WORDS || ops.size() >= MAX_BLOCK_SIZE * 2) {
+                break;
+            }
+
+            if(!op.conditional && (endsBlock(instruction) || ops.size() >= MAX_BLOCK_SIZE)) {
+                break;
+            }
+        }
+
+        return new Block(start, size, ops.toArray(new BlockCompiler.Op[ops.size()]));
+    }
+
+    /** Translate the instruction decoded at the address */
+    private BlockCompiler.Op translate(int pc, int instruction) {
+        int opcode = instruction & 0x001f;
+        int aCode = (instruction & 0xfc00) >> 10;
+        int bCode = (instruction & 0x03e0) >> 5;
+
+        int aRegister = -1;
+        short aLiteral = 0;
+        boolean simpleA = true;
+        if(aCode <= 0x07) {
+            aRegister = aCode;
+        } else if(aCode == 0x1f) {
+            aLiteral = decodedNextA(pc);
+        } else if(aCode >= 0x20) {
+            aLiteral = (short)(aCode - 0x20 - 1);
+        } else {
+            simpleA = false;
+        }
+
+        BlockCompiler.Op op = null;
+        if(simpleA && bCode <= 0x07) {
+            int kind = -1;
+            switch(opcode) {
+                case 0x01:
+                    kind = BlockCompiler.SET;
+                    break;
+                case 0x02:
+                    kind = BlockCompiler.ADD;
+                    break;
+                case 0x03:
+                    kind = BlockCompiler.SUB;
+                    break;
+                case 0x0a:
+                    kind = BlockCompiler.AND;
+                    break;
+                case 0x0b:
+                    kind = BlockCompiler.BOR;
+                    break;
+                case 0x0c:
+                    kind = BlockCompiler.XOR;
+                    break;
+                case 0x10:
+                    kind = BlockCompiler.IFB;
+                    break;
+                case 0x11:
+                    kind = BlockCompiler.IFC;
+                    break;
+                case 0x12:
+                    kind = BlockCompiler.IFE;
+                    break;
+                case 0x13:
+                    kind = BlockCompiler.IFN;
+                    break;
+                case 0x14:
+                    kind = BlockCompiler.IFG;
+                    break;
+                case 0x16:
+                    kind = BlockCompiler.IFL;
+                    break;
+                default:
+                    break;
+            }
+            if(kind >= 0) {
+                op = new BlockCompiler.Op(kind, bCode, aRegister, aLiteral);
+            }
+        } else if(simpleA && aRegister < 0 && opcode == 0x01 && bCode == 0x1c) {
+            op = new BlockCompiler.Op(BlockCompiler.JUMP, 0, -1, aLiteral);
+        }
+
+        if(op == null) {
+            op = new GenericOp(decodedOperation(pc), instruction, decodedNextA(pc), decodedNextB(pc));
+        }
+
+        op.conditional = (opcode >= 0x10 && opcode <= 0x17);
+        op.cycles = instructionCycles(instruction);
+        return op;
+    }
+
+    /** Check the instruction may change PC or interrupts state */
+    private static boolean endsBlock(int instruction) {
+        int opcode = instruction & 0x001f;
+        int aCode = (instruction & 0xfc00) >> 10;
+        int bCode = (instruction & 0x03e0) >> 5;
+
+        if(opcode != 0x0000) {
+            return bCode == 0x1c;
+        }
+
+        switch(bCode) {
+            case 0x01: // JSR
+            case 0x08: // INT
+            case 0x0a: // IAS
+            case 0x0b: // RFI
+            case 0x0c: // IAQ
+            case 0x12: // HWI
+                return true;
+            default:
+                return aCode == 0x1c;
+        }
+    }
+
+    /** Drop blocks covering any of the words */
+    private void invalidate(int offset, int length) {
+        int firstPage = offset >> PAGE_SHIFT;
+        int pagesCount = Math.min(((((offset & ((1 << PAGE_SHIFT) - 1)) + length - 1) >> PAGE_SHIFT) + 1), PAGES_COUNT);
+
+        for(int i = 0; i < pagesCount; i++) {
+            List<Block> page = pageBlocks.get((firstPage + i) % PAGES_COUNT);
+            for(int j = page.size() - 1; j >= 0; j--) {
+                if(j < page.size()) {
+                    Block block = page.get(j);
+                    if(block.overlaps(offset, length)) {
+                        invalidate(block);
+                    }
+                }
+            }
+        }
+    }
+
+    private void invalidate(Block block) {
+        block.valid = false;
+        Block[] entries = blocks[block.start >> PAGE_SHIFT];
+        if(entries[block.start & ((1 << PAGE_SHIFT) - 1)] == block) {
+            entries[block.start & ((1 << PAGE_SHIFT) - 1)] = null;
+        }
+
+        int page = block.firstPage();
+        for(int i = 0; i < block.pagesCount(); i++) {
+            pageBlocks.get((page + i) % PAGES_COUNT).remove(block);
+        }
+    }
+
+    private void markForeignWrite(int offset, int length) {
+        int firstPage = offset >> PAGE_SHIFT;
+        int pagesCount = Math.min(((((offset & ((1 << PAGE_SHIFT) - 1)) + length - 1) >> PAGE_SHIFT) + 1), PAGES_COUNT);
+
+        for(int i = 0; i < pagesCount; i++) {
+            int page = (firstPage + i) % PAGES_COUNT;
+            long bit = 1L << (page & 63);
+            long bits;
+            do {
+                bits = foreignPages.get(page >> 6);
+            } while((bits & bit) == 0 && !foreignPages.compareAndSet(page >> 6, bits, bits | bit));
+        }
+
+        foreignWrites = true;
+    }
+
+    /** Drop blocks on pages written by other threads */
+    private void applyForeignWrites() {
+        foreignWrites = false;
+        for(int i = 0; i < foreignPages.length(); i++) {
+            long bits = foreignPages.getAndSet(i, 0);
+            while(bits != 0) {
+                int page = i * 64 + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                invalidate(page << PAGE_SHIFT, 1 << PAGE_SHIFT);
+            }
+        }
+    }
+
+    private void clearBlocks() {
+        Arrays.fill(blocks, null);
+        for(List<Block> page : pageBlocks) {
+            page.clear();
+        }
+        for(int i = 0; i < foreignPages.length(); i++) {
+            foreignPages.set(i, 0);
+        }
+        foreignWrites = false;
+    }
+}
@@ -18,6 +18,7 @@ public class DebugUtils {
         out.printf("| A:   %04X   B : %04X   C:  %04X            |\n", state.readRegister(Processor.Register.A), state.readRegister(Processor.Register.B), state.readRegister(Processor.Register.C));
         out.printf("| X:   %04X   Y : %04X   Z:  %04X            |\n", state.readRegister(Processor.Register.X), state.readRegister(Processor.Register.Y), state.readRegister(Processor.Register.Z));
         out.printf("| I:   %04X   J : %04X                       |\n", state.readRegister(Processor.Register.I), state.readRegister(Processor.Register.J));
+        out.printf("| cycles: %-34d |\n", state.cycles);
         out.print("+--------------------------------------------+\n");
         // here's no need to close output stream or print stream (which will close output stream for sure).
     }
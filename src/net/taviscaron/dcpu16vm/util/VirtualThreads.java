@@ -0,0 +1,77 @@
+package net.taviscaron.dcpu16vm.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads access. They are available since Java 21, so they are created with reflection.
+ * @author Andrei Senchuk
+ */
+public class VirtualThreads {
+    /** Thread.ofVirtual(), Thread.Builder.name(String, long), Thread.Builder.factory(), Thread.isVirtual() */
+    private static final Method ofVirtual;
+    private static final Method name;
+    private static final Method factory;
+    private static final Method isVirtual;
+
+    static {
+        Method ofVirtualMethod = null;
+        Method nameMethod = null;
+        Method factoryMethod = null;
+        Method isVirtualMethod = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+            nameMethod = builder.getMethod("name", String.class, long.class);
+            factoryMethod = builder.getMethod("factory");
+            isVirtualMethod = Thread.class.getMethod("isVirtual");
+        } catch(ClassNotFoundException e) {
+            // virtual threads aren't supported
+        } catch(NoSuchMethodException e) {
+            // virtual threads aren't supported
+        }
+
+        ofVirtual = ofVirtualMethod;
+        name = nameMethod;
+        factory = factoryMethod;
+        isVirtual = isVirtualMethod;
+    }
+
+    public static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Create factory of virtual threads named prefix0, prefix1, ...
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static ThreadFactory factory(String prefix) {
+        if(!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21, running on " + System.getProperty("java.version"));
+        }
+
+        try {
+            Object builder = name.invoke(ofVirtual.invoke(null), prefix, 0L);
+            return (ThreadFactory)factory.invoke(builder);
+        } catch(IllegalAccessException e) {
+            throw new UnsupportedOperationException("Can't create virtual threads factory", e);
+        } catch(InvocationTargetException e) {
+            throw new UnsupportedOperationException("Can't create virtual threads factory", e.getCause());
+        }
+    }
+
+    public static boolean isVirtual(Thread thread) {
+        if(!isSupported()) {
+            return false;
+        }
+
+        try {
+            return (Boolean)isVirtual.invoke(thread);
+        } catch(IllegalAccessException e) {
+            return false;
+        } catch(InvocationTargetException e) {
+            return false;
+        }
+    }
+}
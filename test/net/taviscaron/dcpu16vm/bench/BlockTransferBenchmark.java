@@ -0,0 +1,122 @@
+package net.taviscaron.dcpu16vm.bench;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.OffHeapMemoryImpl;
+
+/**
+ * Cost of the device memory transfers word by word and by blocks.
+ *
+ * A sector is the M35FD read (512 words written) plus write (512 words read), a frame is
+ * the LEM1802 paint snapshot of the screen, the font and the palette.
+ *
+ * Usage: BlockTransferBenchmark [seconds per case]
+ *
+ * @author Andrei Senchuk
+ */
+public class BlockTransferBenchmark {
+    private static final int SECTOR_SIZE = 512;
+    private static final short SECTOR_ADDRESS = (short)0xc000;
+
+    private static final int SCREEN_SIZE = 384;
+    private static final int FONT_SIZE = 256;
+    private static final int PALETTE_SIZE = 16;
+    private static final short SCREEN_ADDRESS = (short)0x8000;
+    private static final short FONT_ADDRESS = (short)0x8180;
+    private static final short PALETTE_ADDRESS = (short)0x8280;
+
+    /** Device transfer */
+    private interface Transfer {
+        public void run(Memory memory, short[] buffer);
+    }
+
+    private static final Transfer SECTOR_WORDS = new Transfer() {
+        @Override
+        public void run(Memory memory, short[] buffer) {
+            for(int i = 0; i < SECTOR_SIZE; i++) {
+                memory.writeWordRelease((short)(SECTOR_ADDRESS + i), buffer[i]);
+            }
+            for(int i = 0; i < SECTOR_SIZE; i++) {
+                buffer[i] = memory.readWordAcquire((short)(SECTOR_ADDRESS + i));
+            }
+        }
+    };
+
+    private static final Transfer SECTOR_BLOCKS = new Transfer() {
+        @Override
+        public void run(Memory memory, short[] buffer) {
+            memory.writeBlock(SECTOR_ADDRESS, buffer, 0, SECTOR_SIZE);
+            memory.readBlock(SECTOR_ADDRESS, buffer, 0, SECTOR_SIZE);
+        }
+    };
+
+    private static final Transfer FRAME_WORDS = new Transfer() {
+        @Override
+        public void run(Memory memory, short[] buffer) {
+            for(int i = 0; i < SCREEN_SIZE; i++) {
+                buffer[i] = memory.readWordAcquire((short)(SCREEN_ADDRESS + i));
+            }
+            for(int i = 0; i < FONT_SIZE; i++) {
+                buffer[SCREEN_SIZE + i] = memory.readWordAcquire((short)(FONT_ADDRESS + i));
+            }
+            for(int i = 0; i < PALETTE_SIZE; i++) {
+                buffer[SCREEN_SIZE + FONT_SIZE + i] = memory.readWordAcquire((short)(PALETTE_ADDRESS + i));
+            }
+        }
+    };
+
+    private static final Transfer FRAME_BLOCKS = new Transfer() {
+        @Override
+        public void run(Memory memory, short[] buffer) {
+            memory.readBlock(SCREEN_ADDRESS, buffer, 0, SCREEN_SIZE);
+            memory.readBlock(FONT_ADDRESS, buffer, SCREEN_SIZE, FONT_SIZE);
+            memory.readBlock(PALETTE_ADDRESS, buffer, SCREEN_SIZE + FONT_SIZE, PALETTE_SIZE);
+        }
+    };
+
+    /** keeps the results alive */
+    private static long sink;
+
+    public static void main(String[] args) {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+
+        Memory[] memories = new Memory[] { new MemoryImpl(), new OffHeapMemoryImpl() };
+        for(Memory memory : memories) {
+            String name = memory.getClass().getSimpleName();
+            double sectorWords = measure(memory, SECTOR_WORDS, seconds);
+            double sectorBlocks = measure(memory, SECTOR_BLOCKS, seconds);
+            double frameWords = measure(memory, FRAME_WORDS, seconds);
+            double frameBlocks = measure(memory, FRAME_BLOCKS, seconds);
+
+            System.out.printf("%-18s sector: %8.0f ns by words, %8.0f ns by blocks (x%.1f)%n", name, sectorWords, sectorBlocks, sectorWords / sectorBlocks);
+            System.out.printf("%-18s frame:  %8.0f ns by words, %8.0f ns by blocks (x%.1f)%n", name, frameWords, frameBlocks, frameWords / frameBlocks);
+        }
+        System.out.println((sink == 42) ? "" : "done");
+    }
+
+    /** @return ns per transfer */
+    private static double measure(Memory memory, Transfer transfer, int seconds) {
+        short[] buffer = new short[SECTOR_SIZE + SCREEN_SIZE + FONT_SIZE + PALETTE_SIZE];
+
+        // warm up
+        long warmupEnd = System.nanoTime() + 500000000L;
+        while(System.nanoTime() < warmupEnd) {
+            transfer.run(memory, buffer);
+        }
+
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long now;
+        do {
+            for(int i = 0; i < 1000; i++) {
+                transfer.run(memory, buffer);
+            }
+            count += 1000;
+            now = System.nanoTime();
+        } while(now < end);
+
+        sink += buffer[0];
+        return (now - start) / (double)count;
+    }
+}
@@ -0,0 +1,179 @@
+package net.taviscaron.dcpu16vm.bench;
+
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.util.VirtualThreads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent guests a JVM sustains with a platform or a virtual thread per guest.
+ *
+ * Every guest is a throttled machine running the busy program, so its thread mostly
+ * sleeps in the throttling. The guests count grows until they fall behind their frequency.
+ *
+ * Usage: GuestsBenchmark [platform|virtual|both] [frequency in Hz] [seconds per step]
+ *
+ * ; busy program, 5 cycles per iteration
+ * :loop
+ * ADD [0x1000], 1
+ * SET PC, loop
+ *
+ * @author Andrei Senchuk
+ */
+public class GuestsBenchmark {
+    private static final short[] busyProgram = new short[] {
+        (short)0x8bc2, (short)0x1000, (short)0x7f81, (short)0x0000
+    };
+
+    private static final short COUNTER_ADDRESS = 0x1000;
+    private static final int LOOP_CYCLES = 5;
+
+    private static final int[] GUESTS = new int[] {
+        100, 200, 500, 1000, 2000, 5000, 10000
+    };
+
+    /** Share of the target cycles the guests should run to be sustained */
+    private static final double SUSTAINED_SHARE = 0.95;
+
+    public static void main(String[] args) throws InterruptedException {
+        String mode = (args.length > 0) ? args[0] : "both";
+        int frequency = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+
+        System.out.printf("%d Hz guests, %d s per step, %d cpus, %d MB max heap%n", frequency, seconds,
+                Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() >> 20);
+
+        if(mode.equals("platform") || mode.equals("both")) {
+            run("platform", new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable);
+                }
+            }, frequency, seconds);
+        }
+
+        if(mode.equals("virtual") || mode.equals("both")) {
+            if(VirtualThreads.isSupported()) {
+                run("virtual", VirtualThreads.factory("guest-"), frequency, seconds);
+            } else {
+                System.out.println("virtual: not supported on Java " + System.getProperty("java.version"));
+            }
+        }
+    }
+
+    private static void run(String name, ThreadFactory factory, int frequency, int seconds) throws InterruptedException {
+        int sustained = 0;
+        for(int guests : GUESTS) {
+            double share = step(factory, guests, frequency, seconds);
+            System.out.printf("%s: %6d guests run %5.1f%% of the target cycles%n", name, guests, share * 100);
+            if(share < SUSTAINED_SHARE) {
+                break;
+            }
+            sustained = guests;
+        }
+        System.out.printf("%s: %d guests sustained%n", name, sustained);
+    }
+
+    /** Run guests for the time and return the share of the target cycles they've run */
+    private static double step(ThreadFactory factory, int count, int frequency, int seconds) throws InterruptedException {
+        final List<Machine> machines = new ArrayList<Machine>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger failures = new AtomicInteger();
+
+        // guests start together, so the running ones don't slow down creating the rest
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        try {
+            for(int i = 0; i < count; i++) {
+                ProcessorImpl processor = new ProcessorImpl();
+                processor.setFrequency(frequency);
+
+                final Machine machine = new MachineImpl();
+                machine.setProcessor(processor);
+                machine.setMemory(new MemoryImpl());
+                machine.setProgram(busyProgram);
+                machines.add(machine);
+
+                Thread thread = factory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            startLatch.await();
+                            machine.start();
+                        } catch(InterruptedException e) {
+                            failures.incrementAndGet();
+                        } catch(MachineException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+
+            startLatch.countDown();
+
+            // let the guests settle, then count their loop iterations
+            TimeUnit.MILLISECONDS.sleep(500);
+            int[] counters = readCounters(machines);
+            long start = System.nanoTime();
+            TimeUnit.SECONDS.sleep(seconds);
+            int[] finished = readCounters(machines);
+            long elapsed = System.nanoTime() - start;
+
+            long cycles = 0;
+            for(int i = 0; i < count; i++) {
+                cycles += ((finished[i] - counters[i]) & 0xffff) * LOOP_CYCLES;
+            }
+
+            if(failures.get() != 0) {
+                return 0;
+            }
+            return cycles / (count * (double)frequency * elapsed / TimeUnit.SECONDS.toNanos(1));
+        } catch(OutOfMemoryError e) {
+            System.out.println("out of memory: " + e.getMessage());
+            return 0;
+        } finally {
+            startLatch.countDown();
+
+            // starved guests might not have started yet and reset the stop, so it's repeated.
+            // Guests left running would slow down the next steps.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            int alive;
+            do {
+                alive = 0;
+                for(int i = 0; i < threads.size(); i++) {
+                    if(threads.get(i).isAlive()) {
+                        machines.get(i).getProcessor().stop();
+                        alive++;
+                    }
+                }
+                if(alive != 0) {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                }
+            } while(alive != 0 && System.nanoTime() < deadline);
+
+            if(alive != 0) {
+                System.out.printf("%d guests haven't stopped, the next steps are slowed down%n", alive);
+            }
+        }
+    }
+
+    private static int[] readCounters(List<Machine> machines) {
+        int[] counters = new int[machines.size()];
+        for(int i = 0; i < counters.length; i++) {
+            counters[i] = machines.get(i).getMemory().readWordAcquire(COUNTER_ADDRESS) & 0xffff;
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,193 @@
+package net.taviscaron.dcpu16vm.bench;
+
+import net.taviscaron.dcpu16vm.device.GenericClock;
+import net.taviscaron.dcpu16vm.device.GenericKeyboard;
+import net.taviscaron.dcpu16vm.device.LEM1802;
+import net.taviscaron.dcpu16vm.device.LEM1802StreamEncoder;
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.device.HardwareInfo;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.util.ProgramUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * LEM1802 screen stream bandwidth of the bundled programs.
+ *
+ * A program runs at 100 kHz with a headless display and a keyboard pressing random keys,
+ * its display is encoded 20 times a second. The stream is counted, not stored.
+ *
+ * Usage: StreamBenchmark [seconds per program] [key presses per second]
+ *
+ * @author Andrei Senchuk
+ */
+public class StreamBenchmark {
+    private static final String[] PROGRAMS = new String[] {
+        "program/tetris.dcpu16", "program/minesweeper.dcpu16"
+    };
+
+    private static final int FREQUENCY = 100000;
+    private static final int FRAME_RATE = 20;
+    private static final short[] KEYS = new short[] { 0x80, 0x81, 0x82, 0x83, 0x20, 0x11 };
+
+    /** Keyboard w/o the window, it presses random keys */
+    private static class RandomKeyboard extends Device {
+        private static final HardwareInfo INFO = GenericKeyboard.class.getAnnotation(HardwareInfo.class);
+
+        private final Queue<Short> keys = new LinkedList<Short>();
+        private final Random random = new Random(42);
+        private short pressed;
+        private short interruptMessage;
+
+        @Override
+        public int getDeviceId() {
+            return INFO.id();
+        }
+
+        @Override
+        public int getManufacturer() {
+            return INFO.manufacturer();
+        }
+
+        @Override
+        public short getVersion() {
+            return INFO.version();
+        }
+
+        public synchronized void press() {
+            pressed = KEYS[random.nextInt(KEYS.length)];
+            keys.add(pressed);
+            interruptionBus.wakeup();
+            if(interruptMessage != 0) {
+                interruptionBus.interrupt(interruptMessage);
+            }
+        }
+
+        @Override
+        public synchronized void interrupt(Processor.State state) {
+            switch(state.readRegister(Processor.Register.A)) {
+                case 0:
+                    keys.clear();
+                    break;
+                case 1:
+                    Short key = keys.poll();
+                    state.writeRegister(Processor.Register.C, (key != null) ? key : 0);
+                    break;
+                case 2:
+                    state.writeRegister(Processor.Register.C, (short)((state.readRegister(Processor.Register.B) == pressed) ? 1 : 0));
+                    break;
+                case 3:
+                    interruptMessage = state.readRegister(Processor.Register.B);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** Counts the stream bytes */
+    private static class CountingChannel implements WritableByteChannel {
+        private long bytes;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            bytes += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        int pressRate = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+
+        for(String program : PROGRAMS) {
+            run(program, seconds, pressRate);
+        }
+    }
+
+    private static void run(String program, int seconds, int pressRate) throws IOException, InterruptedException {
+        ProcessorImpl processor = new ProcessorImpl();
+        processor.setFrequency(FREQUENCY);
+
+        LEM1802 display = new LEM1802();
+        display.setHeadless(true);
+        RandomKeyboard keyboard = new RandomKeyboard();
+
+        final Machine machine = new MachineImpl();
+        machine.setProcessor(processor);
+        machine.setMemory(new MemoryImpl());
+        machine.setDevices(new Device[] { new GenericClock(), keyboard, display });
+        machine.setProgram(ProgramUtils.loadFromFile(program));
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    machine.start();
+                } catch(MachineException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        CountingChannel channel = new CountingChannel();
+        LEM1802StreamEncoder encoder = new LEM1802StreamEncoder(channel);
+
+        // the first frame is the keyframe
+        long keyframeBytes = 0;
+        long idleFrames = 0;
+        long frames = seconds * FRAME_RATE;
+        long start = System.nanoTime();
+        for(long frame = 0; frame < frames; frame++) {
+            if(pressRate > 0 && frame % Math.max(1, FRAME_RATE / pressRate) == 0) {
+                keyboard.press();
+            }
+
+            if(!display.encodeFrame(encoder)) {
+                idleFrames++;
+            }
+            if(keyframeBytes == 0) {
+                keyframeBytes = channel.bytes;
+            }
+
+            long next = start + (frame + 1) * 1000000000L / FRAME_RATE;
+            long sleep = (next - System.nanoTime()) / 1000000;
+            if(sleep > 0) {
+                Thread.sleep(sleep);
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        processor.stop();
+        thread.join(10000);
+        machine.shutdown();
+
+        long deltaBytes = channel.bytes - keyframeBytes;
+        System.out.printf("%-28s keyframe %d bytes, %.0f bytes/s, %.1f bytes/frame sent, %d of %d frames idle (raw %d bytes/s)%n",
+                program, keyframeBytes, deltaBytes / elapsed, deltaBytes / (double)Math.max(1, encoder.getFrames() - 1),
+                idleFrames, frames, keyframeBytes * FRAME_RATE);
+    }
+}
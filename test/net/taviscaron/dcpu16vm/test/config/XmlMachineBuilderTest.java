@@ -0,0 +1,76 @@
+package net.taviscaron.dcpu16vm.test.config;
+
+import net.taviscaron.dcpu16vm.config.InvalidConfigurationException;
+import net.taviscaron.dcpu16vm.config.XmlMachineBuilder;
+import net.taviscaron.dcpu16vm.device.M35FD;
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Test device properties of the XML configuration
+ * @author Andrei Senchuk
+ */
+public class XmlMachineBuilderTest {
+    /** Device with a property of two setters */
+    public static class OverloadedDevice extends Device {
+        public void setValue(int value) {
+        }
+
+        public void setValue(String value) {
+        }
+
+        @Override
+        public void interrupt(Processor.State state) {
+        }
+    }
+
+    private static Machine createMachine(String device) throws IOException, InvalidConfigurationException {
+        File config = File.createTempFile("dcpu16-machine", ".xml");
+        config.deleteOnExit();
+
+        FileWriter writer = new FileWriter(config);
+        try {
+            writer.write("<machine type=\"net.taviscaron.dcpu16vm.machine.impl.MachineImpl\">\n"
+                    + "    <processor type=\"net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl\"/>\n"
+                    + "    <memory type=\"net.taviscaron.dcpu16vm.machine.impl.MemoryImpl\"/>\n"
+                    + "    <hardware>\n"
+                    + "        " + device + "\n"
+                    + "    </hardware>\n"
+                    + "</machine>\n");
+        } finally {
+            writer.close();
+        }
+        return new XmlMachineBuilder(config.getPath()).createMachine();
+    }
+
+    @Test
+    public void testBooleanProperty() throws Exception {
+        Machine machine = createMachine("<device type=\"net.taviscaron.dcpu16vm.device.M35FD\" headless=\"true\" writeProtected=\"true\"/>");
+        Assert.assertTrue(((M35FD)machine.getDevices()[0]).isWriteProtected());
+
+        // a typo doesn't make the disk writable
+        try {
+            createMachine("<device type=\"net.taviscaron.dcpu16vm.device.M35FD\" headless=\"true\" writeProtected=\"ture\"/>");
+            Assert.fail("invalid boolean is accepted");
+        } catch(InvalidConfigurationException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("writeProtected"));
+        }
+    }
+
+    @Test
+    public void testOverloadedSetter() throws Exception {
+        try {
+            createMachine("<device type=\"" + OverloadedDevice.class.getName() + "\" value=\"1\"/>");
+            Assert.fail("overloaded setter is picked");
+        } catch(InvalidConfigurationException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("overloaded"));
+        }
+    }
+}
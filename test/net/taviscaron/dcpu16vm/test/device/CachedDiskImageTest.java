@@ -0,0 +1,160 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.disk.CachedDiskImage;
+import net.taviscaron.dcpu16vm.device.disk.DiskImage;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test M35FD sector cache
+ * @author Andrei Senchuk
+ */
+public class CachedDiskImageTest {
+    /** In-memory image recording the accesses */
+    private static class RecordingDiskImage implements DiskImage {
+        private final short[][] sectors = new short[SECTORS_COUNT][SECTOR_SIZE];
+        private final List<Integer> reads = new ArrayList<Integer>();
+        private final List<Integer> writes = new ArrayList<Integer>();
+        private int flushes;
+        private boolean closed;
+
+        @Override
+        public boolean isWriteProtected() {
+            return false;
+        }
+
+        @Override
+        public void read(int sector, short[] buffer) {
+            reads.add(sector);
+            System.arraycopy(sectors[sector], 0, buffer, 0, SECTOR_SIZE);
+        }
+
+        @Override
+        public void write(int sector, short[] buffer) {
+            writes.add(sector);
+            System.arraycopy(buffer, 0, sectors[sector], 0, SECTOR_SIZE);
+        }
+
+        @Override
+        public void read(int sector, Memory memory, short offset) {
+            reads.add(sector);
+            memory.writeBlock(offset, sectors[sector], 0, SECTOR_SIZE);
+        }
+
+        @Override
+        public void write(int sector, Memory memory, short offset) {
+            writes.add(sector);
+            memory.readBlock(offset, sectors[sector], 0, SECTOR_SIZE);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        RecordingDiskImage disk = new RecordingDiskImage();
+        disk.sectors[20] = DiskImages.sector(20);
+        disk.sectors[35] = DiskImages.sector(35);
+        CachedDiskImage cache = new CachedDiskImage(disk, 64, true);
+
+        // the rest of the second track is read ahead
+        short[] buffer = new short[DiskImage.SECTOR_SIZE];
+        cache.read(20, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(20), buffer);
+        Assert.assertEquals(16, disk.reads.size());
+        Assert.assertEquals(Integer.valueOf(35), disk.reads.get(15));
+
+        cache.read(35, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(35), buffer);
+        cache.read(20, buffer);
+        Assert.assertEquals(16, disk.reads.size());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        // next track is missed
+        cache.read(36, buffer);
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        RecordingDiskImage disk = new RecordingDiskImage();
+        CachedDiskImage cache = new CachedDiskImage(disk, 4, true);
+        short[] buffer = new short[DiskImage.SECTOR_SIZE];
+
+        // read ahead is limited by the capacity
+        cache.read(0, buffer);
+        Assert.assertEquals(4, disk.reads.size());
+
+        // sector 0 is recently used, 1 is evicted by the last sector of the track
+        cache.read(0, buffer);
+        cache.read(17, buffer);
+        disk.reads.clear();
+        cache.read(0, buffer);
+        Assert.assertTrue(disk.reads.isEmpty());
+        cache.read(1, buffer);
+        Assert.assertEquals(Integer.valueOf(1), disk.reads.get(0));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testWriteBack() throws IOException {
+        RecordingDiskImage disk = new RecordingDiskImage();
+        CachedDiskImage cache = new CachedDiskImage(disk, 2, true);
+        short[] buffer = new short[DiskImage.SECTOR_SIZE];
+
+        cache.write(5, DiskImages.sector(5));
+        cache.write(5, DiskImages.sector(6));
+        cache.write(7, DiskImages.sector(7));
+        Assert.assertTrue(disk.writes.isEmpty());
+
+        // read back from the cache
+        cache.read(5, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(6), buffer);
+        Assert.assertTrue(disk.reads.isEmpty());
+
+        // eviction writes the dirty sector
+        cache.write(9, DiskImages.sector(9));
+        Assert.assertEquals(1, disk.writes.size());
+        Assert.assertArrayEquals(DiskImages.sector(7), disk.sectors[7]);
+
+        cache.close();
+        Assert.assertEquals(3, disk.writes.size());
+        Assert.assertArrayEquals(DiskImages.sector(6), disk.sectors[5]);
+        Assert.assertArrayEquals(DiskImages.sector(9), disk.sectors[9]);
+        Assert.assertTrue(disk.flushes > 0);
+        Assert.assertTrue(disk.closed);
+    }
+
+    @Test
+    public void testWriteThrough() throws IOException {
+        RecordingDiskImage disk = new RecordingDiskImage();
+        CachedDiskImage cache = new CachedDiskImage(disk, 32, false);
+        short[] buffer = new short[DiskImage.SECTOR_SIZE];
+
+        cache.read(3, buffer);
+        cache.write(3, DiskImages.sector(3));
+        Assert.assertArrayEquals(DiskImages.sector(3), disk.sectors[3]);
+
+        cache.read(3, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(3), buffer);
+        Assert.assertEquals(1, cache.getHits());
+
+        cache.flush();
+        Assert.assertEquals(1, disk.writes.size());
+    }
+}
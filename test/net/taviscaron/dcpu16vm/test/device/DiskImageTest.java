@@ -0,0 +1,176 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.disk.DiskImage;
+import net.taviscaron.dcpu16vm.device.disk.FileDiskImage;
+import net.taviscaron.dcpu16vm.device.disk.MappedDiskImage;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.OffHeapMemoryImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Test M35FD disk image backends
+ * @author Andrei Senchuk
+ */
+public class DiskImageTest {
+    private interface Backend {
+        public DiskImage open(File file, DiskImage.Durability durability) throws IOException;
+        public DiskImage openProtected(File file) throws IOException;
+    }
+
+    private static final Backend FILE = new Backend() {
+        @Override
+        public DiskImage open(File file, DiskImage.Durability durability) throws IOException {
+            return new FileDiskImage(file, durability);
+        }
+
+        @Override
+        public DiskImage openProtected(File file) throws IOException {
+            return new FileDiskImage(file, DiskImage.Durability.CLOSE, true);
+        }
+    };
+
+    private static final Backend MAPPED = new Backend() {
+        @Override
+        public DiskImage open(File file, DiskImage.Durability durability) throws IOException {
+            return new MappedDiskImage(file, durability);
+        }
+
+        @Override
+        public DiskImage openProtected(File file) throws IOException {
+            return new MappedDiskImage(file, DiskImage.Durability.CLOSE, true);
+        }
+    };
+
+    private void testSectors(Backend backend) throws IOException {
+        File file = DiskImages.tempFile();
+        DiskImage disk = backend.open(file, DiskImage.Durability.SYNC);
+        Assert.assertFalse(disk.isWriteProtected());
+
+        disk.write(0, DiskImages.sector(1));
+        disk.write(1, DiskImages.sector(2));
+        disk.write(DiskImage.SECTORS_COUNT - 1, DiskImages.sector(3));
+
+        short[] buffer = new short[DiskImage.SECTOR_SIZE];
+        disk.read(1, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(2), buffer);
+        disk.read(2, buffer);
+        Assert.assertArrayEquals(new short[DiskImage.SECTOR_SIZE], buffer);
+
+        try {
+            disk.read(DiskImage.SECTORS_COUNT, buffer);
+            Assert.fail("sector is out of the disk");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        disk.close();
+
+        // sector N is at N * 1024 bytes, words are big-endian
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            short expected = DiskImages.sector(2)[5];
+            randomAccessFile.seek(DiskImage.SECTOR_SIZE * 2 + 10);
+            Assert.assertEquals((expected >> 8) & 0xff, randomAccessFile.read());
+            Assert.assertEquals(expected & 0xff, randomAccessFile.read());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        // the image persists
+        DiskImage reopened = backend.open(file, DiskImage.Durability.CLOSE);
+        reopened.read(DiskImage.SECTORS_COUNT - 1, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(3), buffer);
+        reopened.close();
+    }
+
+    private void testWriteProtected(Backend backend) throws IOException {
+        // short read-only image
+        File file = DiskImages.tempFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.write(new byte[] { 0x12, 0x34, 0x56 });
+        } finally {
+            randomAccessFile.close();
+        }
+        Assert.assertTrue(file.setWritable(false));
+
+        DiskImage disk = backend.open(file, DiskImage.Durability.INTERVAL);
+        if(!disk.isWriteProtected()) {
+            // running as root, read-only files are writable
+            disk.close();
+            return;
+        }
+
+        short[] buffer = DiskImages.sector(1);
+        disk.read(0, buffer);
+        Assert.assertEquals(0x1234, buffer[0]);
+        Assert.assertEquals(0, buffer[1]);
+        try {
+            disk.write(0, buffer);
+            Assert.fail("disk is write protected");
+        } catch(IOException e) {
+            // expected
+        }
+        disk.close();
+        Assert.assertEquals(3, file.length());
+    }
+
+    private void testMemoryTransfers(Backend backend, Memory memory) throws IOException {
+        File file = DiskImages.tempFile();
+        DiskImage disk = backend.open(file, DiskImage.Durability.SYNC);
+
+        // sector wraps around the memory end
+        memory.writeBlock((short)0xff00, DiskImages.sector(4), 0, DiskImage.SECTOR_SIZE);
+        disk.write(5, memory, (short)0xff00);
+        short[] buffer = new short[DiskImage.SECTOR_SIZE];
+        disk.read(5, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(4), buffer);
+
+        disk.write(6, DiskImages.sector(7));
+        disk.read(6, memory, (short)0x2000);
+        memory.readBlock((short)0x2000, buffer, 0, buffer.length);
+        Assert.assertArrayEquals(DiskImages.sector(7), buffer);
+        disk.close();
+
+        // words past the end of a short image are zeros
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(6 * DiskImage.SECTOR_SIZE * 2 + 6);
+        } finally {
+            randomAccessFile.close();
+        }
+        DiskImage truncated = backend.openProtected(file);
+        truncated.read(6, memory, (short)0x2000);
+        memory.readBlock((short)0x2000, buffer, 0, buffer.length);
+        short[] expected = new short[DiskImage.SECTOR_SIZE];
+        System.arraycopy(DiskImages.sector(7), 0, expected, 0, 3);
+        Assert.assertArrayEquals(expected, buffer);
+        try {
+            truncated.write(6, memory, (short)0x2000);
+            Assert.fail("disk is write protected");
+        } catch(IOException e) {
+            // expected
+        }
+        truncated.close();
+    }
+
+    @Test
+    public void testFileDiskImage() throws IOException {
+        testSectors(FILE);
+        testWriteProtected(FILE);
+        testMemoryTransfers(FILE, new MemoryImpl());
+    }
+
+    @Test
+    public void testMappedDiskImage() throws IOException {
+        testSectors(MAPPED);
+        testWriteProtected(MAPPED);
+        testMemoryTransfers(MAPPED, new MemoryImpl());
+        testMemoryTransfers(MAPPED, new OffHeapMemoryImpl());
+    }
+}
@@ -0,0 +1,61 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.disk.DiskImage;
+import net.taviscaron.dcpu16vm.device.disk.FileDiskImage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sectors and image files of the disk tests
+ * @author Andrei Senchuk
+ */
+class DiskImages {
+    private DiskImages() {
+    }
+
+    /** Sector words unique for the seed */
+    static short[] sector(int seed) {
+        short[] words = new short[DiskImage.SECTOR_SIZE];
+        for(int i = 0; i < words.length; i++) {
+            words[i] = (short)(seed * 31 + i);
+        }
+        return words;
+    }
+
+    /** Empty file deleted on exit */
+    static File tempFile() throws IOException {
+        File file = File.createTempFile("dcpu16-disk", ".img");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Image file with the sectors written
+     * @param sectors sector numbers and their seeds, in pairs
+     */
+    static File image(int... sectors) throws IOException {
+        File file = tempFile();
+        DiskImage disk = new FileDiskImage(file, DiskImage.Durability.CLOSE);
+        try {
+            for(int i = 0; i < sectors.length; i += 2) {
+                disk.write(sectors[i], sector(sectors[i + 1]));
+            }
+        } finally {
+            disk.close();
+        }
+        return file;
+    }
+
+    /** Sector of the image file */
+    static short[] readSector(File file, int sector) throws IOException {
+        DiskImage disk = new FileDiskImage(file, DiskImage.Durability.CLOSE, true);
+        try {
+            short[] buffer = new short[DiskImage.SECTOR_SIZE];
+            disk.read(sector, buffer);
+            return buffer;
+        } finally {
+            disk.close();
+        }
+    }
+}
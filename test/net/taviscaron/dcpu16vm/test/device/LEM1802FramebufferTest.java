@@ -0,0 +1,109 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.LEM1802;
+import net.taviscaron.dcpu16vm.device.LEM1802Framebuffer;
+import net.taviscaron.dcpu16vm.device.LEM1802FramebufferReader;
+import net.taviscaron.dcpu16vm.device.LEM1802Renderer;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Test LEM1802 framebuffer export
+ * @author Andrei Senchuk
+ */
+public class LEM1802FramebufferTest {
+    private static final int PIXELS = LEM1802Renderer.WIDTH * LEM1802Renderer.HEIGHT;
+
+    private static File createFile() throws IOException {
+        File file = File.createTempFile("lem1802", ".fb");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testTornFrames() throws Exception {
+        File file = createFile();
+        final LEM1802Framebuffer framebuffer = new LEM1802Framebuffer(file);
+        LEM1802FramebufferReader reader = new LEM1802FramebufferReader(file);
+        Assert.assertEquals(LEM1802Renderer.WIDTH, reader.getWidth());
+        Assert.assertEquals(LEM1802Renderer.HEIGHT, reader.getHeight());
+
+        // every frame is filled with its number
+        final int frames = 20000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int[] frame = new int[PIXELS];
+                for(int i = 1; i <= frames; i++) {
+                    Arrays.fill(frame, i);
+                    framebuffer.publish(frame);
+                }
+            }
+        });
+        writer.start();
+
+        int[] frame = new int[PIXELS];
+        long last = 0;
+        long read = 0;
+        while(last < frames * 2L) {
+            long sequence = reader.read(frame);
+            Assert.assertTrue(sequence >= last);
+            Assert.assertEquals(0, sequence & 1);
+            last = sequence;
+            read++;
+
+            int number = (int)(sequence / 2);
+            for(int i = 0; i < PIXELS; i++) {
+                if(frame[i] != number) {
+                    Assert.fail("torn frame " + number + " has " + frame[i] + " at " + i);
+                }
+            }
+        }
+        writer.join();
+        Assert.assertTrue(read > 0);
+
+        // next writer goes on with the sequence
+        LEM1802Framebuffer next = new LEM1802Framebuffer(file);
+        Assert.assertEquals(frames * 2L, next.getSequence());
+        next.publish(new int[PIXELS]);
+        Assert.assertEquals(frames * 2L + 2, reader.read(frame));
+        Assert.assertEquals(0, frame[PIXELS - 1]);
+    }
+
+    @Test
+    public void testDisplayExport() throws Exception {
+        Memory memory = new MemoryImpl();
+        File file = createFile();
+
+        LEM1802 display = LEM1802s.headless(memory);
+        display.setFramebuffer(file.getPath());
+
+        // 'A' white on black at the first cell
+        memory.writeWord((short)0x8000, (short)0xf041);
+        LEM1802s.mapScreen(display, (short)0x8000);
+
+        display.init();
+        try {
+            final LEM1802FramebufferReader reader = new LEM1802FramebufferReader(file);
+            LEM1802s.await("frame isn't published", new LEM1802s.Condition() {
+                @Override
+                public boolean met() {
+                    return reader.getSequence() != 0;
+                }
+            });
+
+            int[] frame = new int[PIXELS];
+            reader.read(frame);
+            Assert.assertEquals(0xff000000, frame[0]);
+            Assert.assertEquals(0xfff0f0f0, frame[(LEM1802Renderer.BORDER_SIZE + 1) * LEM1802Renderer.WIDTH + LEM1802Renderer.BORDER_SIZE]);
+        } finally {
+            display.shutdown();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.LEM1802;
+import net.taviscaron.dcpu16vm.device.LEM1802Renderer;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test headless LEM1802 rendering
+ * @author Andrei Senchuk
+ */
+public class LEM1802RendererTest {
+    private static final short SCREEN = (short)0x8000;
+    private static final short PALETTE = (short)0x9000;
+    private static final short FONT = (short)0xa000;
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xfff0f0f0;
+
+    /** 'A' of the default font, white on black */
+    private static final short WHITE_A = (short)0xf041;
+
+    private static int pixel(LEM1802Renderer renderer, int x, int y) {
+        return renderer.getPixels()[(y + LEM1802Renderer.BORDER_SIZE) * LEM1802Renderer.WIDTH + x + LEM1802Renderer.BORDER_SIZE];
+    }
+
+    @Test
+    public void testDifferentialRendering() {
+        Memory memory = new MemoryImpl();
+        LEM1802Renderer renderer = new LEM1802Renderer();
+        memory.writeWord(SCREEN, WHITE_A);
+
+        Assert.assertTrue(renderer.render(memory, SCREEN, (short)0, (short)0, 0, false));
+        Assert.assertEquals(32 * 12, renderer.getRedrawnCells());
+        Assert.assertEquals(BLACK, renderer.getPixels()[0]);
+
+        // 'A' first column is 0x7e, rows 1-6
+        Assert.assertEquals(BLACK, pixel(renderer, 0, 0));
+        Assert.assertEquals(WHITE, pixel(renderer, 0, 1));
+        Assert.assertEquals(WHITE, pixel(renderer, 0, 6));
+        Assert.assertEquals(BLACK, pixel(renderer, 0, 7));
+
+        // nothing changed
+        Assert.assertFalse(renderer.render(memory, SCREEN, (short)0, (short)0, 0, false));
+        Assert.assertEquals(0, renderer.getRedrawnCells());
+
+        // one cell of the second row
+        memory.writeWord((short)(SCREEN + 33), WHITE_A);
+        Assert.assertTrue(renderer.render(memory, SCREEN, (short)0, (short)0, 0, false));
+        Assert.assertEquals(1, renderer.getRedrawnCells());
+        Assert.assertEquals(WHITE, pixel(renderer, 4, 9));
+
+        // cells of the changed palette entry
+        short[] palette = new short[16];
+        memory.writeWord((short)0, (short)0);
+        for(int i = 0; i < palette.length; i++) {
+            palette[i] = (short)(i * 0x111);
+        }
+        palette[0] = 0x000;
+        memory.set(PALETTE, palette);
+        renderer.render(memory, SCREEN, (short)0, PALETTE, 0, false);
+        palette[15] = 0x0f00;
+        memory.set(PALETTE, palette);
+        Assert.assertTrue(renderer.render(memory, SCREEN, (short)0, PALETTE, 0, false));
+        Assert.assertEquals(2, renderer.getRedrawnCells());
+        Assert.assertEquals(0xfff00000, pixel(renderer, 0, 1));
+
+        // border only
+        Assert.assertTrue(renderer.render(memory, SCREEN, (short)0, PALETTE, 15, false));
+        Assert.assertEquals(0, renderer.getRedrawnCells());
+        Assert.assertEquals(0xfff00000, renderer.getPixels()[0]);
+        Assert.assertEquals(0xfff00000, renderer.getPixels()[LEM1802Renderer.WIDTH * LEM1802Renderer.HEIGHT - 1]);
+
+        // blinking cells swap colors on the phase change
+        memory.writeWord((short)(SCREEN + 2), (short)(WHITE_A | 0x80));
+        renderer.render(memory, SCREEN, (short)0, PALETTE, 15, false);
+        Assert.assertTrue(renderer.render(memory, SCREEN, (short)0, PALETTE, 15, true));
+        Assert.assertEquals(1, renderer.getRedrawnCells());
+        Assert.assertEquals(0xfff00000, pixel(renderer, 8, 0));
+        Assert.assertEquals(BLACK, pixel(renderer, 8, 1));
+
+        // cells of the changed glyph
+        short[] font = new short[256];
+        font[0x41 * 2] = (short)0xff00;
+        memory.set(FONT, font);
+        renderer.render(memory, SCREEN, FONT, PALETTE, 15, true);
+        font[0x41 * 2] = (short)0x0001;
+        memory.set(FONT, font);
+        Assert.assertTrue(renderer.render(memory, SCREEN, FONT, PALETTE, 15, true));
+        Assert.assertEquals(3, renderer.getRedrawnCells());
+        Assert.assertEquals(0xfff00000, pixel(renderer, 1, 0));
+        Assert.assertEquals(BLACK, pixel(renderer, 1, 1));
+        Assert.assertEquals(BLACK, pixel(renderer, 0, 0));
+
+        // disconnected screen
+        Assert.assertTrue(renderer.render(memory, (short)0, (short)0, PALETTE, 15, true));
+        Assert.assertEquals(BLACK, pixel(renderer, 0, 1));
+    }
+
+    @Test
+    public void testHeadlessDisplay() throws InterruptedException {
+        Memory memory = new MemoryImpl();
+        LEM1802 display = LEM1802s.headless(memory);
+
+        final CountDownLatch framed = new CountDownLatch(1);
+        final int[] pushed = new int[1];
+        display.addFrameListener(new LEM1802.FrameListener() {
+            @Override
+            public void frameRendered(int[] pixels, int width, int height) {
+                pushed[0] = pixels[(LEM1802Renderer.BORDER_SIZE + 1) * width + LEM1802Renderer.BORDER_SIZE];
+                framed.countDown();
+            }
+        });
+
+        // map the screen
+        memory.writeWord(SCREEN, WHITE_A);
+        LEM1802s.mapScreen(display, SCREEN);
+
+        LEM1802Renderer renderer = new LEM1802Renderer();
+        Assert.assertTrue(display.renderFrame(renderer));
+        Assert.assertEquals(WHITE, pixel(renderer, 0, 1));
+
+        display.init();
+        try {
+            Assert.assertTrue("frame isn't pushed", framed.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(WHITE, pushed[0]);
+        } finally {
+            display.shutdown();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.LEM1802Renderer;
+import net.taviscaron.dcpu16vm.device.LEM1802StreamDecoder;
+import net.taviscaron.dcpu16vm.device.LEM1802StreamEncoder;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test LEM1802 screen stream
+ * @author Andrei Senchuk
+ */
+public class LEM1802StreamTest {
+    private static final short SCREEN = (short)0x8000;
+    private static final short FONT = (short)0x9000;
+    private static final short PALETTE = (short)0x9100;
+
+    /** Display state of a frame */
+    private static class Frame {
+        private final short screen;
+        private final short font;
+        private final short palette;
+        private final int border;
+
+        private Frame(short screen, short font, short palette, int border) {
+            this.screen = screen;
+            this.font = font;
+            this.palette = palette;
+            this.border = border;
+        }
+    }
+
+    @Test
+    public void testEncodeDecode() throws IOException {
+        Memory memory = new MemoryImpl();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LEM1802StreamEncoder encoder = new LEM1802StreamEncoder(Channels.newChannel(out));
+
+        // rendered frames of the memory the decoded ones are compared with
+        List<int[]> expected = new ArrayList<int[]>();
+        LEM1802Renderer renderer = new LEM1802Renderer();
+
+        // keyframe of the disconnected screen, header included
+        Frame frame = new Frame((short)0, (short)0, (short)0, 0);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+        Assert.assertEquals(5 + 2 + 656 * 2, out.size());
+
+        // idle screen costs nothing
+        Assert.assertFalse(encode(encoder, memory, frame, renderer, expected));
+        Assert.assertEquals(5 + 2 + 656 * 2, out.size());
+
+        // connected screen
+        memory.writeWord(SCREEN, (short)0xf041);
+        frame = new Frame(SCREEN, (short)0, (short)0, 0);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+
+        // one word
+        int size = out.size();
+        memory.writeWord((short)(SCREEN + 100), (short)0x2f42);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+        Assert.assertEquals(4 + 3 + 2, out.size() - size);
+
+        // words close to each other are a run
+        size = out.size();
+        memory.writeWord((short)(SCREEN + 200), (short)0x1f43);
+        memory.writeWord((short)(SCREEN + 202), (short)0x1f44);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+        Assert.assertEquals(4 + 3 + 3 * 2, out.size() - size);
+
+        // border only
+        size = out.size();
+        frame = new Frame(SCREEN, (short)0, (short)0, 4);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+        Assert.assertEquals(4, out.size() - size);
+
+        // mapped font and palette
+        short[] font = new short[256];
+        Arrays.fill(font, (short)0x5a5a);
+        memory.set(FONT, font);
+        short[] palette = new short[16];
+        Arrays.fill(palette, (short)0x0f0f);
+        memory.set(PALETTE, palette);
+        frame = new Frame(SCREEN, FONT, PALETTE, 4);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+        memory.writeWord((short)(PALETTE + 4), (short)0x00f0);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+
+        // keyframe on request, header included
+        size = out.size();
+        encoder.requestKeyframe();
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+        Assert.assertEquals(5 + 2 + 656 * 2, out.size() - size);
+        Assert.assertEquals(expected.size(), encoder.getFrames());
+        Assert.assertEquals(out.size(), encoder.getBytesWritten());
+
+        // decoded frames look the same
+        byte[] stream = out.toByteArray();
+        LEM1802StreamDecoder decoder = new LEM1802StreamDecoder(Channels.newChannel(new ByteArrayInputStream(stream)));
+        LEM1802Renderer decoded = new LEM1802Renderer();
+        for(int[] pixels : expected) {
+            Assert.assertTrue(decoder.next());
+            decoder.render(decoded, false);
+            Assert.assertArrayEquals(pixels, decoded.getPixels());
+        }
+        Assert.assertFalse(decoder.next());
+        Assert.assertEquals(expected.size(), decoder.getFrames());
+        Assert.assertEquals(4, decoder.getBorder());
+        Assert.assertEquals((short)0x00f0, decoder.getPalette()[4]);
+
+        // truncated stream
+        decoder = new LEM1802StreamDecoder(Channels.newChannel(new ByteArrayInputStream(Arrays.copyOf(stream, stream.length - 1))));
+        try {
+            while(decoder.next()) {
+                // skip
+            }
+            Assert.fail("truncated stream is decoded");
+        } catch(EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testJoinAtKeyframe() throws IOException {
+        Memory memory = new MemoryImpl();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LEM1802StreamEncoder encoder = new LEM1802StreamEncoder(Channels.newChannel(out));
+        List<int[]> expected = new ArrayList<int[]>();
+        LEM1802Renderer renderer = new LEM1802Renderer();
+
+        Frame frame = new Frame(SCREEN, (short)0, (short)0, 2);
+        memory.writeWord(SCREEN, (short)0xf041);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+        memory.writeWord((short)(SCREEN + 1), (short)0xf042);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+
+        // viewer joins the stream at the requested keyframe
+        int joined = out.size();
+        encoder.requestKeyframe();
+        memory.writeWord((short)(SCREEN + 2), (short)0xf043);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+        memory.writeWord((short)(SCREEN + 3), (short)0xf044);
+        Assert.assertTrue(encode(encoder, memory, frame, renderer, expected));
+
+        byte[] stream = out.toByteArray();
+        LEM1802StreamDecoder decoder = new LEM1802StreamDecoder(Channels.newChannel(new ByteArrayInputStream(stream, joined, stream.length - joined)));
+        LEM1802Renderer decoded = new LEM1802Renderer();
+        for(int[] pixels : expected.subList(2, expected.size())) {
+            Assert.assertTrue(decoder.next());
+            decoder.render(decoded, false);
+            Assert.assertArrayEquals(pixels, decoded.getPixels());
+        }
+        Assert.assertFalse(decoder.next());
+        Assert.assertEquals(2, decoder.getBorder());
+
+        // delta can't be decoded w/o the keyframe
+        int delta = joined - (4 + 3 + 2);
+        decoder = new LEM1802StreamDecoder(Channels.newChannel(new ByteArrayInputStream(stream, delta, stream.length - delta)));
+        try {
+            decoder.next();
+            Assert.fail("stream is joined in the middle");
+        } catch(IOException e) {
+            Assert.assertEquals("Not a LEM1802 stream", e.getMessage());
+        }
+    }
+
+    private static boolean encode(LEM1802StreamEncoder encoder, Memory memory, Frame frame, LEM1802Renderer renderer, List<int[]> expected) throws IOException {
+        boolean sent = encoder.encode(memory, frame.screen, frame.font, frame.palette, frame.border);
+        if(sent) {
+            renderer.render(memory, frame.screen, frame.font, frame.palette, frame.border, false);
+            expected.add(renderer.getPixels().clone());
+        }
+        return sent;
+    }
+}
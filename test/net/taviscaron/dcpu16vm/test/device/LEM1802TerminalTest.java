@@ -0,0 +1,85 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.LEM1802;
+import net.taviscaron.dcpu16vm.device.LEM1802Renderer;
+import net.taviscaron.dcpu16vm.device.LEM1802Terminal;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+/**
+ * Test LEM1802 terminal output
+ * @author Andrei Senchuk
+ */
+public class LEM1802TerminalTest {
+    private static final short SCREEN = (short)0x8000;
+
+    @Test
+    public void testDifferentialOutput() throws IOException {
+        Memory memory = new MemoryImpl();
+        LEM1802Renderer renderer = new LEM1802Renderer();
+        StringWriter out = new StringWriter();
+        LEM1802Terminal terminal = new LEM1802Terminal(out, LEM1802Terminal.Glyphs.BRAILLE);
+        Assert.assertEquals(68, terminal.getColumns());
+        Assert.assertEquals(26, terminal.getRows());
+
+        // whole screen is cleared and written
+        renderer.render(memory, SCREEN, (short)0, (short)0, 0, false);
+        Assert.assertEquals(68 * 26, terminal.draw(renderer.getPixels()));
+        Assert.assertTrue(out.toString().contains("\u001b[2J"));
+
+        // nothing changed
+        out.getBuffer().setLength(0);
+        Assert.assertEquals(0, terminal.draw(renderer.getPixels()));
+        Assert.assertEquals("", out.toString());
+
+        // '|' is the second column of the second cell w/o the row 3
+        memory.writeWord((short)(SCREEN + 1), (short)0xf07c);
+        renderer.render(memory, SCREEN, (short)0, (short)0, 0, false);
+        Assert.assertEquals(2, terminal.draw(renderer.getPixels()));
+        Assert.assertEquals("\u001b[2;5H\u001b[38;2;240;240;240m\u2838\u001b[3;5H\u2838", out.toString());
+
+        // border in blocks
+        StringWriter blocksOut = new StringWriter();
+        LEM1802Terminal blocks = new LEM1802Terminal(blocksOut, LEM1802Terminal.Glyphs.BLOCKS);
+        renderer.render(memory, SCREEN, (short)0, (short)0, 4, false);
+        Assert.assertEquals(68 * 52, blocks.draw(renderer.getPixels()));
+        Assert.assertTrue(blocksOut.toString().contains("\u001b[48;2;160;0;0m "));
+        Assert.assertTrue(blocksOut.toString().contains("\u2590"));
+    }
+
+    @Test
+    public void testHeadlessTerminal() throws Exception {
+        final File file = File.createTempFile("lem1802", ".tty");
+        file.deleteOnExit();
+
+        LEM1802 display = LEM1802s.headless(new MemoryImpl());
+        display.setTerminal(file.getPath());
+        display.setTerminalGlyphs("blocks");
+        display.setTerminalRate(50);
+
+        display.init();
+        try {
+            LEM1802s.await("frame isn't written", new LEM1802s.Condition() {
+                @Override
+                public boolean met() {
+                    return file.length() != 0;
+                }
+            });
+        } finally {
+            display.shutdown();
+        }
+
+        // cursor is shown back
+        String output = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+        Assert.assertTrue(output.startsWith("\u001b[?25l"));
+        Assert.assertTrue(output.endsWith("\u001b[?25h"));
+    }
+}
@@ -0,0 +1,59 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.LEM1802;
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import org.junit.Assert;
+
+/**
+ * Headless displays of the LEM1802 tests
+ * @author Andrei Senchuk
+ */
+class LEM1802s {
+    private static final long TIMEOUT = 10000;
+
+    /** Condition a display thread meets eventually */
+    interface Condition {
+        public boolean met() throws Exception;
+    }
+
+    private LEM1802s() {
+    }
+
+    /** Headless display on the memory, not initialized */
+    static LEM1802 headless(final Memory memory) {
+        LEM1802 display = new LEM1802();
+        display.setHeadless(true);
+        display.setMemoryBus(new Machine.MemoryBus() {
+            @Override
+            public Memory memory() {
+                return memory;
+            }
+
+            @Override
+            public Memory.Region mapRegion(short offset, int length, Memory.RegionListener listener) {
+                return memory.mapRegion(offset, length, listener);
+            }
+        });
+        return display;
+    }
+
+    /** Map the screen as the MEM_MAP_SCREEN interrupt does */
+    static void mapScreen(LEM1802 display, short offset) {
+        Processor.State state = new ProcessorImpl().new State();
+        state.writeRegister(Processor.Register.A, (short)0);
+        state.writeRegister(Processor.Register.B, offset);
+        display.interrupt(state);
+    }
+
+    /** Poll the condition until it's met, fail after the timeout */
+    static void await(String message, Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(!condition.met()) {
+            Assert.assertTrue(message, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
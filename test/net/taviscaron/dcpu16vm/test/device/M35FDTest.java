@@ -0,0 +1,208 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.M35FD;
+import net.taviscaron.dcpu16vm.device.disk.DiskImage;
+import net.taviscaron.dcpu16vm.device.disk.FileDiskImage;
+import net.taviscaron.dcpu16vm.device.disk.OverlayDiskImage;
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test headless M35FD
+ *
+ * ; program, copies sector 1 to sector 2 through 0x1000
+ * SET A, 2
+ * SET X, 1
+ * SET Y, 0x1000
+ * HWI 0
+ * :wait
+ * SET A, 0
+ * HWI 0
+ * IFE B, 3
+ * SET PC, wait
+ * SET A, 3
+ * SET X, 2
+ * SET Y, 0x1000
+ * HWI 0
+ * :wait2
+ * SET A, 0
+ * HWI 0
+ * IFE B, 3
+ * SET PC, wait2
+ * HWI 1
+ *
+ * @author Andrei Senchuk
+ */
+public class M35FDTest {
+    private static final short[] program = new short[] {
+        (short)0x8c01, (short)0x8861, (short)0x7c81, (short)0x1000,
+        (short)0x7e40, (short)0x0000, (short)0x8401, (short)0x7e40,
+        (short)0x0000, (short)0x9032, (short)0x7f81, (short)0x0006,
+        (short)0x9001, (short)0x8c61, (short)0x7c81, (short)0x1000,
+        (short)0x7e40, (short)0x0000, (short)0x8401, (short)0x7e40,
+        (short)0x0000, (short)0x9032, (short)0x7f81, (short)0x0012,
+        (short)0x7e40, (short)0x0001
+    };
+
+    private static final short STATE_READY = 0x0001;
+    private static final short STATE_READY_WP = 0x0002;
+    private static final short ERROR_NONE = 0x0000;
+    private static final short ERROR_PROTECTED = 0x0003;
+
+    /** @return drive state and error words, memory at 0x1000 after the program */
+    private short[] run(M35FD drive) throws MachineException {
+        final Machine machine = new MachineImpl();
+        final short[] result = new short[2 + DiskImage.SECTOR_SIZE];
+        machine.setProcessor(new ProcessorImpl());
+        machine.setMemory(new MemoryImpl());
+        machine.setDevices(new Device[] {
+            drive,
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    result[0] = state.readRegister(Processor.Register.B);
+                    result[1] = state.readRegister(Processor.Register.C);
+                    for(int i = 0; i < DiskImage.SECTOR_SIZE; i++) {
+                        result[2 + i] = machine.getMemory().readWord((short)(0x1000 + i));
+                    }
+                    machine.getProcessor().stop();
+                }
+            }
+        });
+        machine.setProgram(program);
+        machine.start();
+        machine.shutdown();
+        return result;
+    }
+
+    @Test
+    public void testConfiguredImage() throws Exception {
+        File file = DiskImages.image(1, 1);
+        M35FD drive = new M35FD();
+        drive.setHeadless(true);
+        drive.setImage(file.getPath());
+
+        // two sectors of the first track take at least 2 * 512 / 30700 s
+        long start = System.nanoTime();
+        short[] result = run(drive);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        Assert.assertEquals(STATE_READY, result[0]);
+        Assert.assertEquals(ERROR_NONE, result[1]);
+        for(int i = 0; i < DiskImage.SECTOR_SIZE; i++) {
+            Assert.assertEquals(DiskImages.sector(1)[i], result[2 + i]);
+        }
+        Assert.assertTrue("drive is too fast: " + elapsed + " ms", elapsed >= 33);
+        Assert.assertArrayEquals(DiskImages.sector(1), DiskImages.readSector(file, 2));
+        Assert.assertFalse(drive.isInserted());
+    }
+
+    @Test
+    public void testWriteProtected() throws Exception {
+        File file = DiskImages.image(1, 1);
+        M35FD drive = new M35FD();
+        drive.setHeadless(true);
+        drive.setTurbo(true);
+        drive.setImage(file.getPath());
+        drive.setWriteProtected(true);
+
+        short[] result = run(drive);
+        Assert.assertEquals(STATE_READY_WP, result[0]);
+        Assert.assertEquals(ERROR_PROTECTED, result[1]);
+        Assert.assertEquals(DiskImages.sector(1)[0], result[2]);
+        Assert.assertArrayEquals(new short[DiskImage.SECTOR_SIZE], DiskImages.readSector(file, 2));
+    }
+
+    @Test
+    public void testWriteProtectedOverlay() throws Exception {
+        File file = DiskImages.image(1, 1);
+        File overlay = DiskImages.tempFile();
+        OverlayDiskImage written = new OverlayDiskImage(new FileDiskImage(file, DiskImage.Durability.CLOSE, true), overlay, DiskImage.Durability.CLOSE);
+        written.write(1, DiskImages.sector(5));
+        written.close();
+
+        M35FD drive = new M35FD();
+        drive.setHeadless(true);
+        drive.setTurbo(true);
+        drive.setImage(file.getPath());
+        drive.setOverlay(overlay.getPath());
+        drive.setWriteProtected(true);
+
+        // the sector is read from the overlay, which isn't written
+        short[] result = run(drive);
+        Assert.assertEquals(STATE_READY_WP, result[0]);
+        Assert.assertEquals(ERROR_PROTECTED, result[1]);
+        Assert.assertEquals(DiskImages.sector(5)[0], result[2]);
+
+        OverlayDiskImage reopened = new OverlayDiskImage(new FileDiskImage(file, DiskImage.Durability.CLOSE, true), overlay, DiskImage.Durability.CLOSE, true);
+        Assert.assertTrue(reopened.isWritten(1));
+        Assert.assertFalse(reopened.isWritten(2));
+        reopened.close();
+        Assert.assertArrayEquals(new short[DiskImage.SECTOR_SIZE], DiskImages.readSector(file, 2));
+    }
+
+    @Test
+    public void testInsertAndEjectInterrupts() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        M35FD drive = new M35FD();
+        drive.setHeadless(true);
+        drive.init();
+        drive.setInterruptionBus(new Machine.InterruptionBus() {
+            @Override
+            public void interrupt(short code) {
+                events.add("interrupt " + code);
+            }
+
+            @Override
+            public void wakeup() {
+                events.add("wakeup");
+            }
+
+            @Override
+            public long cycles() {
+                return 0;
+            }
+        });
+
+        // turn interrupts on with message 7
+        Processor.State state = new ProcessorImpl().new State();
+        state.writeRegister(Processor.Register.A, (short)1);
+        state.writeRegister(Processor.Register.X, (short)7);
+        drive.interrupt(state);
+
+        drive.insert(DiskImages.image(1, 1), false);
+        Assert.assertTrue(drive.isInserted());
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals("wakeup", events.get(0));
+        Assert.assertEquals("interrupt 7", events.get(1));
+
+        try {
+            drive.insert(DiskImages.image(1, 1), false);
+            Assert.fail("disk is inserted already");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+
+        drive.eject();
+        Assert.assertFalse(drive.isInserted());
+        Assert.assertEquals(4, events.size());
+        Assert.assertEquals("interrupt 7", events.get(3));
+
+        // poll reports no media
+        state.writeRegister(Processor.Register.A, (short)0);
+        drive.interrupt(state);
+        Assert.assertEquals(0, state.readRegister(Processor.Register.B));
+        drive.shutdown();
+    }
+}
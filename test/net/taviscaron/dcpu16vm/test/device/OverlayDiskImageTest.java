@@ -0,0 +1,99 @@
+package net.taviscaron.dcpu16vm.test.device;
+
+import net.taviscaron.dcpu16vm.device.disk.DiskImage;
+import net.taviscaron.dcpu16vm.device.disk.FileDiskImage;
+import net.taviscaron.dcpu16vm.device.disk.MappedDiskImage;
+import net.taviscaron.dcpu16vm.device.disk.OverlayDiskImage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test copy-on-write disk overlays
+ * @author Andrei Senchuk
+ */
+public class OverlayDiskImageTest {
+    private static OverlayDiskImage open(File base, File overlay) throws IOException {
+        return new OverlayDiskImage(new MappedDiskImage(base, DiskImage.Durability.CLOSE, true), overlay, DiskImage.Durability.INTERVAL);
+    }
+
+    @Test
+    public void testCopyOnWrite() throws IOException {
+        File base = DiskImages.image(0, 100, DiskImage.SECTORS_COUNT - 1, 101);
+        long baseModified = base.lastModified();
+        File first = DiskImages.tempFile();
+        File second = DiskImages.tempFile();
+
+        OverlayDiskImage firstDisk = open(base, first);
+        OverlayDiskImage secondDisk = open(base, second);
+        short[] buffer = new short[DiskImage.SECTOR_SIZE];
+
+        firstDisk.write(0, DiskImages.sector(1));
+        firstDisk.write(700, DiskImages.sector(2));
+        Assert.assertTrue(firstDisk.isWritten(0));
+        Assert.assertFalse(firstDisk.isWritten(1));
+
+        // machines see their own sectors over the base
+        firstDisk.read(0, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(1), buffer);
+        secondDisk.read(0, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(100), buffer);
+        firstDisk.read(DiskImage.SECTORS_COUNT - 1, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(101), buffer);
+        firstDisk.close();
+        secondDisk.close();
+
+        // the overlay persists, the base isn't touched
+        OverlayDiskImage reopened = open(base, first);
+        Assert.assertTrue(reopened.isWritten(700));
+        reopened.read(700, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(2), buffer);
+        reopened.close();
+
+        Assert.assertEquals(baseModified, base.lastModified());
+        DiskImage baseDisk = new FileDiskImage(base, DiskImage.Durability.CLOSE, true);
+        baseDisk.read(0, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(100), buffer);
+        baseDisk.close();
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        File base = DiskImages.image(0, 100, DiskImage.SECTORS_COUNT - 1, 101);
+        File overlay = DiskImages.tempFile();
+        OverlayDiskImage disk = open(base, overlay);
+        disk.write(5, DiskImages.sector(5));
+        disk.write(DiskImage.SECTORS_COUNT - 1, DiskImages.sector(6));
+        disk.close();
+
+        File merged = DiskImages.tempFile();
+        OverlayDiskImage.merge(base, overlay, merged);
+
+        DiskImage image = new FileDiskImage(merged, DiskImage.Durability.CLOSE);
+        short[] buffer = new short[DiskImage.SECTOR_SIZE];
+        image.read(0, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(100), buffer);
+        image.read(5, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(5), buffer);
+        image.read(DiskImage.SECTORS_COUNT - 1, buffer);
+        Assert.assertArrayEquals(DiskImages.sector(6), buffer);
+        image.close();
+        Assert.assertEquals(DiskImage.SIZE_IN_BYTES, merged.length());
+
+        try {
+            OverlayDiskImage.merge(base, overlay, base);
+            Assert.fail("base can't be the merge target");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidOverlay() throws IOException {
+        // base image isn't an overlay
+        File base = DiskImages.image(0, 100, DiskImage.SECTORS_COUNT - 1, 101);
+        open(base, base);
+    }
+}
@@ -0,0 +1,208 @@
+package net.taviscaron.dcpu16vm.test.machine;
+
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MachineScheduler;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.machine.impl.TranslatingProcessorImpl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test machines scheduling
+ *
+ * ; interrupt program
+ * IAS handler
+ * :loop
+ * IFN B, 0
+ * HWI 0
+ * SET PC, loop
+ * :handler
+ * SET B, A
+ * RFI 0
+ *
+ * ; busy program
+ * :loop
+ * ADD [0x1000], 1
+ * SET PC, loop
+ *
+ * ; overflow program
+ * IAS handler
+ * IAQ 1
+ * HWI 0
+ * :end
+ * SET PC, end
+ * :handler
+ * RFI 0
+ *
+ * @author Andrei Senchuk
+ */
+public class MachineSchedulerTest {
+    private static final long TIMEOUT = 10000;
+
+    private static final int IDLE_MACHINES = 500;
+
+    private static final short[] interruptProgram = new short[] {
+        (short)0x7d40, (short)0x0007, (short)0x8433, (short)0x7e40,
+        (short)0x0000, (short)0x7f81, (short)0x0002, (short)0x0021,
+        (short)0x7d60, (short)0x0000
+    };
+
+    private static final short[] busyProgram = new short[] {
+        (short)0x8bc2, (short)0x1000, (short)0x7f81, (short)0x0000
+    };
+
+    private static final short[] overflowProgram = new short[] {
+        (short)0x7d40, (short)0x0008, (short)0x7d80, (short)0x0001,
+        (short)0x7e40, (short)0x0000, (short)0x7f81, (short)0x0006,
+        (short)0x7d60, (short)0x0000
+    };
+
+    private MachineScheduler scheduler;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if(scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    private Machine createMachine(ProcessorImpl processor, short[] program) {
+        Machine machine = new MachineImpl();
+        machine.setProcessor(processor);
+        machine.setMemory(new MemoryImpl());
+        machine.setProgram(program);
+        return machine;
+    }
+
+    private ProcessorImpl unthrottled(ProcessorImpl processor) {
+        processor.setFrequency(ProcessorImpl.UNTHROTTLED);
+        return processor;
+    }
+
+    @Test
+    public void testIdleMachinesWakeUp() throws InterruptedException {
+        scheduler = new MachineScheduler(2);
+
+        final AtomicInteger handled = new AtomicInteger();
+        List<MachineScheduler.Task> tasks = new ArrayList<MachineScheduler.Task>();
+        for(int i = 0; i < IDLE_MACHINES; i++) {
+            final Machine machine = createMachine((i % 2 == 0) ? new ProcessorImpl() : new TranslatingProcessorImpl(), interruptProgram);
+            // the handler stores the message into B, zero message wouldn't stop the loop
+            final short code = (short)(i + 1);
+            machine.setDevices(new Device[] {
+                new Device() {
+                    @Override
+                    public void interrupt(Processor.State state) {
+                        if(state.readRegister(Processor.Register.B) == code) {
+                            handled.incrementAndGet();
+                        }
+                        machine.getProcessor().stop();
+                    }
+                }
+            });
+            tasks.add(scheduler.submit(machine));
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for(MachineScheduler.Task task : tasks) {
+            while(!task.isIdle()) {
+                Assert.assertTrue("machine isn't idle", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+
+        // idle machines aren't run at all
+        long cycles = 0;
+        for(MachineScheduler.Task task : tasks) {
+            cycles += task.getCycles();
+        }
+        Thread.sleep(100);
+        for(MachineScheduler.Task task : tasks) {
+            cycles -= task.getCycles();
+        }
+        Assert.assertEquals(0, cycles);
+
+        for(int i = 0; i < IDLE_MACHINES; i++) {
+            tasks.get(i).getMachine().getProcessor().interrupt((short)(i + 1));
+        }
+
+        for(MachineScheduler.Task task : tasks) {
+            Assert.assertTrue(task.join(TIMEOUT, TimeUnit.MILLISECONDS));
+            Assert.assertNull(task.getError());
+        }
+        Assert.assertEquals(IDLE_MACHINES, handled.get());
+    }
+
+    @Test
+    public void testPriorities() throws InterruptedException {
+        scheduler = new MachineScheduler(1);
+
+        MachineScheduler.Task low = scheduler.submit(createMachine(unthrottled(new ProcessorImpl()), busyProgram), 2);
+        MachineScheduler.Task high = scheduler.submit(createMachine(unthrottled(new ProcessorImpl()), busyProgram), 8);
+        Thread.sleep(300);
+
+        low.cancel();
+        high.cancel();
+        Assert.assertTrue(low.join(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(high.join(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // quanta are proportional to the priorities
+        double ratio = (double)high.getCycles() / low.getCycles();
+        Assert.assertTrue("cycles ratio is " + ratio, ratio > 3 && ratio < 5);
+    }
+
+    @Test
+    public void testThrottling() throws InterruptedException {
+        scheduler = new MachineScheduler(1);
+
+        ProcessorImpl processor = new ProcessorImpl();
+        processor.setFrequency(ProcessorImpl.DEFAULT_FREQUENCY);
+        MachineScheduler.Task task = scheduler.submit(createMachine(processor, busyProgram));
+
+        // a busy machine doesn't delay the throttled one
+        MachineScheduler.Task busy = scheduler.submit(createMachine(unthrottled(new ProcessorImpl()), busyProgram));
+        Thread.sleep(500);
+
+        task.cancel();
+        busy.cancel();
+        Assert.assertTrue(task.join(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(busy.join(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // 50000 cycles in 500 ms at 100 kHz, overrun by a quantum at most
+        long cycles = task.getCycles();
+        Assert.assertTrue("throttled machine ran " + cycles + " cycles", cycles >= 30000 && cycles <= 50000 + 2 * MachineScheduler.QUANTUM_CYCLES);
+        Assert.assertTrue(busy.getCycles() > cycles);
+    }
+
+    @Test
+    public void testProcessorCatchesFire() throws InterruptedException {
+        scheduler = new MachineScheduler(1);
+
+        final Machine machine = createMachine(new ProcessorImpl(), overflowProgram);
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    for(int i = 0; i <= Processor.MAX_QUEUED_INT; i++) {
+                        interruptionBus.interrupt((short)i);
+                    }
+                }
+            }
+        });
+
+        MachineScheduler.Task task = scheduler.submit(machine);
+        Assert.assertTrue(task.join(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(task.isDone());
+        Assert.assertTrue(task.getError().getMessage().contains("catched fire"));
+    }
+}
@@ -0,0 +1,114 @@
+package net.taviscaron.dcpu16vm.test.machine;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.OffHeapMemoryImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Test memory block transfers
+ * @author Andrei Senchuk
+ */
+public class MemoryBlockTest {
+    private void testBlocks(Memory memory) {
+        short[] block = new short[0x20];
+        for(int i = 0; i < block.length; i++) {
+            block[i] = (short)(i + 1);
+        }
+
+        // part of the buffer
+        memory.writeBlock((short)0x1000, block, 4, 8);
+        Assert.assertEquals(0, memory.readWord((short)0x0fff));
+        Assert.assertEquals(5, memory.readWord((short)0x1000));
+        Assert.assertEquals(12, memory.readWord((short)0x1007));
+        Assert.assertEquals(0, memory.readWord((short)0x1008));
+
+        // block wraps around the memory end
+        long[] dirty = new long[Memory.DIRTY_BITMAP_SIZE];
+        Memory.ChangeCursor cursor = memory.createChangeCursor();
+        cursor.poll(dirty);
+        memory.writeBlock((short)0xfff0, block, 0, block.length);
+        Assert.assertEquals(1, memory.readWord((short)0xfff0));
+        Assert.assertEquals(16, memory.readWord((short)0xffff));
+        Assert.assertEquals(17, memory.readWord((short)0x0000));
+        Assert.assertEquals(32, memory.readWord((short)0x000f));
+        Assert.assertEquals(2, cursor.poll(dirty));
+        Assert.assertTrue((dirty[0] & 1L) != 0 && (dirty[3] & (1L << 63)) != 0);
+
+        short[] read = new short[block.length + 2];
+        memory.readBlock((short)0xfff0, read, 1, block.length);
+        Assert.assertEquals(0, read[0]);
+        for(int i = 0; i < block.length; i++) {
+            Assert.assertEquals(block[i], read[i + 1]);
+        }
+        Assert.assertEquals(0, read[read.length - 1]);
+
+        // whole memory
+        short[] all = new short[0x10000];
+        memory.readBlock((short)0x8000, all, 0, all.length);
+        Assert.assertEquals(5, all[0x9000]);
+        Assert.assertEquals(17, all[0x8000]);
+
+        try {
+            memory.readBlock((short)0, block, 16, 17);
+            Assert.fail("block exceeds the buffer");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void testBufferBlocks(Memory memory, ShortBuffer buffer) {
+        for(int i = 0; i < 0x20; i++) {
+            buffer.put(i, (short)(i + 1));
+        }
+
+        // remaining words wrap around the memory end
+        buffer.position(4);
+        buffer.limit(0x14);
+        long[] dirty = new long[Memory.DIRTY_BITMAP_SIZE];
+        Memory.ChangeCursor cursor = memory.createChangeCursor();
+        cursor.poll(dirty);
+        memory.writeBlock((short)0xfff8, buffer);
+        Assert.assertEquals(0x14, buffer.position());
+        Assert.assertEquals(5, memory.readWord((short)0xfff8));
+        Assert.assertEquals(12, memory.readWord((short)0xffff));
+        Assert.assertEquals(13, memory.readWord((short)0x0000));
+        Assert.assertEquals(20, memory.readWord((short)0x0007));
+        Assert.assertEquals(0, memory.readWord((short)0x0008));
+        Assert.assertEquals(2, cursor.poll(dirty));
+
+        buffer.clear();
+        buffer.position(1);
+        buffer.limit(0x11);
+        memory.readBlock((short)0xfff8, buffer);
+        Assert.assertEquals(0x11, buffer.position());
+        buffer.clear();
+        Assert.assertEquals(1, buffer.get(0));
+        for(int i = 0; i < 0x10; i++) {
+            Assert.assertEquals(i + 5, buffer.get(i + 1));
+        }
+        Assert.assertEquals(0x12, buffer.get(0x11));
+    }
+
+    @Test
+    public void testBufferBlocks() {
+        testBufferBlocks(new MemoryImpl(), ShortBuffer.allocate(0x20));
+        testBufferBlocks(new MemoryImpl(), ByteBuffer.allocateDirect(0x40).asShortBuffer());
+        testBufferBlocks(new OffHeapMemoryImpl(), ShortBuffer.allocate(0x20));
+        testBufferBlocks(new OffHeapMemoryImpl(), ByteBuffer.allocateDirect(0x40).asShortBuffer());
+    }
+
+    @Test
+    public void testMemoryImpl() {
+        testBlocks(new MemoryImpl());
+    }
+
+    @Test
+    public void testOffHeapMemoryImpl() {
+        testBlocks(new OffHeapMemoryImpl());
+    }
+}
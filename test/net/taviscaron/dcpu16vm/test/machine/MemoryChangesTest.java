@@ -0,0 +1,162 @@
+package net.taviscaron.dcpu16vm.test.machine;
+
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.OffHeapMemoryImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Test memory changes tracking
+ * @author Andrei Senchuk
+ */
+public class MemoryChangesTest {
+    private static boolean isDirty(long[] dirty, int page) {
+        return (dirty[page >> 6] & (1L << page)) != 0;
+    }
+
+    private void testChanges(Memory memory) {
+        long[] dirty = new long[Memory.DIRTY_BITMAP_SIZE];
+        Memory.ChangeCursor display = memory.createChangeCursor();
+        Memory.ChangeCursor snapshotter = memory.createChangeCursor();
+
+        // new cursor sees everything
+        Assert.assertEquals(Memory.PAGES_COUNT, display.poll(dirty));
+        Assert.assertEquals(0, display.poll(dirty));
+        Assert.assertEquals(0, dirty[0] | dirty[1] | dirty[2] | dirty[3]);
+
+        memory.writeWord((short)0x1234, (short)1);
+        memory.writeWord((short)0x12ff, (short)2);
+        Assert.assertEquals(1, display.poll(dirty));
+        Assert.assertTrue(isDirty(dirty, 0x12));
+
+        // set marks every page it spans
+        memory.set((short)0x40f0, new short[0x120]);
+        Assert.assertEquals(3, display.poll(dirty));
+        Assert.assertTrue(isDirty(dirty, 0x40) && isDirty(dirty, 0x41) && isDirty(dirty, 0x42));
+        Assert.assertFalse(isDirty(dirty, 0x12));
+
+        // writes by other threads
+        memory.writeWordRelease((short)0xffff, (short)3);
+        Assert.assertEquals(1, display.poll(dirty));
+        Assert.assertTrue(isDirty(dirty, 0xff));
+
+        // display polls don't clear the snapshotter view
+        Assert.assertEquals(Memory.PAGES_COUNT, snapshotter.poll(dirty));
+        memory.writeWord((short)0x0000, (short)4);
+        Assert.assertEquals(1, snapshotter.poll(dirty));
+        Assert.assertTrue(isDirty(dirty, 0x00));
+        Assert.assertEquals(1, display.poll(dirty));
+        Assert.assertTrue(isDirty(dirty, 0x00));
+    }
+
+    @Test
+    public void testMemoryImpl() {
+        testChanges(new MemoryImpl());
+    }
+
+    @Test
+    public void testOffHeapMemoryImpl() {
+        testChanges(new OffHeapMemoryImpl());
+    }
+
+    @Test
+    public void testWritesOfOtherThread() throws InterruptedException {
+        final Memory memory = new MemoryImpl();
+        final long[] dirty = new long[Memory.DIRTY_BITMAP_SIZE];
+        final Memory.ChangeCursor cursor = memory.createChangeCursor();
+        cursor.poll(dirty);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int i = 0; i < 0x10000; i += Memory.PAGE_SIZE * 2) {
+                    memory.writeWordRelease((short)i, (short)(i >> Memory.PAGE_SHIFT));
+                }
+            }
+        });
+        writer.start();
+
+        // every reported page has its word written
+        int seen = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while(seen < Memory.PAGES_COUNT / 2) {
+            Assert.assertTrue("writes aren't seen", System.currentTimeMillis() < deadline);
+            seen += cursor.poll(dirty);
+            for(int page = 0; page < Memory.PAGES_COUNT; page++) {
+                if(isDirty(dirty, page)) {
+                    Assert.assertEquals(0, page % 2);
+                    Assert.assertEquals(page, memory.readWordAcquire((short)(page << Memory.PAGE_SHIFT)));
+                }
+            }
+        }
+
+        writer.join();
+        Assert.assertEquals(0, cursor.poll(dirty));
+    }
+
+    /** Writers racing on a page don't lose a version bump, so the cursor reports their last words */
+    @Test
+    public void testTwoWriters() throws Exception {
+        final Memory memory = new MemoryImpl();
+        final long[] dirty = new long[Memory.DIRTY_BITMAP_SIZE];
+        final Memory.ChangeCursor cursor = memory.createChangeCursor();
+        cursor.poll(dirty);
+
+        final int rounds = 10000;
+        final int page = 0x20;
+        final CyclicBarrier start = new CyclicBarrier(3);
+        final CyclicBarrier end = new CyclicBarrier(3);
+
+        Thread[] writers = new Thread[2];
+        for(int w = 0; w < writers.length; w++) {
+            final short offset = (short)((page << Memory.PAGE_SHIFT) + w);
+            final boolean block = (w == 1);
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int round = 1; round <= rounds; round++) {
+                            start.await();
+                            if(block) {
+                                memory.writeBlock(offset, new short[] { (short)round }, 0, 1);
+                            } else {
+                                memory.writeWordRelease(offset, (short)round);
+                            }
+                            end.await();
+                        }
+                    } catch(Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            writers[w].start();
+        }
+
+        short[] seen = new short[2];
+        for(int round = 1; round <= rounds; round++) {
+            start.await();
+
+            // the cursor is polled while the words are being written
+            for(int i = 0; i < 2; i++) {
+                if(cursor.poll(dirty) != 0) {
+                    memory.readBlock((short)(page << Memory.PAGE_SHIFT), seen, 0, 2);
+                }
+            }
+            end.await();
+
+            if(cursor.poll(dirty) != 0) {
+                Assert.assertTrue(isDirty(dirty, page));
+                memory.readBlock((short)(page << Memory.PAGE_SHIFT), seen, 0, 2);
+            }
+            Assert.assertEquals("round " + round, (short)round, seen[0]);
+            Assert.assertEquals("round " + round, (short)round, seen[1]);
+        }
+
+        for(Thread writer : writers) {
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package net.taviscaron.dcpu16vm.test.machine;
+
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.OffHeapMemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test memory-mapped I/O regions
+ *
+ * ; program, maps the region at 0x8000 and writes it
+ * SET A, 0
+ * SET B, 0x8000
+ * HWI 0
+ * SET [0x7fff], 1
+ * SET [0x8001], 2
+ * SET [0x8010], 3
+ * SET A, 1
+ * HWI 0
+ *
+ * @author Andrei Senchuk
+ */
+public class MemoryRegionTest {
+    private static final short[] program = new short[] {
+        (short)0x8401, (short)0x7c21, (short)0x8000, (short)0x7e40,
+        (short)0x0000, (short)0x8bc1, (short)0x7fff, (short)0x8fc1,
+        (short)0x8001, (short)0x93c1, (short)0x8010, (short)0x8801,
+        (short)0x7e40, (short)0x0000
+    };
+
+    /** Records written ranges */
+    private static class Recorder implements Memory.RegionListener {
+        private final List<Integer> writes = new ArrayList<Integer>();
+
+        @Override
+        public void regionWritten(Memory.Region region, short offset, int length) {
+            writes.add(((offset & 0xffff) << 16) | length);
+        }
+    }
+
+    private void testRegions(Memory memory) {
+        Recorder recorder = new Recorder();
+        Memory.Region region = memory.mapRegion((short)0x80f0, 0x20, recorder);
+        Assert.assertTrue("mapping marks the region", region.takeWritten());
+        Assert.assertFalse(region.takeWritten());
+
+        // outside
+        memory.writeWord((short)0x80ef, (short)1);
+        memory.writeWord((short)0x8110, (short)1);
+        memory.set((short)0x8000, new short[0xf0]);
+        Assert.assertTrue(recorder.writes.isEmpty());
+        Assert.assertFalse(region.takeWritten());
+
+        // inside, writes are coalesced in the mark
+        memory.writeWord((short)0x80f0, (short)1);
+        memory.writeWordRelease((short)0x810f, (short)2);
+        Assert.assertEquals(2, recorder.writes.size());
+        Assert.assertEquals((0x810f << 16) | 1, recorder.writes.get(1).intValue());
+        Assert.assertTrue(region.takeWritten());
+        Assert.assertFalse(region.takeWritten());
+
+        // range spanning the region pages is reported once
+        recorder.writes.clear();
+        memory.set((short)0x8000, new short[0x200]);
+        Assert.assertEquals(1, recorder.writes.size());
+        Assert.assertEquals((0x8000 << 16) | 0x200, recorder.writes.get(0).intValue());
+
+        // remapped region wraps around
+        recorder.writes.clear();
+        region.remap((short)0xfff0, 0x20);
+        Assert.assertTrue(region.takeWritten());
+        memory.writeWord((short)0x80f0, (short)1);
+        memory.writeWord((short)0x000f, (short)1);
+        memory.writeWord((short)0xfff0, (short)1);
+        memory.writeWord((short)0x0010, (short)1);
+        Assert.assertEquals(2, recorder.writes.size());
+
+        // regions on the same page are independent
+        Memory.Region other = memory.mapRegion((short)0xffe0, 0x10, null);
+        other.takeWritten();
+        region.takeWritten();
+        memory.writeWord((short)0xffe0, (short)1);
+        Assert.assertTrue(other.takeWritten());
+        Assert.assertFalse(region.takeWritten());
+
+        // unmapped and disconnected regions aren't notified
+        recorder.writes.clear();
+        region.unmap();
+        other.remap((short)0xffe0, 0);
+        other.takeWritten();
+        memory.set((short)0xff00, new short[0x100]);
+        memory.writeWord((short)0x0000, (short)1);
+        Assert.assertTrue(recorder.writes.isEmpty());
+        Assert.assertFalse(region.takeWritten());
+        Assert.assertFalse(other.takeWritten());
+    }
+
+    @Test
+    public void testMemoryImpl() {
+        testRegions(new MemoryImpl());
+    }
+
+    @Test
+    public void testOffHeapMemoryImpl() {
+        testRegions(new OffHeapMemoryImpl());
+    }
+
+    @Test
+    public void testDeviceRegion() throws MachineException {
+        final Machine machine = new MachineImpl();
+        final Recorder recorder = new Recorder();
+        final Memory.Region[] region = new Memory.Region[1];
+        machine.setProcessor(new ProcessorImpl());
+        machine.setMemory(new MemoryImpl());
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    if(state.readRegister(Processor.Register.A) == 0) {
+                        region[0] = memoryBus.mapRegion(state.readRegister(Processor.Register.B), 0x10, recorder);
+                    } else {
+                        machine.getProcessor().stop();
+                    }
+                }
+            }
+        });
+        machine.setProgram(program);
+        machine.start();
+
+        Assert.assertEquals(1, recorder.writes.size());
+        Assert.assertEquals((0x8001 << 16) | 1, recorder.writes.get(0).intValue());
+        Assert.assertTrue(region[0].takeWritten());
+    }
+}
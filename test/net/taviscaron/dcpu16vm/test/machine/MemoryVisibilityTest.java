@@ -0,0 +1,247 @@
+package net.taviscaron.dcpu16vm.test.machine;
+
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.machine.impl.TranslatingProcessorImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test memory written by one thread is visible to the other as Memory documents it
+ *
+ * ; dma program, sums the block on interrupt
+ * IAS handler
+ * :idle
+ * SET PC, idle
+ * :handler
+ * SET X, 0
+ * SET I, 0
+ * :sum
+ * ADD X, [0x2000+I]
+ * ADD I, 1
+ * IFN I, 256
+ * SET PC, sum
+ * HWI 0
+ * RFI 0
+ *
+ * ; fill program, fills the block with the round number
+ * :loop
+ * ADD J, 1
+ * SET I, 0
+ * :fill
+ * SET [0x2000+I], J
+ * ADD I, 1
+ * IFN I, 256
+ * SET PC, fill
+ * HWI 0
+ * SET PC, loop
+ *
+ * @author Andrei Senchuk
+ */
+public class MemoryVisibilityTest {
+    private static final long TIMEOUT = 10000;
+
+    private static final short BLOCK_ADDRESS = 0x2000;
+    private static final int BLOCK_SIZE = 256;
+    private static final short FLAG_ADDRESS = 0x3000;
+    private static final int ROUNDS = 1000;
+    private static final int MESSAGE_ROUNDS = 20000;
+
+    private static final short[] dmaProgram = new short[] {
+        (short)0x7d40, (short)0x0004, (short)0x7f81, (short)0x0002,
+        (short)0x8461, (short)0x84c1, (short)0x5862, (short)0x2000,
+        (short)0x88c2, (short)0x7cd3, (short)0x0100, (short)0x7f81,
+        (short)0x0006, (short)0x7e40, (short)0x0000, (short)0x7d60,
+        (short)0x0000
+    };
+
+    private static final short[] fillProgram = new short[] {
+        (short)0x88e2, (short)0x84c1, (short)0x1ec1, (short)0x2000,
+        (short)0x88c2, (short)0x7cd3, (short)0x0100, (short)0x7f81,
+        (short)0x0002, (short)0x7e40, (short)0x0000, (short)0x7f81,
+        (short)0x0000
+    };
+
+    private Thread start(final Machine machine, final AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    machine.start();
+                } catch(MachineException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /** Device thread writes the block with release writes and interrupts, the processor sums it */
+    private void testDeviceWritesAreVisibleAfterInterrupt(ProcessorImpl processor) throws Exception {
+        final Machine machine = new MachineImpl();
+        final SynchronousQueue<Short> sums = new SynchronousQueue<Short>();
+        processor.setFrequency(ProcessorImpl.UNTHROTTLED);
+        machine.setProcessor(processor);
+        machine.setMemory(new MemoryImpl());
+        machine.setProgram(dmaProgram);
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    try {
+                        sums.put(state.readRegister(Processor.Register.X));
+                    } catch(InterruptedException e) {
+                        machine.getProcessor().stop();
+                    }
+                }
+            }
+        });
+
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread thread = start(machine, failure);
+
+        // interrupts are ignored until the handler is set
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(!processor.isIdle()) {
+            Assert.assertTrue("processor isn't idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        Memory memory = machine.getMemory();
+        for(int round = 1; round <= ROUNDS; round++) {
+            for(int i = 0; i < BLOCK_SIZE; i++) {
+                memory.writeWordRelease((short)(BLOCK_ADDRESS + i), (short)round);
+            }
+            machine.getProcessor().interrupt((short)round);
+
+            Short sum = sums.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull("processor hasn't handled the interrupt", sum);
+            Assert.assertEquals("round " + round, (short)(round * BLOCK_SIZE), sum.shortValue());
+        }
+
+        machine.getProcessor().stop();
+        thread.join(TIMEOUT);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertNull(failure.get());
+    }
+
+    /** Processor fills the block and triggers the device which hands the check off to its thread */
+    private void testProcessorWritesAreVisibleAfterHandOff(ProcessorImpl processor) throws Exception {
+        final Machine machine = new MachineImpl();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        processor.setFrequency(ProcessorImpl.UNTHROTTLED);
+        machine.setProcessor(processor);
+        machine.setMemory(new MemoryImpl());
+        machine.setProgram(fillProgram);
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(final Processor.State state) {
+                    final short round = state.readRegister(Processor.Register.J);
+                    try {
+                        executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                for(int i = 0; i < BLOCK_SIZE; i++) {
+                                    short word = machine.getMemory().readWordAcquire((short)(BLOCK_ADDRESS + i));
+                                    Assert.assertEquals("round " + round + " word " + i, round, word);
+                                }
+                                return null;
+                            }
+                        }).get();
+                    } catch(InterruptedException e) {
+                        failure.compareAndSet(null, e);
+                    } catch(ExecutionException e) {
+                        failure.compareAndSet(null, e.getCause());
+                    }
+
+                    if(round == ROUNDS || failure.get() != null) {
+                        machine.getProcessor().stop();
+                    }
+                }
+            }
+        });
+
+        Thread thread = start(machine, failure);
+        thread.join(TIMEOUT);
+        executor.shutdown();
+
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertNull(failure.get());
+    }
+
+    @Test
+    public void testDeviceWritesAreVisibleAfterInterrupt() throws Exception {
+        testDeviceWritesAreVisibleAfterInterrupt(new ProcessorImpl());
+        testDeviceWritesAreVisibleAfterInterrupt(new TranslatingProcessorImpl());
+    }
+
+    @Test
+    public void testProcessorWritesAreVisibleAfterHandOff() throws Exception {
+        testProcessorWritesAreVisibleAfterHandOff(new ProcessorImpl());
+        testProcessorWritesAreVisibleAfterHandOff(new TranslatingProcessorImpl());
+    }
+
+    /** Words written before a release write are seen by the thread which acquire reads it */
+    @Test
+    public void testReleaseAcquireMessagePassing() throws InterruptedException {
+        final Memory memory = new MemoryImpl();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(int round = 1; round <= MESSAGE_ROUNDS; round++) {
+                        short flag = (short)round;
+                        while(memory.readWordAcquire(FLAG_ADDRESS) != flag) {
+                            Thread.yield();
+                        }
+
+                        for(int i = 0; i < 4; i++) {
+                            Assert.assertEquals("round " + round, flag, memory.readWordAcquire((short)(BLOCK_ADDRESS + i)));
+                        }
+                        memory.writeWordRelease((short)(FLAG_ADDRESS + 1), flag);
+                    }
+                } catch(Throwable th) {
+                    failure.compareAndSet(null, th);
+                }
+            }
+        });
+        reader.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT * 3;
+        for(int round = 1; round <= MESSAGE_ROUNDS && failure.get() == null; round++) {
+            short flag = (short)round;
+            for(int i = 0; i < 4; i++) {
+                memory.writeWordRelease((short)(BLOCK_ADDRESS + i), flag);
+            }
+            memory.writeWordRelease(FLAG_ADDRESS, flag);
+
+            // wait for the reader to check the round
+            while(memory.readWordAcquire((short)(FLAG_ADDRESS + 1)) != flag && failure.get() == null) {
+                Assert.assertTrue("reader is stuck", System.currentTimeMillis() < deadline);
+                Thread.yield();
+            }
+        }
+
+        reader.join(TIMEOUT);
+        Assert.assertNull(failure.get());
+    }
+}
@@ -0,0 +1,123 @@
+package net.taviscaron.dcpu16vm.test.machine;
+
+import net.taviscaron.dcpu16vm.config.XmlMachineBuilder;
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.OffHeapMemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+
+/**
+ * Test off-heap and file mapped memory
+ *
+ * ; program
+ * SET [0x1000], 0x1234
+ * ADD [0x1000], 1
+ * SET A, [0x1000]
+ * HWI 0
+ *
+ * @author Andrei Senchuk
+ */
+public class OffHeapMemoryTest {
+    private static final short[] program = new short[] {
+        (short)0x7fc1, (short)0x1234, (short)0x1000, (short)0x8bc2,
+        (short)0x1000, (short)0x7801, (short)0x1000, (short)0x7e40,
+        (short)0x0000
+    };
+
+    @Test
+    public void testProgram() throws MachineException {
+        final Machine machine = new MachineImpl();
+        final short[] result = new short[1];
+        machine.setProcessor(new ProcessorImpl());
+        machine.setMemory(new OffHeapMemoryImpl());
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    result[0] = state.readRegister(Processor.Register.A);
+                    machine.getProcessor().stop();
+                }
+            }
+        });
+        machine.setProgram(program);
+        machine.start();
+
+        Assert.assertEquals(0x1235, result[0]);
+        Assert.assertEquals(0x1235, machine.getMemory().readWordAcquire((short)0x1000));
+    }
+
+    @Test
+    public void testWords() {
+        OffHeapMemoryImpl memory = new OffHeapMemoryImpl();
+        memory.writeWord((short)0xffff, (short)0xbeef);
+        memory.writeWordRelease((short)0x0000, (short)0x8001);
+        Assert.assertEquals((short)0xbeef, memory.readWord((short)0xffff));
+        Assert.assertEquals((short)0xbeef, memory.readWordAcquire((short)0xffff));
+        Assert.assertEquals((short)0x8001, memory.readWord((short)0x0000));
+
+        // set doesn't wrap around
+        memory.set((short)0xfffe, new short[] { 1, 2, 3 });
+        Assert.assertEquals(1, memory.readWord((short)0xfffe));
+        Assert.assertEquals(2, memory.readWord((short)0xffff));
+        Assert.assertEquals((short)0x8001, memory.readWord((short)0x0000));
+    }
+
+    @Test
+    public void testFilePersists() throws Exception {
+        File file = File.createTempFile("dcpu16-ram", ".bin");
+        file.deleteOnExit();
+
+        OffHeapMemoryImpl memory = new OffHeapMemoryImpl();
+        memory.setFile(file.getPath());
+        Assert.assertEquals(0x20000, file.length());
+
+        memory.writeWord((short)0x1234, (short)0xabcd);
+        memory.flush();
+
+        // words are big-endian in the file
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.seek(0x1234 * 2);
+            Assert.assertEquals(0xab, randomAccessFile.read());
+            Assert.assertEquals(0xcd, randomAccessFile.read());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        OffHeapMemoryImpl reopened = new OffHeapMemoryImpl();
+        reopened.setFile(file.getPath());
+        Assert.assertEquals((short)0xabcd, reopened.readWord((short)0x1234));
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        File ram = File.createTempFile("dcpu16-ram", ".bin");
+        ram.deleteOnExit();
+        File config = File.createTempFile("dcpu16-machine", ".xml");
+        config.deleteOnExit();
+
+        FileWriter writer = new FileWriter(config);
+        try {
+            writer.write("<machine type=\"net.taviscaron.dcpu16vm.machine.impl.MachineImpl\">\n"
+                    + "    <processor type=\"net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl\"/>\n"
+                    + "    <memory type=\"net.taviscaron.dcpu16vm.machine.impl.OffHeapMemoryImpl\" file=\"" + ram.getPath() + "\"/>\n"
+                    + "    <hardware/>\n"
+                    + "</machine>\n");
+        } finally {
+            writer.close();
+        }
+
+        Machine machine = new XmlMachineBuilder(config.getPath()).createMachine();
+        Assert.assertTrue(machine.getMemory() instanceof OffHeapMemoryImpl);
+        Assert.assertEquals(ram.getPath(), ((OffHeapMemoryImpl)machine.getMemory()).getFile());
+    }
+}
@@ -0,0 +1,60 @@
+package net.taviscaron.dcpu16vm.test.machine;
+
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.util.VirtualThreads;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test machine running its processor on a virtual thread
+ *
+ * ; program
+ * HWI 0
+ *
+ * @author Andrei Senchuk
+ */
+public class VirtualThreadTest {
+    private static final short[] program = new short[] {
+        (short)0x7e40, (short)0x0000
+    };
+
+    @Test
+    public void testVirtualThread() throws MachineException {
+        final MachineImpl machine = new MachineImpl();
+        if(!VirtualThreads.isSupported()) {
+            try {
+                machine.setVirtualThread(true);
+                Assert.fail("virtual threads aren't supported on Java " + System.getProperty("java.version"));
+            } catch(UnsupportedOperationException e) {
+                Assert.assertFalse(machine.isVirtualThread());
+            }
+            return;
+        }
+
+        final AtomicReference<Thread> processorThread = new AtomicReference<Thread>();
+        machine.setVirtualThread(true);
+        machine.setProcessor(new ProcessorImpl());
+        machine.setMemory(new MemoryImpl());
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    processorThread.set(Thread.currentThread());
+                    machine.getProcessor().stop();
+                }
+            }
+        });
+        machine.setProgram(program);
+        machine.start();
+
+        Assert.assertTrue(VirtualThreads.isVirtual(processorThread.get()));
+        Assert.assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+    }
+}
@@ -0,0 +1,89 @@
+package net.taviscaron.dcpu16vm.test.processor;
+
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.test.DefaultMachineTest;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Test instruction execution doesn't allocate heap memory
+ *
+ * SET SP, 0x3000
+ * SET I, 0x1000
+ * :loop
+ * ADD A, 1
+ * SET [0x2000], A
+ * SET [I+4], A
+ * SET PUSH, A
+ * SET PEEK, A
+ * SET C, [SP+0]
+ * SET B, POP
+ * MUL B, 3
+ * XOR B, [0x2000]
+ * JSR sub
+ * IFE A, 0
+ * SET EX, 1
+ * SET PC, loop
+ * :sub
+ * SET X, [I]
+ * SET PC, POP
+ *
+ * @author Andrei Senchuk
+ */
+public class AllocationTest extends DefaultMachineTest {
+    private static final int WARM_UP_INSTRUCTIONS = 100000;
+    private static final int MEASURED_INSTRUCTIONS = 1000000;
+    private static final long ALLOWED_BYTES = 16 * 1024;
+
+    private static final short[] program = new short[] {
+        (short)0x7f61, (short)0x3000, (short)0x7cc1, (short)0x1000,
+        (short)0x8802, (short)0x03c1, (short)0x2000, (short)0x02c1,
+        (short)0x0004, (short)0x0301, (short)0x0321, (short)0x6841,
+        (short)0x0000, (short)0x6021, (short)0x9024, (short)0x782c,
+        (short)0x2000, (short)0x7c20, (short)0x0017, (short)0x8412,
+        (short)0x8ba1, (short)0x7f81, (short)0x0004, (short)0x3861,
+        (short)0x6381
+    };
+
+    @Test
+    public void testExecutionDoesNotAllocate() throws MachineException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+
+        final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        final long threadId = Thread.currentThread().getId();
+        final long[] allocated = new long[2];
+
+        ((ProcessorImpl)machine.getProcessor()).setFrequency(ProcessorImpl.UNTHROTTLED);
+        machine.getProcessor().attachDebugger(new Processor.Debugger() {
+            private int count = 0;
+
+            @Override
+            public void dumpState(Processor processor, Processor.State state, Memory memory) {
+                count++;
+                if(count == WARM_UP_INSTRUCTIONS) {
+                    allocated[0] = allocationBean.getThreadAllocatedBytes(threadId);
+                } else if(count == WARM_UP_INSTRUCTIONS + MEASURED_INSTRUCTIONS) {
+                    allocated[1] = allocationBean.getThreadAllocatedBytes(threadId);
+                    processor.stop();
+                }
+            }
+        });
+
+        machine.setProgram(program);
+        machine.start();
+
+        long bytes = allocated[1] - allocated[0];
+        Assert.assertTrue("Executing " + MEASURED_INSTRUCTIONS + " instructions allocated " + bytes + " bytes", bytes < ALLOWED_BYTES);
+    }
+}
@@ -0,0 +1,209 @@
+package net.taviscaron.dcpu16vm.test.processor;
+
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.machine.impl.TranslatingProcessorImpl;
+import net.taviscaron.dcpu16vm.test.DefaultMachineTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test instructions cycles and frequency throttling
+ *
+ * ; cycles program
+ * SET A, 1             ; 1
+ * SET B, 0x1234        ; 2
+ * ADD A, B             ; 2
+ * MUL A, 2             ; 2
+ * DIV A, 3             ; 3
+ * IFE A, 0             ; 2 + 1 failed
+ * SET B, [0x1000]      ; 1 skipped
+ * IFN A, 0             ; 2
+ * SET [0x1000], A      ; 2
+ * IFG A, 0xffff        ; 2 + 1 failed
+ * IFE A, A             ; 1 skipped
+ * ADD A, 1             ; 1 skipped
+ * JSR sub              ; 4
+ * HWI 0                ; 5
+ * :sub
+ * SET PC, POP          ; 1
+ *
+ * ; throttling program, 35005 cycles
+ * :loop
+ * ADD I, 1             ; 2
+ * IFN I, 5000          ; 3
+ * SET PC, loop         ; 2
+ * HWI 0                ; 5
+ * :end
+ * SET PC, end
+ *
+ * @author Andrei Senchuk
+ */
+public class CycleCountTest extends DefaultMachineTest {
+    private static final short[] cyclesProgram = new short[] {
+        (short)0x8801, (short)0x7c21, (short)0x1234, (short)0x0402,
+        (short)0x8c04, (short)0x9006, (short)0x8412, (short)0x7821,
+        (short)0x1000, (short)0x8413, (short)0x03c1, (short)0x1000,
+        (short)0x8014, (short)0x0012, (short)0x8802, (short)0x7c20,
+        (short)0x0013, (short)0x7e40, (short)0x0000, (short)0x6381
+    };
+
+    private static final long[] expectedCycles = new long[] {
+        1, 2, 2, 2, 3, 3, 1, 2, 2, 3, 1, 1, 4, 1, 5
+    };
+
+    private static final short[] throttlingProgram = new short[] {
+        (short)0x88c2, (short)0x7cd3, (short)0x1388, (short)0x7f81,
+        (short)0x0000, (short)0x7e40, (short)0x0000, (short)0x7f81,
+        (short)0x0007
+    };
+
+    private static final long THROTTLING_PROGRAM_CYCLES = 35005;
+
+    @Test
+    public void testInstructionsCycles() throws MachineException {
+        final List<Long> cycles = new ArrayList<Long>();
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    machine.getProcessor().stop();
+                }
+            }
+        });
+
+        machine.getProcessor().attachDebugger(new Processor.Debugger() {
+            private long previous;
+
+            @Override
+            public void dumpState(Processor processor, Processor.State state, Memory memory) {
+                cycles.add(state.cycles - previous);
+                previous = state.cycles;
+            }
+        });
+
+        machine.setProgram(cyclesProgram);
+        machine.start();
+
+        long[] actual = new long[cycles.size()];
+        for(int i = 0; i < actual.length; i++) {
+            actual[i] = cycles.get(i);
+        }
+        Assert.assertArrayEquals(expectedCycles, actual);
+    }
+
+    /** Run throttling program and return its duration in ms */
+    private long runThrottlingProgram(ProcessorImpl processor, int frequency) throws MachineException {
+        final Machine throttledMachine = new MachineImpl();
+        final long[] cycles = new long[1];
+        processor.setFrequency(frequency);
+        throttledMachine.setProcessor(processor);
+        throttledMachine.setMemory(new MemoryImpl());
+        throttledMachine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    cycles[0] = state.cycles;
+                    throttledMachine.getProcessor().stop();
+                }
+            }
+        });
+        throttledMachine.setProgram(throttlingProgram);
+
+        long start = System.nanoTime();
+        throttledMachine.start();
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertEquals(THROTTLING_PROGRAM_CYCLES, cycles[0]);
+        return duration;
+    }
+
+    @Test
+    public void testThrottling() throws MachineException {
+        // 35005 cycles take 350 ms at 100 kHz
+        long duration = runThrottlingProgram(new ProcessorImpl(), ProcessorImpl.DEFAULT_FREQUENCY);
+        Assert.assertTrue("program took " + duration + " ms", duration >= 300);
+
+        duration = runThrottlingProgram(new TranslatingProcessorImpl(), ProcessorImpl.DEFAULT_FREQUENCY);
+        Assert.assertTrue("program took " + duration + " ms", duration >= 300);
+    }
+
+    @Test
+    public void testBusCycles() throws MachineException, InterruptedException {
+        final long[] hwiCycles = new long[2];
+        final AtomicReference<Machine.InterruptionBus> bus = new AtomicReference<Machine.InterruptionBus>();
+        Device device = new Device() {
+            @Override
+            public void setInterruptionBus(Machine.InterruptionBus interruptionBus) {
+                super.setInterruptionBus(interruptionBus);
+                bus.set(interruptionBus);
+            }
+
+            @Override
+            public void interrupt(Processor.State state) {
+                hwiCycles[0] = state.cycles;
+                hwiCycles[1] = interruptionBus.cycles();
+                machine.getProcessor().stop();
+            }
+        };
+        machine.setDevices(new Device[] { device });
+        machine.setProgram(throttlingProgram);
+
+        // another thread watches the cycles of the throttled processor grow
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Long> samples = new ArrayList<Long>();
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(!done.get()) {
+                    if(bus.get() != null) {
+                        samples.add(bus.get().cycles());
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        watcher.start();
+        machine.start();
+        done.set(true);
+        watcher.join();
+
+        Assert.assertEquals(THROTTLING_PROGRAM_CYCLES, hwiCycles[0]);
+        Assert.assertEquals(hwiCycles[0], hwiCycles[1]);
+        Assert.assertEquals(THROTTLING_PROGRAM_CYCLES, machine.getProcessor().getCycles());
+
+        long previous = 0;
+        boolean running = false;
+        for(long sample : samples) {
+            Assert.assertTrue("cycles went back from " + previous + " to " + sample, sample >= previous);
+            running |= sample > 0 && sample < THROTTLING_PROGRAM_CYCLES;
+            previous = sample;
+        }
+        Assert.assertTrue("cycles weren't seen growing: " + samples, running);
+    }
+
+    @Test
+    public void testUnthrottled() throws MachineException {
+        // warm up
+        runThrottlingProgram(new ProcessorImpl(), ProcessorImpl.UNTHROTTLED);
+
+        long duration = runThrottlingProgram(new ProcessorImpl(), ProcessorImpl.UNTHROTTLED);
+        Assert.assertTrue("program took " + duration + " ms", duration < 300);
+    }
+}
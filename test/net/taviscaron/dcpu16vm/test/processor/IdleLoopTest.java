@@ -0,0 +1,201 @@
+package net.taviscaron.dcpu16vm.test.processor;
+
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.machine.impl.TranslatingProcessorImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test idle loops park the processor and it resumes with the same state
+ *
+ * ; interrupt program
+ * IAS handler
+ * :loop
+ * IFN B, 0
+ * HWI 0
+ * SET PC, loop
+ * :handler
+ * SET B, A
+ * RFI 0
+ *
+ * ; device state program
+ * :loop
+ * SET A, 1
+ * HWI 0        ; C = device value
+ * IFE C, 0
+ * SET PC, loop
+ * HWI 1
+ * :end
+ * SET PC, end
+ *
+ * ; busy program
+ * :loop
+ * ADD [0x1000], 1
+ * SET PC, loop
+ *
+ * @author Andrei Senchuk
+ */
+public class IdleLoopTest {
+    private static final long TIMEOUT = 10000;
+
+    private static final short[] interruptProgram = new short[] {
+        (short)0x7d40, (short)0x0007, (short)0x8433, (short)0x7e40,
+        (short)0x0000, (short)0x7f81, (short)0x0002, (short)0x0021,
+        (short)0x7d60, (short)0x0000
+    };
+
+    private static final short[] deviceStateProgram = new short[] {
+        (short)0x8801, (short)0x7e40, (short)0x0000, (short)0x8452,
+        (short)0x7f81, (short)0x0000, (short)0x7e40, (short)0x0001,
+        (short)0x7f81, (short)0x0008
+    };
+
+    private static final short[] busyProgram = new short[] {
+        (short)0x8bc2, (short)0x1000, (short)0x7f81, (short)0x0000
+    };
+
+    /** Device stopping the processor and keeping its state */
+    private static class StopDevice extends Device {
+        private final AtomicReference<short[]> registers = new AtomicReference<short[]>();
+        private final Machine machine;
+
+        public StopDevice(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public void interrupt(Processor.State state) {
+            registers.set(state.registers.clone());
+            machine.getProcessor().stop();
+        }
+    }
+
+    private Machine createMachine(ProcessorImpl processor, short[] program) {
+        Machine machine = new MachineImpl();
+        machine.setProcessor(processor);
+        machine.setMemory(new MemoryImpl());
+        machine.setProgram(program);
+        return machine;
+    }
+
+    private Thread start(final Machine machine, final AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    machine.start();
+                } catch(MachineException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void waitIdle(ProcessorImpl processor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(!processor.isIdle()) {
+            Assert.assertTrue("processor isn't idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void testInterruptWakesProcessor(ProcessorImpl processor) throws InterruptedException {
+        Machine machine = createMachine(processor, interruptProgram);
+        StopDevice device = new StopDevice(machine);
+        machine.setDevices(new Device[] { device });
+
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread thread = start(machine, failure);
+        waitIdle(processor);
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if(threadMXBean.isThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()) {
+            long before = threadMXBean.getThreadCpuTime(thread.getId());
+            Thread.sleep(200);
+            long spent = threadMXBean.getThreadCpuTime(thread.getId()) - before;
+            Assert.assertTrue("idle processor spent " + spent + " ns", spent < 50000000L);
+        }
+
+        processor.interrupt((short)0x1234);
+        thread.join(TIMEOUT);
+
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(0x1234, device.registers.get()[Processor.Register.B.ordinal()]);
+        Assert.assertEquals(0, device.registers.get()[Processor.Register.A.ordinal()]);
+    }
+
+    private void testDeviceStateWakesProcessor(ProcessorImpl processor) throws InterruptedException {
+        Machine machine = createMachine(processor, deviceStateProgram);
+        final AtomicInteger value = new AtomicInteger();
+        final Device valueDevice = new Device() {
+            @Override
+            public void interrupt(Processor.State state) {
+                state.writeRegister(Processor.Register.C, (short)value.get());
+            }
+        };
+        StopDevice stopDevice = new StopDevice(machine);
+        machine.setDevices(new Device[] { valueDevice, stopDevice });
+
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread thread = start(machine, failure);
+        waitIdle(processor);
+
+        value.set(0x42);
+        processor.wakeup();
+        thread.join(TIMEOUT);
+
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(0x42, stopDevice.registers.get()[Processor.Register.C.ordinal()]);
+    }
+
+    private void testBusyLoopIsNotIdle(ProcessorImpl processor) throws InterruptedException {
+        Machine machine = createMachine(processor, busyProgram);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread thread = start(machine, failure);
+
+        for(int i = 0; i < 20; i++) {
+            Thread.sleep(5);
+            Assert.assertFalse(processor.isIdle());
+        }
+
+        processor.stop();
+        thread.join(TIMEOUT);
+
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertNull(failure.get());
+        Assert.assertNotEquals(0, machine.getMemory().readWord((short)0x1000));
+    }
+
+    @Test
+    public void testInterruptWakesProcessor() throws InterruptedException {
+        testInterruptWakesProcessor(new ProcessorImpl());
+        testInterruptWakesProcessor(new TranslatingProcessorImpl());
+    }
+
+    @Test
+    public void testDeviceStateWakesProcessor() throws InterruptedException {
+        testDeviceStateWakesProcessor(new ProcessorImpl());
+        testDeviceStateWakesProcessor(new TranslatingProcessorImpl());
+    }
+
+    @Test
+    public void testBusyLoopIsNotIdle() throws InterruptedException {
+        testBusyLoopIsNotIdle(new ProcessorImpl());
+        testBusyLoopIsNotIdle(new TranslatingProcessorImpl());
+    }
+}
@@ -0,0 +1,196 @@
+package net.taviscaron.dcpu16vm.test.processor;
+
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.InterruptQueue;
+import net.taviscaron.dcpu16vm.test.DefaultMachineTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test interrupts queue ordering and overflow
+ *
+ * ; overflow program
+ * IAS handler
+ * IAQ 1
+ * HWI 0
+ * :end
+ * SET PC, end
+ * :handler
+ * RFI 0
+ *
+ * @author Andrei Senchuk
+ */
+public class InterruptQueueTest extends DefaultMachineTest {
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES_PER_PRODUCER = 100000;
+    private static final int SEQUENCE_BITS = 14;
+    private static final int SEQUENCE_MASK = (1 << SEQUENCE_BITS) - 1;
+
+    private static final short[] overflowProgram = new short[] {
+        (short)0x7d40, (short)0x0008, (short)0x7d80, (short)0x0001,
+        (short)0x7e40, (short)0x0000, (short)0x7f81, (short)0x0006,
+        (short)0x7d60, (short)0x0000
+    };
+
+    @Test
+    public void testProducersOrdering() throws InterruptedException {
+        final InterruptQueue queue = new InterruptQueue(Processor.MAX_QUEUED_INT);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread[] producers = new Thread[PRODUCERS];
+        for(int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for(int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                            // every producer offers one message after the check, so the queue never overflows
+                            while(queue.size() >= queue.capacity() - PRODUCERS) {
+                                Thread.yield();
+                            }
+
+                            if(!queue.offer((short)((producer << SEQUENCE_BITS) | (i & SEQUENCE_MASK)))) {
+                                throw new AssertionError("queue overflowed");
+                            }
+                        }
+                    } catch(Throwable th) {
+                        failure.compareAndSet(null, th);
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        startLatch.countDown();
+
+        int[] expected = new int[PRODUCERS];
+        int received = 0;
+        long deadline = System.currentTimeMillis() + 60000;
+        while(received < PRODUCERS * MESSAGES_PER_PRODUCER && failure.get() == null) {
+            Assert.assertTrue("messages are lost", System.currentTimeMillis() < deadline);
+
+            int code = queue.poll();
+            if(code < 0) {
+                Thread.yield();
+                continue;
+            }
+
+            int producer = code >> SEQUENCE_BITS;
+            Assert.assertEquals("message of producer " + producer + " is out of order", expected[producer] & SEQUENCE_MASK, code & SEQUENCE_MASK);
+            expected[producer]++;
+            received++;
+        }
+
+        for(Thread producer : producers) {
+            producer.join();
+        }
+
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(-1, queue.poll());
+        Assert.assertFalse(queue.isPending());
+        Assert.assertFalse(queue.isOverflowed());
+    }
+
+    @Test
+    public void testOverflow() {
+        InterruptQueue queue = new InterruptQueue(Processor.MAX_QUEUED_INT);
+        for(int i = 0; i < Processor.MAX_QUEUED_INT; i++) {
+            Assert.assertTrue(queue.offer((short)i));
+        }
+        Assert.assertFalse(queue.isOverflowed());
+
+        Assert.assertFalse(queue.offer((short)0xffff));
+        Assert.assertTrue(queue.isOverflowed());
+        Assert.assertTrue(queue.isPending());
+    }
+
+    @Test
+    public void testClear() {
+        InterruptQueue queue = new InterruptQueue(Processor.MAX_QUEUED_INT);
+        for(int i = 0; i <= Processor.MAX_QUEUED_INT; i++) {
+            queue.offer((short)i);
+        }
+        Assert.assertTrue(queue.isOverflowed());
+
+        queue.clear();
+        Assert.assertFalse(queue.isOverflowed());
+        Assert.assertFalse(queue.isPending());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(-1, queue.poll());
+
+        // the queue keeps working after the clear
+        for(int i = 0; i < Processor.MAX_QUEUED_INT; i++) {
+            Assert.assertTrue(queue.offer((short)(0x8000 + i)));
+        }
+        for(int i = 0; i < Processor.MAX_QUEUED_INT; i++) {
+            Assert.assertEquals(0x8000 + i, queue.poll());
+        }
+        Assert.assertEquals(-1, queue.poll());
+        Assert.assertFalse(queue.isPending());
+    }
+
+    @Test
+    public void testProcessorCatchesFire() {
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    for(int i = 0; i <= Processor.MAX_QUEUED_INT; i++) {
+                        interruptionBus.interrupt((short)i);
+                    }
+                }
+            }
+        });
+
+        machine.setProgram(overflowProgram);
+        try {
+            machine.start();
+            Assert.fail("DCPU-16 should catch fire");
+        } catch(MachineException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("catched fire"));
+        }
+    }
+
+    @Test
+    public void testResetAfterFire() throws MachineException {
+        final boolean[] restarted = new boolean[1];
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    for(int i = 0; i <= Processor.MAX_QUEUED_INT; i++) {
+                        interruptionBus.interrupt((short)i);
+                    }
+                }
+            },
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    restarted[0] = true;
+                    machine.getProcessor().stop();
+                }
+            }
+        });
+
+        machine.setProgram(overflowProgram);
+        try {
+            machine.start();
+            Assert.fail("DCPU-16 should catch fire");
+        } catch(MachineException e) {
+            // the queue is overflowed
+        }
+
+        // HWI 1, the overflow doesn't survive the reset
+        machine.setProgram(new short[] { (short)0x7e40, (short)0x0001 });
+        machine.start();
+        Assert.assertTrue(restarted[0]);
+    }
+}
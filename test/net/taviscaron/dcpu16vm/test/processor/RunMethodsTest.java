@@ -0,0 +1,177 @@
+package net.taviscaron.dcpu16vm.test.processor;
+
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.machine.impl.TranslatingProcessorImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test processor run methods
+ *
+ * ; arithmetic program
+ * SET A, 1
+ * SET B, 0x1234
+ * ADD A, B
+ * MUL A, 2
+ * DIV A, 3
+ *
+ * ; loop program, 7 cycles per iteration
+ * :loop
+ * ADD I, 1
+ * IFN I, 5000
+ * SET PC, loop
+ * HWI 0
+ * :end
+ * SET PC, end
+ *
+ * ; idle program
+ * SUB A, 1
+ * :end
+ * SET PC, end
+ *
+ * @author Andrei Senchuk
+ */
+public class RunMethodsTest {
+    private static final short[] arithmeticProgram = new short[] {
+        (short)0x8801, (short)0x7c21, (short)0x1234, (short)0x0402,
+        (short)0x8c04, (short)0x9006
+    };
+
+    private static final short[] loopProgram = new short[] {
+        (short)0x88c2, (short)0x7cd3, (short)0x1388, (short)0x7f81,
+        (short)0x0000, (short)0x7e40, (short)0x0000, (short)0x7f81,
+        (short)0x0007
+    };
+
+    private static final short[] idleProgram = new short[] {
+        (short)0x8803, (short)0x7f81, (short)0x0001
+    };
+
+    /** Longest loop iteration, that's how much runCycles might exceed */
+    private static final int LOOP_CYCLES = 7;
+
+    private Machine prepare(Processor processor, short[] program) {
+        final Machine machine = new MachineImpl();
+        machine.setProcessor(processor);
+        machine.setMemory(new MemoryImpl());
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    machine.getProcessor().stop();
+                }
+            }
+        });
+        machine.setProgram(program);
+        machine.prepare();
+        return machine;
+    }
+
+    private short register(Processor processor, final Processor.Register register) {
+        final short[] value = new short[1];
+        processor.runUntil(new Processor.Condition() {
+            @Override
+            public boolean holds(Processor.State state) {
+                value[0] = state.readRegister(register);
+                return true;
+            }
+        }, 0);
+        return value[0];
+    }
+
+    @Test
+    public void testRunInstructions() {
+        Processor processor = prepare(new ProcessorImpl(), arithmeticProgram).getProcessor();
+
+        final int[] dumps = new int[1];
+        processor.attachDebugger(new Processor.Debugger() {
+            @Override
+            public void dumpState(Processor processor, Processor.State state, Memory memory) {
+                dumps[0]++;
+            }
+        });
+
+        Assert.assertEquals(3, processor.runInstructions(3));
+        Assert.assertEquals(3, dumps[0]);
+        Assert.assertEquals(0x1235, register(processor, Processor.Register.A));
+
+        processor.detachDebugger();
+        Assert.assertEquals(2, processor.runInstructions(2));
+        Assert.assertEquals(3, dumps[0]);
+        Assert.assertEquals(0x0c23, register(processor, Processor.Register.A));
+    }
+
+    private void testRunCycles(Processor processor) {
+        prepare(processor, loopProgram);
+
+        long total = 0;
+        for(int i = 0; i < 10; i++) {
+            long cycles = processor.runCycles(1000);
+            Assert.assertTrue(cycles >= 1000 && cycles < 1000 + LOOP_CYCLES);
+            total += cycles;
+        }
+
+        // the last iteration might be incomplete
+        short i = register(processor, Processor.Register.I);
+        Assert.assertTrue(i == total / LOOP_CYCLES || i == total / LOOP_CYCLES + 1);
+
+        // HWI 0 stops the run
+        long cycles = processor.runCycles(1000000);
+        Assert.assertTrue(cycles < 1000000);
+        Assert.assertEquals(5000, register(processor, Processor.Register.I));
+
+        // stopped processor doesn't run until reset
+        Assert.assertFalse(processor.isRunning());
+        Assert.assertEquals(0, processor.runCycles(1000));
+    }
+
+    @Test
+    public void testRunCycles() {
+        testRunCycles(new ProcessorImpl());
+        testRunCycles(new TranslatingProcessorImpl());
+    }
+
+    @Test
+    public void testRunUntil() {
+        Processor processor = prepare(new TranslatingProcessorImpl(), loopProgram).getProcessor();
+
+        Processor.Condition condition = new Processor.Condition() {
+            @Override
+            public boolean holds(Processor.State state) {
+                return state.readRegister(Processor.Register.I) == 100;
+            }
+        };
+
+        Assert.assertFalse(processor.runUntil(condition, 10 * LOOP_CYCLES));
+        Assert.assertTrue(processor.runUntil(condition, 1000000));
+        Assert.assertEquals(100, register(processor, Processor.Register.I));
+    }
+
+    private void testIdleLoopReturns(Processor processor) {
+        prepare(processor, idleProgram);
+        Assert.assertEquals(1, processor.runInstructions(1));
+
+        Assert.assertFalse(processor.isIdle());
+        Assert.assertTrue(processor.runCycles(1000000) < 1000000);
+        Assert.assertTrue(processor.isIdle());
+
+        processor.interrupt((short)0x42);
+        Assert.assertFalse(processor.isIdle());
+
+        // the interrupt is ignored with IA = 0, so the processor gets idle again
+        Assert.assertTrue(processor.runCycles(1000000) < 1000000);
+        Assert.assertTrue(processor.isIdle());
+    }
+
+    @Test
+    public void testIdleLoopReturns() {
+        testIdleLoopReturns(new ProcessorImpl());
+        testIdleLoopReturns(new TranslatingProcessorImpl());
+    }
+}
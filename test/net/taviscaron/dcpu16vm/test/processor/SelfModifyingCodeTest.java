@@ -0,0 +1,57 @@
+package net.taviscaron.dcpu16vm.test.processor;
+
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Memory;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.test.DefaultMachineTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test instructions rewritten after they were executed
+ *
+ * SET I, 0
+ * :loop
+ * ADD I, 1
+ * :patch
+ * SET A, 1
+ * :patch2
+ * SET B, 0x1234
+ * IFE I, 3
+ * SET [patch], 0x9801     ; SET A, 5
+ * IFE I, 3
+ * SET [patch2+1], 0x4321  ; SET B, 0x4321
+ * IFN I, 5
+ * SET PC, loop
+ * :end
+ * SET PC, end
+ *
+ * @author Andrei Senchuk
+ */
+public class SelfModifyingCodeTest extends DefaultMachineTest {
+    private static final short[] program = new short[] {
+        (short)0x84c1, (short)0x88c2, (short)0x8801, (short)0x7c21,
+        (short)0x1234, (short)0x90d2, (short)0x7fc1, (short)0x9801,
+        (short)0x0002, (short)0x90d2, (short)0x7fc1, (short)0x4321,
+        (short)0x0004, (short)0x98d3, (short)0x7f81, (short)0x0001,
+        (short)0x7f81, (short)0x0010
+    };
+
+    @Test
+    public void testSelfModifyingCode() throws MachineException {
+        machine.getProcessor().attachDebugger(new Processor.Debugger() {
+            @Override
+            public void dumpState(Processor processor, Processor.State state, Memory memory) {
+                if(state.pc == 0x0010) {
+                    Assert.assertEquals(5, state.readRegister(Processor.Register.I));
+                    Assert.assertEquals(5, state.readRegister(Processor.Register.A));
+                    Assert.assertEquals(0x4321, state.readRegister(Processor.Register.B));
+                    processor.stop();
+                }
+            }
+        });
+
+        machine.setProgram(program);
+        machine.start();
+    }
+}
@@ -0,0 +1,251 @@
+package net.taviscaron.dcpu16vm.test.processor;
+
+import net.taviscaron.dcpu16vm.machine.Machine;
+import net.taviscaron.dcpu16vm.machine.MachineException;
+import net.taviscaron.dcpu16vm.machine.Processor;
+import net.taviscaron.dcpu16vm.machine.device.Device;
+import net.taviscaron.dcpu16vm.machine.impl.MachineImpl;
+import net.taviscaron.dcpu16vm.machine.impl.MemoryImpl;
+import net.taviscaron.dcpu16vm.machine.impl.ProcessorImpl;
+import net.taviscaron.dcpu16vm.machine.impl.TranslatingProcessorImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test translating processor gets the same results as the interpreter
+ *
+ * IAS handler
+ * SET I, 0
+ * SET J, 0
+ * :loop
+ * ADD I, 1
+ * MUL J, 3
+ * ADD J, I
+ * XOR [I+0x1000], J
+ * IFG I, 10
+ * IFL I, 20
+ * ADD X, 1
+ * IFE I, 15
+ * INT 0x42
+ * JSR sub
+ * :patch
+ * SET A, 1
+ * IFE I, 25
+ * SET [patch], 0x9801  ; SET A, 5
+ * IFN I, 40
+ * SET PC, loop
+ * HWI 0
+ * :end
+ * SET PC, end
+ * :sub
+ * SHL Y, 1
+ * BOR Y, I
+ * SET PUSH, Y
+ * ADD Z, POP
+ * SET PC, POP
+ * :handler
+ * SET B, A
+ * ADD C, 1
+ * RFI 0
+ *
+ * @author Andrei Senchuk
+ */
+public class TranslatingProcessorTest {
+    private static final short[] program = new short[] {
+        (short)0x7d40, (short)0x0023, (short)0x84c1, (short)0x84e1,
+        (short)0x88c2, (short)0x90e4, (short)0x18e2, (short)0x1ecc,
+        (short)0x1000, (short)0xacd4, (short)0xd4d6, (short)0x8862,
+        (short)0xc0d2, (short)0x7d00, (short)0x0042, (short)0x7c20,
+        (short)0x001e, (short)0x8801, (short)0xe8d2, (short)0x7fc1,
+        (short)0x9801, (short)0x0011, (short)0x7cd3, (short)0x0028,
+        (short)0x7f81, (short)0x0004, (short)0x7e40, (short)0x0000,
+        (short)0x7f81, (short)0x001c, (short)0x888f, (short)0x188b,
+        (short)0x1301, (short)0x60a2, (short)0x6381, (short)0x0021,
+        (short)0x8842, (short)0x7d60, (short)0x0000
+    };
+
+    /**
+     * Block rewriting itself on every iteration, so it's retranslated every time
+     *
+     * SET I, 0
+     * :loop
+     * ADD I, 1
+     * :patch
+     * SET A, 1
+     * SET [patch], 0x8801  ; SET A, 1
+     * IFN I, 0x1000
+     * SET PC, loop
+     * HWI 0
+     * :end
+     * SET PC, end
+     */
+    private static final short[] retranslatedProgram = new short[] {
+        (short)0x84c1, (short)0x88c2, (short)0x8801, (short)0x7fc1,
+        (short)0x8801, (short)0x0002, (short)0x7cd3, (short)0x1000,
+        (short)0x7f81, (short)0x0001, (short)0x7e40, (short)0x0000,
+        (short)0x7f81, (short)0x000c
+    };
+
+    /** Final state captured by HWI 0 */
+    private static class Snapshot {
+        private short[] registers;
+        private short pc;
+        private short sp;
+        private short ex;
+        private short ia;
+        private long cycles;
+        private short[] memory = new short[0x100];
+    }
+
+    /**
+     * Random register instructions the translator inlines, looped 50 times. Every iteration
+     * stores EX and registers to [J+0x1000] and [J+0x1040]:
+     * SET/ADD/SUB/AND/BOR/XOR/IFB/IFC/IFE/IFN/IFG/IFL of A..I with registers, literals and EX
+     */
+    private static short[] inlinedProgram(long seed) {
+        int[] opcodes = new int[] { 0x01, 0x02, 0x03, 0x0a, 0x0b, 0x0c, 0x10, 0x11, 0x12, 0x13, 0x14, 0x16 };
+        Random random = new Random(seed);
+        List<Short> words = new ArrayList<Short>();
+
+        for(int register = 0; register < 7; register++) {
+            words.add((short)(0x7c01 | register << 5));
+            words.add((short)random.nextInt(0x10000));
+        }
+        words.add((short)0x7ce1); // SET J, 50
+        words.add((short)50);
+
+        int loop = words.size();
+        for(int register = 0; register < 7; register++) {
+            words.add((short)(0x1c02 | register << 5)); // ADD register, J
+        }
+        for(int i = 0; i < 60; i++) {
+            int opcode = opcodes[random.nextInt(opcodes.length)];
+            int b = random.nextInt(7);
+            switch(random.nextInt(4)) {
+                case 0:
+                    words.add((short)(opcode | b << 5 | random.nextInt(7) << 10));
+                    break;
+                case 1:
+                    words.add((short)(opcode | b << 5 | (0x20 + random.nextInt(32)) << 10));
+                    break;
+                case 2:
+                    // EX operand is performed by the interpreter operations. ADD and SUB would overwrite it.
+                    if(opcode == 0x02 || opcode == 0x03) {
+                        opcode = 0x0c;
+                    }
+                    words.add((short)(opcode | b << 5 | 0x1d << 10));
+                    break;
+                default:
+                    words.add((short)(opcode | b << 5 | 0x1f << 10));
+                    words.add((short)random.nextInt(0x10000));
+                    break;
+            }
+        }
+
+        words.add((short)0x84eb); // BOR J, 0 is skipped if a test fails at the end
+        words.add((short)0x76e1); // SET [J+0x1000], EX
+        words.add((short)0x1000);
+        for(int register = 0; register < 7; register++) {
+            words.add((short)(0x02ec | register << 10)); // XOR [J+0x1040], register
+            words.add((short)0x1040);
+        }
+        words.add((short)0x88e3); // SUB J, 1
+        words.add((short)0x84f3); // IFN J, 0
+        words.add((short)0x7f81); // SET PC, loop
+        words.add((short)loop);
+        words.add((short)0x7e40); // HWI 0
+        words.add((short)0x0000);
+
+        short[] result = new short[words.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = words.get(i);
+        }
+        return result;
+    }
+
+    private Snapshot run(Processor processor) throws MachineException {
+        return run(processor, program);
+    }
+
+    private Snapshot run(Processor processor, short[] program) throws MachineException {
+        final Snapshot snapshot = new Snapshot();
+        final Machine machine = new MachineImpl();
+        machine.setProcessor(processor);
+        machine.setMemory(new MemoryImpl());
+        machine.setDevices(new Device[] {
+            new Device() {
+                @Override
+                public void interrupt(Processor.State state) {
+                    snapshot.registers = state.registers.clone();
+                    snapshot.pc = state.pc;
+                    snapshot.sp = state.sp;
+                    snapshot.ex = state.ex;
+                    snapshot.ia = state.ia;
+                    snapshot.cycles = state.cycles;
+                    for(int i = 0; i < snapshot.memory.length; i++) {
+                        snapshot.memory[i] = machine.getMemory().readWord((short)(0x1000 + i));
+                    }
+                    machine.getProcessor().stop();
+                }
+            }
+        });
+
+        machine.setProgram(program);
+        machine.start();
+        return snapshot;
+    }
+
+    @Test
+    public void testSameResults() throws MachineException {
+        Snapshot expected = run(new ProcessorImpl());
+        Snapshot actual = run(new TranslatingProcessorImpl());
+
+        Assert.assertEquals(40, expected.registers[Processor.Register.I.ordinal()]);
+        Assert.assertEquals(5, expected.registers[Processor.Register.A.ordinal()]);
+        Assert.assertEquals(0x42, expected.registers[Processor.Register.B.ordinal()]);
+        Assert.assertEquals(1, expected.registers[Processor.Register.C.ordinal()]);
+
+        Assert.assertArrayEquals(expected.registers, actual.registers);
+        Assert.assertEquals(expected.pc, actual.pc);
+        Assert.assertEquals(expected.sp, actual.sp);
+        Assert.assertEquals(expected.ex, actual.ex);
+        Assert.assertEquals(expected.ia, actual.ia);
+        Assert.assertEquals(expected.cycles, actual.cycles);
+        Assert.assertArrayEquals(expected.memory, actual.memory);
+    }
+
+    @Test
+    public void testInlinedOperations() throws MachineException {
+        for(long seed = 0; seed < 10; seed++) {
+            Snapshot expected = run(new ProcessorImpl(), inlinedProgram(seed));
+            Snapshot actual = run(new TranslatingProcessorImpl(), inlinedProgram(seed));
+
+            Assert.assertEquals(0, expected.registers[Processor.Register.J.ordinal()]);
+            Assert.assertArrayEquals(expected.registers, actual.registers);
+            Assert.assertEquals(expected.pc, actual.pc);
+            Assert.assertEquals(expected.ex, actual.ex);
+            Assert.assertEquals(expected.cycles, actual.cycles);
+            Assert.assertArrayEquals(expected.memory, actual.memory);
+        }
+    }
+
+    @Test
+    public void testRetranslatedClassesUnloaded() throws MachineException {
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        run(new TranslatingProcessorImpl(), retranslatedProgram);
+        System.gc();
+        int loaded = classLoading.getLoadedClassCount();
+
+        // every iteration translates the loop again, classes of the dropped blocks are unloaded
+        Snapshot snapshot = run(new TranslatingProcessorImpl(), retranslatedProgram);
+        System.gc();
+        Assert.assertEquals(0x1000, snapshot.registers[Processor.Register.I.ordinal()]);
+        Assert.assertTrue("block classes aren't unloaded: " + (classLoading.getLoadedClassCount() - loaded), classLoading.getLoadedClassCount() - loaded < 0x400);
+    }
+}